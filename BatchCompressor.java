@@ -0,0 +1,433 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * A class named BatchCompressor that converts many images into tree files without a display. Each image goes
+ * through three stages, each run by its own worker threads: decode reads the file into a square array of pixels as
+ * TreeFile.main does, build builds its tree, pruned as it is built when a tolerance is given, and write stores the
+ * tree with TreeFile.write. The stages are joined by bounded queues, so a fast stage waits for a slow one instead of
+ * piling up decoded images, and at most a few images per stage are in memory at once. The time every image spends
+ * in every stage is recorded for the summary printed at the end.
+ *
+ * The tree of an image found in a directory is written to the same path below the output directory as the image
+ * below that directory, and every tree file keeps the full name of its image, so images of the same name in
+ * different directories or with different suffixes get different tree files.
+ *
+ * Only ImageIO and BufferedImage are used, never a window, so the compressor runs on machines without a display.
+ */
+public class BatchCompressor {
+    private static final int QUEUE_CAPACITY = 2;    // Images waiting for each stage, per worker of the stage
+    private static final String[] STAGES = {"decode", "build", "write"};
+
+    private final File outputDir;
+    private final QuadrantTree.ErrorMetric metric;  // Null to keep every pixel
+    private final double tolerance;
+    private final int workers;                      // Threads per stage
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final List<String> failures = new ArrayList<>();
+    private final long[][] latencies = new long[STAGES.length][];  // Time of each image in each stage, in ns
+    private final int[] recorded = new int[STAGES.length];
+    private long elapsed;                           // Time of the last batch, in ns
+    private boolean measureQuality;
+    private int measured;                           // Images of the last batch whose quality was measured
+    private double mseSum;
+    private double ssimSum;
+    private double ssimMin;
+
+    /**
+     * One image on its way through the stages.
+     */
+    private static final class Job {
+        private final File file;
+        private final File output;      // The tree file
+        private int imageType;
+        private int[][] pixels;
+        private QuadrantTree tree;
+
+        Job(File theFile, File theOutput) {
+            file = theFile;
+            output = theOutput;
+        }
+    }
+
+    /**
+     * The work of one stage on one image.
+     */
+    private interface Task {
+        void run(Job job) throws IOException;
+    }
+
+    /**
+     * Constructor for BatchCompressor that writes full trees.
+     * @param theOutputDir The directory the tree files are written to.
+     * @param theWorkers The number of threads of each stage.
+     */
+    public BatchCompressor(File theOutputDir, int theWorkers) {
+        this(theOutputDir, null, 0, theWorkers);
+    }
+
+    /**
+     * Constructor for BatchCompressor.
+     * @param theOutputDir The directory the tree files are written to.
+     * @param theMetric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @param theTolerance The largest color error a leaf may have.
+     * @param theWorkers The number of threads of each stage.
+     */
+    public BatchCompressor(File theOutputDir, QuadrantTree.ErrorMetric theMetric, double theTolerance,
+                           int theWorkers) {
+        outputDir = theOutputDir;
+        metric = theMetric;
+        tolerance = theTolerance;
+        workers = Math.max(1, theWorkers);
+    }
+
+    /**
+     * Sets whether the build stage measures the quality of every tree against its image, with QualityMetrics: the
+     * mean squared error and the SSIM of its deepest level. The summary then prints the PSNR of the mean squared
+     * error of the batch and the mean and lowest SSIM.
+     * @param measure True to measure the quality of the trees.
+     */
+    public void setMeasureQuality(boolean measure) {
+        measureQuality = measure;
+    }
+
+    /**
+     * Returns the image files named by a list of files and directories. Directories are searched recursively
+     * for files whose suffix ImageIO can read.
+     * @param paths The files and directories.
+     * @return The image files, in the order given and by name within a directory.
+     */
+    public static List<File> images(List<File> paths) {
+        List<File> images = new ArrayList<>();
+        addImages(paths, images, new ArrayList<>());
+        return images;
+    }
+
+    /**
+     * Adds the image files named by a list of files and directories, and their paths below the directory they
+     * were found in, or their names for the files named directly.
+     */
+    private static void addImages(List<File> paths, List<File> images, List<String> names) {
+        List<String> suffixes = new ArrayList<>();
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            suffixes.add("." + suffix.toLowerCase(Locale.ROOT));
+        }
+        for (File path : paths) {
+            addImages(path, null, suffixes, images, names);
+        }
+    }
+
+    /**
+     * @param relative The path of the file below the directory named in the list, or null if it was named.
+     */
+    private static void addImages(File path, String relative, List<String> suffixes, List<File> images,
+                                  List<String> names) {
+        File[] children = path.listFiles();
+        if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+                addImages(child, relative == null ? child.getName() : relative + File.separator + child.getName(),
+                          suffixes, images, names);
+            }
+            return;
+        }
+        String name = path.getName().toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        if (relative == null || (dot >= 0 && suffixes.contains(name.substring(dot)))) {
+            images.add(path);
+            names.add(relative == null ? path.getName() : relative);
+        }
+    }
+
+    /**
+     * Returns the tree file of every image named by a list of files and directories: the full name of the image
+     * with the suffix .qtree, in the output directory for an image named in the list, and at the path of the
+     * image below its directory for an image found in a directory.
+     * @param paths The files and directories.
+     * @return The tree file of each image, in the order images returns them.
+     * @throws IOException If two images would be written to the same tree file.
+     */
+    public Map<File, File> outputs(List<File> paths) throws IOException {
+        List<File> images = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        addImages(paths, images, names);
+        Map<File, File> outputs = new LinkedHashMap<>();
+        Map<String, File> written = new HashMap<>();   // The image written to each tree file
+        for (int i = 0; i < images.size(); i++) {
+            File tree = new File(outputDir, names.get(i) + ".qtree");
+            File other = written.put(tree.getAbsoluteFile().toPath().normalize().toString(), images.get(i));
+            if (other != null) {
+                throw new IOException("Both " + other + " and " + images.get(i) + " would be written to " + tree);
+            }
+            outputs.put(images.get(i), tree);
+        }
+        return outputs;
+    }
+
+    /**
+     * Converts the images named by a list of files and directories into the tree files outputs returns. An image
+     * that cannot be read or written is skipped and listed by getFailures; the others are still converted.
+     * @param paths The image files and directories of images.
+     * @return The number of tree files written.
+     * @throws IOException If two images would be written to the same tree file, before any is converted, or if
+     *                     the output directory cannot be created.
+     */
+    public int compress(List<File> paths) throws IOException {
+        Map<File, File> outputs = outputs(paths);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create " + outputDir);
+        }
+        written.set(0);
+        bytesRead.set(0);
+        failures.clear();
+        synchronized (this) {
+            measured = 0;
+            mseSum = 0;
+            ssimSum = 0;
+            ssimMin = 1;
+        }
+        for (int s = 0; s < STAGES.length; s++) {
+            latencies[s] = new long[outputs.size()];
+            recorded[s] = 0;
+        }
+        Task[] tasks = {this::decode, this::build, this::write};
+        List<BlockingQueue<Job>> queues = new ArrayList<>();
+        for (int s = 0; s < STAGES.length; s++) {
+            queues.add(new ArrayBlockingQueue<>(QUEUE_CAPACITY * workers));
+        }
+        Job end = new Job(null, null);  // Tells a worker there are no more images
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < STAGES.length; s++) {
+            AtomicInteger running = new AtomicInteger(workers);
+            for (int i = 0; i < workers; i++) {
+                Thread thread = new Thread(new Worker(s, tasks[s], queues.get(s),
+                                                      s + 1 < STAGES.length ? queues.get(s + 1) : null, end,
+                                                      running), STAGES[s] + "-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+            }
+        }
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        try {
+            for (Map.Entry<File, File> image : outputs.entrySet()) {
+                // Blocks while the decoders are behind
+                queues.get(0).put(new Job(image.getKey(), image.getValue()));
+            }
+            for (int i = 0; i < workers; i++) {
+                queues.get(0).put(end);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            threads.forEach(Thread::interrupt);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+        elapsed = System.nanoTime() - start;
+        return written.get();
+    }
+
+    private void decode(Job job) throws IOException {
+        BufferedImage im = RasterIngest.read(job.file);
+        bytesRead.addAndGet(job.file.length());
+        job.imageType = im.getType();
+        job.pixels = RasterIngest.load(im);
+    }
+
+    private void build(Job job) {
+        job.tree = metric == null ? new QuadrantTree(job.pixels) : new QuadrantTree(job.pixels, metric, tolerance);
+        if (measureQuality) {
+            QualityMetrics quality = new QualityMetrics(job.pixels);
+            double[] mse = quality.getMse(job.tree);
+            measured(mse[mse.length - 1], quality.getSsim(job.tree, mse.length - 1));
+        }
+        job.pixels = null;
+    }
+
+    private void write(Job job) throws IOException {
+        File dir = job.output.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {   // Another writer may have created it
+            throw new IOException("Cannot create " + dir);
+        }
+        TreeFile.write(job.tree, job.imageType, job.output);
+        job.tree = null;
+        written.incrementAndGet();
+    }
+
+    /**
+     * Runs one stage on the images taken from its queue and passes them to the next stage.
+     */
+    private final class Worker implements Runnable {
+        private final int stage;
+        private final Task task;
+        private final BlockingQueue<Job> in;
+        private final BlockingQueue<Job> out;   // Null for the last stage
+        private final Job end;
+        private final AtomicInteger running;    // Workers of the stage that have not finished
+
+        Worker(int theStage, Task theTask, BlockingQueue<Job> theIn, BlockingQueue<Job> theOut, Job theEnd,
+               AtomicInteger theRunning) {
+            stage = theStage;
+            task = theTask;
+            in = theIn;
+            out = theOut;
+            end = theEnd;
+            running = theRunning;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Job job = in.take(); job != end; job = in.take()) {
+                    long start = System.nanoTime();
+                    try {
+                        task.run(job);
+                    } catch (IOException | RuntimeException | Error e) {
+                        fail(job, e);
+                        continue;
+                    }
+                    record(stage, System.nanoTime() - start);
+                    if (out != null) {
+                        out.put(job);   // Blocks while the next stage is behind
+                    }
+                }
+                // The last worker of a stage to finish tells the workers of the next stage to stop
+                if (running.decrementAndGet() == 0 && out != null) {
+                    for (int i = 0; i < workers; i++) {
+                        out.put(end);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The batch was interrupted
+            }
+        }
+    }
+
+    private synchronized void record(int stage, long time) {
+        latencies[stage][recorded[stage]++] = time;
+    }
+
+    private synchronized void measured(double mse, double ssim) {
+        measured++;
+        mseSum += mse;
+        ssimSum += ssim;
+        ssimMin = Math.min(ssimMin, ssim);
+    }
+
+    private synchronized void fail(Job job, Throwable e) {
+        failures.add(job.file + ": " + e.getMessage());
+    }
+
+    /**
+     * Returns the images of the last batch that could not be converted, with the reason.
+     * @return One line per image.
+     */
+    public synchronized List<String> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Returns the time an image spent in a stage of the last batch at a percentile of all the images.
+     * @param stage The stage: 0 decode, 1 build, 2 write.
+     * @param percentile The percentile, from 0 to 100.
+     * @return The time in nanoseconds, or 0 if no image completed the stage.
+     */
+    public synchronized long percentile(int stage, double percentile) {
+        int n = recorded[stage];
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies[stage], n);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * n);
+        return sorted[Math.max(0, Math.min(n, rank) - 1)];
+    }
+
+    /**
+     * Prints the throughput of the last batch and the latency percentiles of each stage.
+     * @param out The stream to print to.
+     */
+    public void printSummary(PrintStream out) {
+        double seconds = elapsed / 1e9;
+        out.printf("%d images, %.1f MB in %.2f s: %.2f images/s, %.2f MB/s%n", written.get(),
+                   bytesRead.get() / 1e6, seconds, written.get() / seconds, bytesRead.get() / 1e6 / seconds);
+        out.println("  stage        p50 ms     p90 ms     p99 ms     max ms");
+        for (int s = 0; s < STAGES.length; s++) {
+            out.printf("  %-8s %10.1f %10.1f %10.1f %10.1f%n", STAGES[s], percentile(s, 50) / 1e6,
+                       percentile(s, 90) / 1e6, percentile(s, 99) / 1e6, percentile(s, 100) / 1e6);
+        }
+        synchronized (this) {
+            if (measured > 0) {
+                out.printf("  quality  PSNR %.2f dB   SSIM mean %.4f  min %.4f  (%d images)%n",
+                           QualityMetrics.psnr(mseSum / measured), ssimSum / measured, ssimMin, measured);
+            }
+        }
+        for (String failure : getFailures()) {
+            out.println("  failed " + failure);
+        }
+    }
+
+    /**
+     * Converts images into tree files without a display:
+     *
+     *   java BatchCompressor -o trees -t 100 -j 4 photos/ map.jpg
+     *
+     * writes the tree of map.jpg to trees/map.jpg.qtree and the tree of every image under photos/, such as
+     * photos/2024/a.png, to the same path under trees, trees/2024/a.png.qtree. The trees are pruned with a
+     * variance tolerance of 100 and each stage has 4 threads. Without -t every pixel is kept; without -j each stage
+     * has one thread per processor. With -q the quality of every tree is measured and summed up in the summary. With
+     * -Dqtree.metrics=true the TreeMetrics of the phases are printed after the summary.
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        File outputDir = new File(".");
+        double tolerance = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean quality = false;
+        List<File> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                outputDir = new File(args[++i]);
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                tolerance = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-j") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-q")) {
+                quality = true;
+            } else {
+                paths.add(new File(args[i]));
+            }
+        }
+        if (paths.isEmpty()) {
+            System.out.println("Usage: java BatchCompressor [-o output dir] [-t tolerance] [-j threads per stage] [-q] "
+                               + "<image or directory>...");
+            return;
+        }
+        BatchCompressor compressor = tolerance < 0 ? new BatchCompressor(outputDir, threads)
+            : new BatchCompressor(outputDir, QuadrantTree.ErrorMetric.VARIANCE, tolerance, threads);
+        compressor.setMeasureQuality(quality);
+        compressor.compress(paths);
+        compressor.printSummary(System.out);
+        if (TreeMetrics.isEnabled()) {
+            TreeMetrics.dump(System.out);
+        }
+    }
+}
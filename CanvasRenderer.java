@@ -0,0 +1,210 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * A class named CanvasRenderer that keeps the canvas DrawImage displays as one TYPE_INT_RGB image for the life of
+ * the program. Nodes are drawn by filling spans of rows straight into the int array behind the image, so showing
+ * the canvas is a single drawImage with no copy and no allocation. The renderer remembers the smallest rectangle
+ * holding every pixel changed since the canvas was last shown, so only that rectangle has to be repainted.
+ * A drawing that replaces the whole canvas goes between beginDraw and endDraw, which clears only the parts of the
+ * canvas the drawing left out, so its pixels are written once and the rest is repainted only if it changes.
+ */
+public class CanvasRenderer {
+    private final BufferedImage image;
+    private final int[] data;       // The pixels of the image, row by row
+    private final int width;
+    private final int height;
+    private boolean drawing;        // True between beginDraw and endDraw
+    private int background;         // The color endDraw clears the rest of the canvas to
+    private int drawnMinX, drawnMinY;   // Corners of the pixels filled since beginDraw
+    private int drawnMaxX, drawnMaxY;
+    private int minX, minY;         // Corners of the pixels changed since takeDirty, or
+    private int maxX, maxY;         // an empty rectangle if none has changed
+
+    /**
+     * Constructor for CanvasRenderer.
+     * @param theWidth The width of the canvas.
+     * @param theHeight The height of the canvas.
+     */
+    public CanvasRenderer(int theWidth, int theHeight) {
+        width = theWidth;
+        height = theHeight;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        clean();
+    }
+
+    /**
+     * Fills a rectangle of the canvas with a color. The parts of the rectangle outside the canvas are ignored.
+     * @param x The column of the left side of the rectangle.
+     * @param y The row of the top side of the rectangle.
+     * @param endX The column after the right side of the rectangle.
+     * @param endY The row after the bottom side of the rectangle.
+     * @param color The color, as an RGB int; the alpha channel is ignored.
+     */
+    public void fill(int x, int y, int endX, int endY, int color) {
+        x = Math.max(x, 0);
+        y = Math.max(y, 0);
+        endX = Math.min(endX, width);
+        endY = Math.min(endY, height);
+        if (x >= endX || y >= endY) {
+            return;
+        }
+        for (int row = y, start = y * width; row < endY; row++, start += width) {
+            for (int i = start + x; i < start + endX; i++) {
+                data[i] = color;
+            }
+        }
+        touch(x, y, endX, endY);
+        if (drawing) {
+            drawnMinX = Math.min(drawnMinX, x);
+            drawnMinY = Math.min(drawnMinY, y);
+            drawnMaxX = Math.max(drawnMaxX, endX);
+            drawnMaxY = Math.max(drawnMaxY, endY);
+        }
+    }
+
+    /**
+     * Starts a drawing that replaces the whole canvas. The drawing fills the canvas as usual, and endDraw clears
+     * what it left out.
+     * @param theBackground The color of the parts of the canvas the drawing does not fill, as an RGB int.
+     */
+    public void beginDraw(int theBackground) {
+        drawing = true;
+        background = theBackground;
+        drawnMinX = width;
+        drawnMinY = height;
+        drawnMaxX = 0;
+        drawnMaxY = 0;
+    }
+
+    /**
+     * Ends the drawing started by beginDraw, clearing the parts of the canvas outside the smallest rectangle
+     * holding the pixels it filled. Only the rows of those parts that are not already cleared are written and
+     * marked as changed.
+     */
+    public void endDraw() {
+        if (!drawing) {
+            return;
+        }
+        drawing = false;
+        if (drawnMinX >= drawnMaxX) {
+            drawnMinX = drawnMaxX = drawnMinY = drawnMaxY = 0;
+        }
+        for (int row = 0; row < height; row++) {
+            if (row < drawnMinY || row >= drawnMaxY) {
+                clearSpan(row, 0, width);
+            } else {
+                clearSpan(row, 0, drawnMinX);
+                clearSpan(row, drawnMaxX, width);
+            }
+        }
+    }
+
+    /**
+     * Sets the pixels of a span of a row that are not the background to the background.
+     */
+    private void clearSpan(int row, int x, int endX) {
+        int start = row * width;
+        int first = x;
+        while (first < endX && data[start + first] == background) {
+            first++;
+        }
+        if (first == endX) {
+            return;
+        }
+        int last = endX - 1;
+        while (data[start + last] == background) {
+            last--;
+        }
+        Arrays.fill(data, start + first, start + last + 1, background);
+        touch(first, row, last + 1, row + 1);
+    }
+
+    /**
+     * Sets every pixel of the canvas to a color.
+     * @param color The color, as an RGB int.
+     */
+    public void clear(int color) {
+        fill(0, 0, width, height, color);
+    }
+
+    /**
+     * Replaces the canvas with a copy of another one, such as a canvas kept by RasterCache. Only the rows that
+     * differ are copied and marked as changed, so going back to a canvas that is almost the same repaints little.
+     * @param canvas The pixels of the new canvas, row by row, as many as the canvas has.
+     */
+    public void load(int[] canvas) {
+        for (int row = 0, start = 0; row < height; row++, start += width) {
+            int first = Arrays.mismatch(data, start, start + width, canvas, start, start + width);
+            if (first < 0) {
+                continue;
+            }
+            int last = width - 1;
+            while (data[start + last] == canvas[start + last]) {
+                last--;
+            }
+            System.arraycopy(canvas, start + first, data, start + first, last - first + 1);
+            touch(first, row, last + 1, row + 1);
+        }
+    }
+
+    /**
+     * Returns the pixels of the canvas. The array is the one behind the image, and changes written to it directly
+     * are not marked as changed.
+     * @return The pixels of the canvas, row by row.
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the image holding the canvas.
+     * @return The image, whose pixels are the canvas itself.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the rectangle holding every pixel changed since the last call and starts a new one.
+     * @return The rectangle to repaint, empty if no pixel changed.
+     */
+    public Rectangle takeDirty() {
+        Rectangle dirty = maxX > minX ? new Rectangle(minX, minY, maxX - minX, maxY - minY) : new Rectangle();
+        clean();
+        return dirty;
+    }
+
+    /**
+     * Returns the number of pixels of the rectangle takeDirty would return.
+     * @return The area of the rectangle to repaint.
+     */
+    public int getDirtyArea() {
+        return maxX > minX ? (maxX - minX) * (maxY - minY) : 0;
+    }
+
+    private void touch(int x, int y, int endX, int endY) {
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, endX);
+        maxY = Math.max(maxY, endY);
+    }
+
+    private void clean() {
+        minX = width;
+        minY = height;
+        maxX = 0;
+        maxY = 0;
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A class named ColorIndex that is an inverted index of the colors of a QuadrantTree. For every level, the nodes
+ * getPixels lists at that level are grouped by the cell of a grid over RGB space whose cells are as wide as the
+ * radius of the tree's ColorSimilarity, so the colors similar to a query color all lie in the cells next to the
+ * query's. findMatching then only inspects those cells, and its cost grows with the number of nodes near the query
+ * color rather than with the number of nodes in the level. A level is indexed the first time it is searched.
+ */
+public class ColorIndex {
+    private static final int MIN_CELL = 8;  // Narrower cells would make the grid larger than the levels it indexes
+
+    private final QuadrantTree tree;
+    private final ColorSimilarity similarity;
+    private final int radius;           // Largest difference in a channel between similar colors
+    private final int cellWidth;        // Width of a cell in each channel
+    private final int cells;            // Cells per channel
+    private final int height;           // Depth of the deepest leaf; deeper levels list the same nodes
+    private final Level[] levels;
+    private long inspected;             // Number of nodes whose color was compared with a query color
+
+    /**
+     * The nodes of one level, grouped by color cell.
+     */
+    private static final class Level {
+        private QTreeNode[] nodes;      // The nodes of the level in the order getPixels lists them
+        private int[] cellStart;        // Position in entries of the first node of each cell, plus the end
+        private int[] entries;          // Positions in nodes, grouped by cell and in order within a cell
+        private int[] colors;           // The color of the node of each entry
+    }
+
+    /**
+     * Constructor for ColorIndex.
+     * @param theTree The tree to index.
+     */
+    public ColorIndex(QuadrantTree theTree) {
+        tree = theTree;
+        similarity = tree.getColorSimilarity();
+        radius = similarity.radius();
+        cellWidth = Math.max(MIN_CELL, radius + 1);
+        cells = 256 / cellWidth + 1;
+        height = height(tree.getRoot());
+        levels = new Level[height + 1];
+    }
+
+    private static int height(QTreeNode node) {
+        if (node == null || node.isLeaf()) {
+            return 0;
+        }
+        int height = 0;
+        for (int i = 0; i < 4; i++) {
+            height = Math.max(height, height(node.getChild(i)));
+        }
+        return height + 1;
+    }
+
+    /**
+     * Returns the index of a level, building it if it is searched for the first time.
+     * @param theLevel The level; a negative level is the level of the leaves, as in findMatching.
+     * @return The index of the level.
+     */
+    private Level level(int theLevel) {
+        int level = theLevel < 0 || theLevel > height ? height : theLevel;
+        if (levels[level] == null) {
+            levels[level] = build(level);
+        }
+        return levels[level];
+    }
+
+    private Level build(int level) {
+        List<QTreeNode> list = new ArrayList<>();
+        tree.visitPixels(tree.getRoot(), level, list::add);
+        Level index = new Level();
+        index.nodes = list.toArray(new QTreeNode[0]);
+        int n = index.nodes.length;
+        // Counting sort of the nodes by cell, which keeps the nodes of a cell in order
+        int[] cellOf = new int[n];
+        index.cellStart = new int[cells * cells * cells + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = cell(index.nodes[i].getColor());
+            index.cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < cells * cells * cells; c++) {
+            index.cellStart[c + 1] += index.cellStart[c];
+        }
+        int[] fill = Arrays.copyOf(index.cellStart, cells * cells * cells);
+        index.entries = new int[n];
+        index.colors = new int[n];
+        for (int i = 0; i < n; i++) {
+            int position = fill[cellOf[i]]++;
+            index.entries[position] = i;
+            index.colors[position] = index.nodes[i].getColor();
+        }
+        return index;
+    }
+
+    private int cell(int color) {
+        return (((color >> 16) & 0xff) / cellWidth * cells + ((color >> 8) & 0xff) / cellWidth) * cells
+               + (color & 0xff) / cellWidth;
+    }
+
+    /**
+     * Returns the nodes of the tree at the specified level whose color is similar to the specified color,
+     * with the same result as QuadrantTree.findMatching from the root.
+     * @param theColor The color to match.
+     * @param theLevel The level of the tree.
+     * @return The matching nodes in the order findMatching lists them, and their number.
+     */
+    public Duple findMatching(int theColor, int theLevel) {
+        Level index = level(theLevel);
+        int[] matches = matches(index, theColor);
+        ListNode<QTreeNode> front = null;
+        for (int i = matches.length - 1; i >= 0; i--) {
+            ListNode<QTreeNode> node = new ListNode<>(index.nodes[matches[i]]);
+            node.setNext(front);
+            front = node;
+        }
+        return new Duple(front, matches.length);
+    }
+
+    /**
+     * Passes the nodes of the tree at the specified level whose color is similar to the specified color to
+     * a visitor, in the order findMatching lists them.
+     * @param theColor The color to match.
+     * @param theLevel The level of the tree.
+     * @param visitor The consumer the nodes are passed to.
+     * @return The number of matching nodes.
+     */
+    public int visitMatching(int theColor, int theLevel, Consumer<? super QTreeNode> visitor) {
+        Level index = level(theLevel);
+        int[] matches = matches(index, theColor);
+        for (int match : matches) {
+            visitor.accept(index.nodes[match]);
+        }
+        return matches.length;
+    }
+
+    /**
+     * Returns the positions of the matching nodes of a level, in order.
+     */
+    private int[] matches(Level index, int theColor) {
+        int red = (theColor >> 16) & 0xff;
+        int green = (theColor >> 8) & 0xff;
+        int blue = theColor & 0xff;
+        int[] matches = new int[16];
+        int[] found = new int[16];      // Positions in colors of the similar colors of one run of cells
+        int count = 0;
+        boolean sorted = true;
+        for (int r = Math.max(0, red - radius) / cellWidth; r <= Math.min(255, red + radius) / cellWidth; r++) {
+            for (int g = Math.max(0, green - radius) / cellWidth; g <= Math.min(255, green + radius) / cellWidth; g++) {
+                // The cells of the blue range are next to each other, so they are compared in one batch
+                int first = (r * cells + g) * cells;
+                int start = index.cellStart[first + Math.max(0, blue - radius) / cellWidth];
+                int end = index.cellStart[first + Math.min(255, blue + radius) / cellWidth + 1];
+                inspected += end - start;
+                if (end - start > found.length) {
+                    found = new int[Math.max(2 * found.length, end - start)];
+                }
+                int similar = similarity.matches(theColor, index.colors, start, end, found);
+                if (count + similar > matches.length) {
+                    matches = Arrays.copyOf(matches, Math.max(2 * matches.length, count + similar));
+                }
+                for (int m = 0; m < similar; m++) {
+                    int position = index.entries[found[m]];
+                    sorted &= count == 0 || matches[count - 1] < position;
+                    matches[count++] = position;
+                }
+            }
+        }
+        matches = Arrays.copyOf(matches, count);
+        if (!sorted) {
+            Arrays.sort(matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the number of nodes whose color has been compared with a query color.
+     * @return The number of nodes inspected by all the searches so far.
+     */
+    public long getInspected() {
+        return inspected;
+    }
+
+    /**
+     * Returns the number of nodes in the levels indexed so far.
+     * @return The number of entries of the index.
+     */
+    public long size() {
+        long size = 0;
+        for (Level level : levels) {
+            if (level != null) {
+                size += level.nodes.length;
+            }
+        }
+        return size;
+    }
+}
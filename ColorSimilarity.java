@@ -0,0 +1,254 @@
+/**
+ * A class named ColorSimilarity that decides whether two colors are similar, for findMatching. Three measures
+ * are provided, each with its own threshold:
+ *
+ *   box(t)          every channel differs by less than t; box(15) is the measure Gui.similarColor has always used
+ *   euclidean(d)    the distance between the colors in RGB space is at most d
+ *   perceptual(d)   the distance weighted by how sensitive the eye is to each channel, with the red and blue
+ *                   weights depending on the mean red of the two colors, is at most d; a cheap approximation
+ *                   of the distance in Lab space
+ *
+ * A measure also compares one color against a whole array of colors at once. When the JDK Vector API is
+ * available (the class VectorColorBatch, compiled and run with --add-modules jdk.incubator.vector), those
+ * comparisons use SIMD instructions; otherwise they fall back to a scalar loop with the same results.
+ */
+public abstract class ColorSimilarity {
+    /**
+     * The measure used by findMatching unless another one is chosen.
+     */
+    public static final ColorSimilarity DEFAULT = box(15);
+
+    private static final Batch BATCH = loadBatch();
+
+    /**
+     * Comparisons of one color against an array of colors. Each method stores the positions of the colors
+     * that are similar to the color, in increasing order, and returns their number.
+     */
+    public interface Batch {
+        int box(int color, int tolerance, int[] colors, int from, int to, int[] positions);
+
+        int euclidean(int color, int squaredDistance, int[] colors, int from, int to, int[] positions);
+
+        int perceptual(int color, int scaledDistance, int[] colors, int from, int to, int[] positions);
+    }
+
+    private static Batch loadBatch() {
+        try {
+            return (Batch) Class.forName("VectorColorBatch").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;    // The Vector API or the class using it is not available
+        }
+    }
+
+    /**
+     * Returns the name of the implementation of the comparisons against arrays of colors.
+     * @return "vector" if the Vector API is used, "scalar" otherwise.
+     */
+    public static String batchImplementation() {
+        return BATCH == null ? "scalar" : "vector";
+    }
+
+    /**
+     * Returns the measure under which colors are similar if every channel differs by less than the tolerance.
+     * @param tolerance The tolerance of each channel, at least 1.
+     * @return The measure.
+     */
+    public static ColorSimilarity box(int tolerance) {
+        return new Box(tolerance);
+    }
+
+    /**
+     * Returns the measure under which colors are similar if their distance in RGB space is at most the distance.
+     * @param distance The largest distance between similar colors.
+     * @return The measure.
+     */
+    public static ColorSimilarity euclidean(double distance) {
+        return new Euclidean(distance);
+    }
+
+    /**
+     * Returns the measure under which colors are similar if their perceptually weighted distance is at most
+     * the distance. The distance is on the same scale as the Euclidean RGB distance, so a gray step of 1 in
+     * every channel is a distance of about 2.8.
+     * @param distance The largest distance between similar colors.
+     * @return The measure.
+     */
+    public static ColorSimilarity perceptual(double distance) {
+        return new Perceptual(distance);
+    }
+
+    /**
+     * Returns true if the colors are similar.
+     * @param color1 The first color.
+     * @param color2 The second color.
+     * @return True if the colors are similar.
+     */
+    public abstract boolean similar(int color1, int color2);
+
+    /**
+     * Returns true if some color whose channels lie between those of minColor and maxColor may be similar to
+     * the specified color. Used to skip the quadrants whose color bounds are too far from the color.
+     * @param color The color.
+     * @param minColor The minimum of each channel, packed as RGB.
+     * @param maxColor The maximum of each channel, packed as RGB.
+     * @return False if no color within the bounds is similar to the color.
+     */
+    public abstract boolean mayBeSimilar(int color, int minColor, int maxColor);
+
+    /**
+     * Returns the largest difference in any one channel between two similar colors.
+     * @return The radius of the measure.
+     */
+    public abstract int radius();
+
+    /**
+     * Finds the colors of an array that are similar to a color, with the Vector API when it is available.
+     * @param color The color.
+     * @param colors The colors to compare with it.
+     * @param from The position of the first color to compare.
+     * @param to The position after the last color to compare.
+     * @param positions Receives the positions of the similar colors in increasing order; it must have room
+     *                  for to - from positions.
+     * @return The number of similar colors.
+     */
+    public int matches(int color, int[] colors, int from, int to, int[] positions) {
+        if (BATCH == null) {
+            return scalarMatches(color, colors, from, to, positions);
+        }
+        return batchMatches(BATCH, color, colors, from, to, positions);
+    }
+
+    /**
+     * Finds the colors of an array that are similar to a color, one color at a time.
+     * The result is the same as the one of matches.
+     */
+    public int scalarMatches(int color, int[] colors, int from, int to, int[] positions) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (similar(color, colors[i])) {
+                positions[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    abstract int batchMatches(Batch batch, int color, int[] colors, int from, int to, int[] positions);
+
+    /**
+     * Returns the distance from a channel value to a range of values, 0 if it is in the range.
+     */
+    static int gap(int value, int min, int max) {
+        return Math.max(0, Math.max(min - value, value - max));
+    }
+
+    private static final class Box extends ColorSimilarity {
+        private final int tolerance;
+
+        Box(int theTolerance) {
+            if (theTolerance < 1) {
+                throw new IllegalArgumentException("The tolerance must be at least 1");
+            }
+            tolerance = theTolerance;
+        }
+
+        @Override
+        public boolean similar(int color1, int color2) {
+            return Math.abs(((color1 >> 16) & 0xff) - ((color2 >> 16) & 0xff)) < tolerance
+                   && Math.abs(((color1 >> 8) & 0xff) - ((color2 >> 8) & 0xff)) < tolerance
+                   && Math.abs((color1 & 0xff) - (color2 & 0xff)) < tolerance;
+        }
+
+        @Override
+        public boolean mayBeSimilar(int color, int minColor, int maxColor) {
+            return gap((color >> 16) & 0xff, (minColor >> 16) & 0xff, (maxColor >> 16) & 0xff) < tolerance
+                   && gap((color >> 8) & 0xff, (minColor >> 8) & 0xff, (maxColor >> 8) & 0xff) < tolerance
+                   && gap(color & 0xff, minColor & 0xff, maxColor & 0xff) < tolerance;
+        }
+
+        @Override
+        public int radius() {
+            return tolerance - 1;
+        }
+
+        @Override
+        int batchMatches(Batch batch, int color, int[] colors, int from, int to, int[] positions) {
+            return batch.box(color, tolerance, colors, from, to, positions);
+        }
+    }
+
+    private static final class Euclidean extends ColorSimilarity {
+        private final int squaredDistance;
+
+        Euclidean(double distance) {
+            squaredDistance = (int) Math.min(Math.floor(distance * distance), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public boolean similar(int color1, int color2) {
+            int red = ((color1 >> 16) & 0xff) - ((color2 >> 16) & 0xff);
+            int green = ((color1 >> 8) & 0xff) - ((color2 >> 8) & 0xff);
+            int blue = (color1 & 0xff) - (color2 & 0xff);
+            return red * red + green * green + blue * blue <= squaredDistance;
+        }
+
+        @Override
+        public boolean mayBeSimilar(int color, int minColor, int maxColor) {
+            int red = gap((color >> 16) & 0xff, (minColor >> 16) & 0xff, (maxColor >> 16) & 0xff);
+            int green = gap((color >> 8) & 0xff, (minColor >> 8) & 0xff, (maxColor >> 8) & 0xff);
+            int blue = gap(color & 0xff, minColor & 0xff, maxColor & 0xff);
+            return red * red + green * green + blue * blue <= squaredDistance;
+        }
+
+        @Override
+        public int radius() {
+            return Math.min(255, (int) Math.sqrt(squaredDistance));
+        }
+
+        @Override
+        int batchMatches(Batch batch, int color, int[] colors, int from, int to, int[] positions) {
+            return batch.euclidean(color, squaredDistance, colors, from, to, positions);
+        }
+    }
+
+    /**
+     * The "redmean" weighted distance: with r the mean red of the two colors, the squared distance is
+     * (2 + r/256) dR^2 + 4 dG^2 + (2 + (255 - r)/256) dB^2. It is computed multiplied by 256 so it stays an integer.
+     */
+    private static final class Perceptual extends ColorSimilarity {
+        private final int scaledDistance;   // 256 times the largest squared distance
+
+        Perceptual(double distance) {
+            scaledDistance = (int) Math.min(Math.floor(256 * distance * distance), Integer.MAX_VALUE);
+        }
+
+        @Override
+        public boolean similar(int color1, int color2) {
+            int red1 = (color1 >> 16) & 0xff;
+            int red2 = (color2 >> 16) & 0xff;
+            int redMean = (red1 + red2) >> 1;
+            int red = red1 - red2;
+            int green = ((color1 >> 8) & 0xff) - ((color2 >> 8) & 0xff);
+            int blue = (color1 & 0xff) - (color2 & 0xff);
+            return (512 + redMean) * red * red + 1024 * green * green + (767 - redMean) * blue * blue <= scaledDistance;
+        }
+
+        @Override
+        public boolean mayBeSimilar(int color, int minColor, int maxColor) {
+            // The red and blue weights are at least 2, whatever the mean red is
+            int red = gap((color >> 16) & 0xff, (minColor >> 16) & 0xff, (maxColor >> 16) & 0xff);
+            int green = gap((color >> 8) & 0xff, (minColor >> 8) & 0xff, (maxColor >> 8) & 0xff);
+            int blue = gap(color & 0xff, minColor & 0xff, maxColor & 0xff);
+            return 512 * red * red + 1024 * green * green + 512 * blue * blue <= scaledDistance;
+        }
+
+        @Override
+        public int radius() {
+            return Math.min(255, (int) Math.sqrt(scaledDistance / 512.0));
+        }
+
+        @Override
+        int batchMatches(Batch batch, int color, int[] colors, int from, int to, int[] positions) {
+            return batch.perceptual(color, scaledDistance, colors, from, to, positions);
+        }
+    }
+}
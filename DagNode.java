@@ -0,0 +1,168 @@
+/**
+ * A class named DagNode that is a view of a node kept in a DagStore. A node of the store may stand for many
+ * quadrants of the image, so the view knows the position and size of the one it was reached as, computed while
+ * descending from the root, and the view it was reached from as its parent. The nodes of a DagStore are read-only.
+ */
+public class DagNode extends QTreeNode {
+    private final DagStore store;
+    private final int id;           // The index of the node in the store
+    private final int x;
+    private final int y;
+    private final int size;
+
+    /**
+     * Constructor for DagNode.
+     * @param theStore The store holding the node.
+     * @param theId The index of the node in the store.
+     * @param theParent The view the node was reached from, or null for the root.
+     * @param xcoord The x-coordinate of the quadrant.
+     * @param ycoord The y-coordinate of the quadrant.
+     * @param theSize The size of the quadrant.
+     */
+    DagNode(DagStore theStore, int theId, QTreeNode theParent, int xcoord, int ycoord, int theSize) {
+        super(theParent);
+        store = theStore;
+        id = theId;
+        x = xcoord;
+        y = ycoord;
+        size = theSize;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public int getx() {
+        return x;
+    }
+
+    @Override
+    public int gety() {
+        return y;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getColor() {
+        return store.getColor(id);
+    }
+
+    @Override
+    public int getMinColor() {
+        return store.getMinColor(id);
+    }
+
+    @Override
+    public int getMaxColor() {
+        return store.getMaxColor(id);
+    }
+
+    @Override
+    public QTreeNode getChild(int childIndex) throws QTreeException {
+        if (childIndex < 0 || childIndex > 3) {
+            throw new QTreeException("Invalid index or null children array");
+        }
+        int child = store.getChild(id, childIndex);
+        if (child < 0) {
+            return null;    // A leaf, or a child outside the image
+        }
+        int halfSize = size / 2;
+        return new DagNode(store, child, this, x + (childIndex % 2) * halfSize, y + (childIndex / 2) * halfSize,
+                           childIndex == 3 ? size - halfSize : halfSize);
+    }
+
+    @Override
+    public boolean isLeaf() {
+        return store.isLeaf(id);
+    }
+
+    @Override
+    public boolean contains(int xcoord, int ycoord) {
+        return xcoord >= x && xcoord < x + size && ycoord >= y && ycoord < y + size;
+    }
+
+    /**
+     * The nodes of a DagStore cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setx(int newx) {
+        throw new QTreeException("The nodes of a DAG are read-only");
+    }
+
+    /**
+     * The nodes of a DagStore cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void sety(int newy) {
+        throw new QTreeException("The nodes of a DAG are read-only");
+    }
+
+    /**
+     * The nodes of a DagStore cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setSize(int newSize) {
+        throw new QTreeException("The nodes of a DAG are read-only");
+    }
+
+    /**
+     * The nodes of a DagStore cannot be changed, as a node may stand for many quadrants.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setColor(int newColor) {
+        throw new QTreeException("The nodes of a DAG are read-only");
+    }
+
+    /**
+     * The nodes of a DagStore cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setColorBounds(int newMinColor, int newMaxColor) {
+        throw new QTreeException("The nodes of a DAG are read-only");
+    }
+
+    /**
+     * The nodes of a DagStore cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setParent(QTreeNode newParent) {
+        throw new QTreeException("The nodes of a DAG are read-only");
+    }
+
+    /**
+     * The nodes of a DagStore cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setChild(QTreeNode newChild, int childIndex) throws QTreeException {
+        throw new QTreeException("The nodes of a DAG are read-only");
+    }
+
+    /**
+     * Two views are equal if they are views of the same quadrant of the same store.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof DagNode)) {
+            return false;
+        }
+        DagNode node = (DagNode) other;
+        return node.store == store && node.id == id && node.x == x && node.y == y && node.size == size;
+    }
+
+    @Override
+    public int hashCode() {
+        return (System.identityHashCode(store) * 31 + x) * 31 + y;
+    }
+}
@@ -0,0 +1,388 @@
+import java.util.Arrays;
+
+/**
+ * A class named DagStore that keeps a quadrant tree as a directed acyclic graph in which identical subtrees are
+ * stored once. A node holds no position, size or parent, only its color and its four children, so two quadrants
+ * with the same colors and the same shape below them, anywhere in the image and of any size, are the same node.
+ * The nodes are interned while the tree is built: a hash table over their colors and children finds the node a
+ * new one duplicates. Flat and repetitive images, such as the sample maps, then need far fewer nodes.
+ *
+ * The nodes are read through DagNode views, whose positions are computed while descending from the root, so
+ * getPixels, findNode and findMatching work on a DAG unchanged. The color bounds of a node cover the colors of the
+ * nodes below it rather than the colors of the pixels, since they must be the same wherever the node is used.
+ */
+public class DagStore {
+    private static final int NONE = -1;     // No child: a leaf, or a quadrant outside the image
+    private static final int MERGED = -2;   // Returned by build for a quadrant within the tolerance
+
+    private int[] color;
+    private int[] minColor;     // Per channel bounds of the colors of the node and the nodes below it
+    private int[] maxColor;
+    private int[] children;     // The four children of node i are children[4 * i] to children[4 * i + 3]
+    private int count;          // Number of nodes in use
+    private int[] table;        // Open addressing hash table of node indexes plus one, 0 for an empty slot
+    private int rootId = NONE;
+    private int width;          // Width of the image covered by the tree
+    private int height;         // Height of the image covered by the tree
+    private int size;           // Size of the root
+    private boolean discarded;  // Set when a quadrant was merged after nodes below it were interned
+    private DagNode root;       // The root view is kept so it can be compared by reference, as Gui does
+
+    private DagStore(int capacity) {
+        color = new int[capacity];
+        minColor = new int[capacity];
+        maxColor = new int[capacity];
+        children = new int[4 * capacity];
+        table = new int[Integer.highestOneBit(Math.max(capacity, 8)) * 4];
+    }
+
+    /**
+     * Builds the full tree of the specified pixels as a DAG.
+     * @param pixels 2d array consisting of pixels of the image.
+     * @return The stored DAG.
+     */
+    public static DagStore build(int[][] pixels) {
+        return build(pixels, null, 0);
+    }
+
+    /**
+     * Builds the tree of the specified pixels as a DAG, making a quadrant a leaf as soon as its color error is
+     * within the tolerance. The tree is the same, quadrant for quadrant, as the one built by
+     * new QuadrantTree(pixels, metric, tolerance).
+     * @param pixels 2d array consisting of pixels of the image.
+     * @param metric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @param tolerance The largest color error a leaf may have.
+     * @return The stored DAG.
+     */
+    public static DagStore build(int[][] pixels, QuadrantTree.ErrorMetric metric, double tolerance) {
+        int n = pixels.length;
+        return build(pixels, n, n, n, metric, tolerance);
+    }
+
+    /**
+     * Builds the tree of an image of any width and height as a DAG, making a quadrant a leaf as soon as its color
+     * error is within the tolerance. The tree is the same, quadrant for quadrant, as the one built by
+     * new QuadrantTree(pixels, width, height, metric, tolerance), or new QuadrantTree(pixels, width, height) if
+     * the metric is null.
+     * @param pixels 2d array consisting of pixels of the image, at least height rows of at least width pixels.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param metric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @param tolerance The largest color error a leaf may have.
+     * @return The stored DAG.
+     * @throws QTreeException If the image is larger than the array of pixels.
+     */
+    public static DagStore build(int[][] pixels, int width, int height, QuadrantTree.ErrorMetric metric,
+                                 double tolerance) {
+        if (width < 0 || height < 0 || height > pixels.length || (height > 0 && width > pixels[0].length)) {
+            throw new QTreeException("The image is larger than its array of pixels");
+        }
+        return build(pixels, width, height, QuadrantTree.coverSize(width, height), metric, tolerance);
+    }
+
+    private static DagStore build(int[][] pixels, int width, int height, int n, QuadrantTree.ErrorMetric metric,
+                                  double tolerance) {
+        DagStore store = new DagStore(1 << 10);
+        store.width = width;
+        store.height = height;
+        store.size = n;
+        if (n == 0) {
+            return store;
+        }
+        RegionStats[][] scratch = new RegionStats[32][4];
+        for (RegionStats[] level : scratch) {
+            for (int i = 0; i < 4; i++) {
+                level[i] = new RegionStats();
+            }
+        }
+        RegionStats stats = new RegionStats();
+        int id = store.build(pixels, 0, 0, n, stats, metric, tolerance, scratch, 0);
+        store.rootId = id == MERGED ? store.leaf(pixels, 0, 0, n, stats) : id;
+        if (store.discarded) {
+            store.compact();
+        }
+        store.trim();
+        return store;
+    }
+
+    /**
+     * Stores the tree of another tree as a DAG, such as the tree of a TreeFile or a NodeStore.
+     * @param tree The tree to store.
+     * @return The stored DAG.
+     */
+    public static DagStore intern(QuadrantTree tree) {
+        DagStore store = new DagStore(1 << 10);
+        store.width = tree.getWidth();
+        store.height = tree.getHeight();
+        QTreeNode treeRoot = tree.getRoot();
+        if (treeRoot != null) {
+            store.size = treeRoot.getSize();
+            store.rootId = store.intern(treeRoot);
+        }
+        store.trim();
+        return store;
+    }
+
+    private int intern(QTreeNode node) {
+        if (node.isLeaf()) {
+            return intern(node.getColor(), NONE, NONE, NONE, NONE);
+        }
+        int[] ids = new int[4];
+        for (int i = 0; i < 4; i++) {
+            QTreeNode child = node.getChild(i);
+            ids[i] = child == null ? NONE : intern(child);
+        }
+        return intern(node.getColor(), ids[0], ids[1], ids[2], ids[3]);
+    }
+
+    /**
+     * Builds the DAG of a quadrant in a single bottom-up pass, as QuadrantTree builds its tree. A quadrant
+     * within the tolerance is not interned here: its parent interns a leaf for it if the parent is split.
+     * @param stats The statistics of the quadrant, filled in by this method.
+     * @return The node of the quadrant, NONE if it is outside the image, or MERGED if it is a leaf.
+     */
+    private int build(int[][] pixels, int x, int y, int quadrantSize, RegionStats stats,
+                      QuadrantTree.ErrorMetric metric, double tolerance, RegionStats[][] scratch, int depth) {
+        if (x >= width || y >= height || quadrantSize == 0) {
+            return NONE;
+        }
+        if (quadrantSize == 1) {
+            stats.add(pixels[y][x]);
+            return MERGED;
+        }
+        int halfSize = quadrantSize / 2;
+        int lastSize = quadrantSize - halfSize;
+        RegionStats[] childStats = scratch[depth];
+        int[] ids = new int[4];
+        for (int i = 0; i < 4; i++) {
+            childStats[i].clear();
+            ids[i] = build(pixels, x + (i % 2) * halfSize, y + (i / 2) * halfSize, i == 3 ? lastSize : halfSize,
+                           childStats[i], metric, tolerance, scratch, depth + 1);
+            stats.add(childStats[i]);
+        }
+        if (lastSize != halfSize) {
+            for (int i = y; i < y + halfSize; i++) {
+                stats.add(pixels[i][x + quadrantSize - 1]);
+            }
+            for (int j = x; j < x + halfSize; j++) {
+                stats.add(pixels[y + quadrantSize - 1][j]);
+            }
+        }
+        if (metric != null) {
+            double error = metric == QuadrantTree.ErrorMetric.VARIANCE ? stats.variance() : stats.maxDeviation();
+            if (error <= tolerance) {
+                for (int id : ids) {
+                    discarded |= id >= 0;
+                }
+                return MERGED;
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            if (ids[i] == MERGED) {
+                ids[i] = leaf(pixels, x + (i % 2) * halfSize, y + (i / 2) * halfSize, i == 3 ? lastSize : halfSize,
+                              childStats[i]);
+            }
+        }
+        return intern(stats.averageColor(), ids[0], ids[1], ids[2], ids[3]);
+    }
+
+    /**
+     * Interns a leaf covering a whole quadrant. A single pixel keeps its own color as in the full tree.
+     */
+    private int leaf(int[][] pixels, int x, int y, int quadrantSize, RegionStats stats) {
+        return intern(quadrantSize == 1 ? pixels[y][x] : stats.averageColor(), NONE, NONE, NONE, NONE);
+    }
+
+    /**
+     * Returns the node with the specified color and children, adding it if there is none.
+     * @return The index of the node.
+     */
+    private int intern(int nodeColor, int c0, int c1, int c2, int c3) {
+        int mask = table.length - 1;
+        int slot = hash(nodeColor, c0, c1, c2, c3) & mask;
+        while (table[slot] != 0) {
+            int id = table[slot] - 1;
+            int first = 4 * id;
+            if (color[id] == nodeColor && children[first] == c0 && children[first + 1] == c1
+                && children[first + 2] == c2 && children[first + 3] == c3) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int id = add(nodeColor, c0, c1, c2, c3);
+        table[slot] = id + 1;
+        if (2 * count > table.length) {
+            rehash(2 * table.length);
+        }
+        return id;
+    }
+
+    private int add(int nodeColor, int c0, int c1, int c2, int c3) {
+        if (count == color.length) {
+            resize(2 * count);
+        }
+        int id = count++;
+        color[id] = nodeColor;
+        children[4 * id] = c0;
+        children[4 * id + 1] = c1;
+        children[4 * id + 2] = c2;
+        children[4 * id + 3] = c3;
+        int min = nodeColor & 0xffffff;
+        int max = nodeColor & 0xffffff;
+        for (int i = 4 * id; i < 4 * id + 4; i++) {
+            if (children[i] >= 0) {
+                min = RegionStats.minChannels(min, minColor[children[i]]);
+                max = RegionStats.maxChannels(max, maxColor[children[i]]);
+            }
+        }
+        minColor[id] = min;
+        maxColor[id] = max;
+        return id;
+    }
+
+    private static int hash(int nodeColor, int c0, int c1, int c2, int c3) {
+        int h = nodeColor;
+        h = h * 0x9e3779b1 + c0;
+        h = h * 0x9e3779b1 + c1;
+        h = h * 0x9e3779b1 + c2;
+        h = h * 0x9e3779b1 + c3;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < count; id++) {
+            int first = 4 * id;
+            int slot = hash(color[id], children[first], children[first + 1], children[first + 2],
+                            children[first + 3]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Drops the nodes no longer reachable from the root: those interned below a quadrant that was merged into
+     * a leaf afterwards. Children are always interned before their parents, so keeping the reachable nodes in
+     * order keeps every child before its parents.
+     */
+    private void compact() {
+        boolean[] reachable = new boolean[count];
+        reachable[rootId] = true;
+        for (int id = count - 1; id >= 0; id--) {
+            if (reachable[id]) {
+                for (int i = 0; i < 4; i++) {
+                    if (children[4 * id + i] >= 0) {
+                        reachable[children[4 * id + i]] = true;
+                    }
+                }
+            }
+        }
+        int[] moved = new int[count];
+        int kept = 0;
+        for (int id = 0; id < count; id++) {
+            if (!reachable[id]) {
+                continue;
+            }
+            moved[id] = kept;
+            color[kept] = color[id];
+            minColor[kept] = minColor[id];
+            maxColor[kept] = maxColor[id];
+            for (int i = 0; i < 4; i++) {
+                int child = children[4 * id + i];
+                children[4 * kept + i] = child >= 0 ? moved[child] : child;
+            }
+            kept++;
+        }
+        rootId = moved[rootId];
+        count = kept;
+        rehash(table.length);
+    }
+
+    private void trim() {
+        if (count < color.length) {
+            resize(count);
+        }
+    }
+
+    private void resize(int capacity) {
+        color = Arrays.copyOf(color, capacity);
+        minColor = Arrays.copyOf(minColor, capacity);
+        maxColor = Arrays.copyOf(maxColor, capacity);
+        children = Arrays.copyOf(children, 4 * capacity);
+    }
+
+    /**
+     * Returns the root of the tree.
+     * @return The root of the tree, or null if the tree is empty.
+     */
+    public QTreeNode getRoot() {
+        if (rootId == NONE) {
+            return null;
+        }
+        if (root == null) {
+            root = new DagNode(this, rootId, null, 0, 0, size);
+        }
+        return root;
+    }
+
+    /**
+     * Returns the number of distinct nodes stored, each of which may stand for many quadrants.
+     * @return The number of nodes stored.
+     */
+    public int getNodeCount() {
+        return count;
+    }
+
+    /**
+     * Returns the width of the image covered by the tree.
+     * @return The width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image covered by the tree.
+     * @return The height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of bytes used by the arrays of the store, including its hash table.
+     * @return The number of bytes used by the store.
+     */
+    public long getByteSize() {
+        return 7L * 4 * color.length + 4L * table.length;
+    }
+
+    public int getColor(int id) {
+        return color[id];
+    }
+
+    public int getMinColor(int id) {
+        return minColor[id];
+    }
+
+    public int getMaxColor(int id) {
+        return maxColor[id];
+    }
+
+    /**
+     * Returns a child of a node.
+     * @param id The index of the node.
+     * @param index The index of the child, from 0 to 3.
+     * @return The index of the child, or -1 if the node is a leaf or the child lies outside the image.
+     */
+    public int getChild(int id, int index) {
+        return children[4 * id + index];
+    }
+
+    public boolean isLeaf(int id) {
+        return children[4 * id] == NONE;
+    }
+}
@@ -1,8 +1,8 @@
 
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import javax.swing.JComponent;
-import javax.imageio.ImageIO;
 import java.io.IOException;
 import java.awt.Graphics;
 import java.io.File;
@@ -12,29 +12,43 @@ import java.io.File;
 /* =============================================== */
 public class DrawImage extends JComponent {
 	private final int SIZE_CANVAS = 512;      // Size of the window where images are displayed
-	private final int SMALLEST_IMAGE = 256;
 	private final int FINAL_RESOLUTION = 9;   // Full image resolution
 	public static QuadrantTree imageTree;    // Quadrant tree storing the image
-	private static BufferedImage im;          // Image container
-	private static int imageType;
 	public static int size;                         // Image size
+	public static int width;                        // Width of the part of the image in the tree
+	public static int height;                       // Height of the part of the image in the tree
 	public static int initialResolution;
 	public static QTreeNode startingNode;
+	private static final long CACHE_BYTES = 32L << 20;  // Memory for canvases already drawn
+	private static RasterCache cache = new RasterCache(CACHE_BYTES);
 	
 	/* Display the image stored in the fiven file with the specified resolution */
 	public DrawImage(String imagefile, int resolution) {
+		this(imagefile, resolution, -1);
+	}
+	
+	/* Display the image stored in the given file with the specified resolution,
+	   merging every quadrant whose variance is at most the given tolerance into
+	   a single node; a negative tolerance keeps every pixel of the image      */
+	public DrawImage(String imagefile, int resolution, double tolerance) {
 		int[][] pixels;
 		try {
-			// Open the image file
-			im = ImageIO.read(new File(imagefile));
-			imageType = im.getType();
-			int width = im.getWidth();
-			int height = im.getHeight();
-			if (width < height) size = width; else size = height;
-			if (size < SMALLEST_IMAGE) {
-				System.out.println("Image must be of size at least "+SMALLEST_IMAGE+"x"+SMALLEST_IMAGE);
+			if (imagefile.endsWith(".qtree")) {
+				// A tree written by TreeFile is mapped instead of decoded and rebuilt
+				TreeFile treeFile = TreeFile.open(new File(imagefile).toPath());
+				imageTree = treeFile.getTree();
+				size = treeFile.getSize();
+				width = height = size;
+				startingNode = imageTree.getRoot();
+				cache.clear();
+				draw(resolution);
 				return;
 			}
+			// Open the image file
+			BufferedImage im = RasterIngest.read(new File(imagefile));
+			width = im.getWidth();
+			height = im.getHeight();
+			if (width < height) size = width; else size = height;
 
 			if (size <= SIZE_CANVAS) size = SIZE_CANVAS;
 			else if (size <= 2*SIZE_CANVAS) size = 2*SIZE_CANVAS;
@@ -43,18 +57,23 @@ public class DrawImage extends JComponent {
 				System.out.println("Image must be of size at most "+(4*SIZE_CANVAS)+"x"+(4*SIZE_CANVAS));
 				return;
 			}
-			pixels = new int[size][size];
-	
-			// Store the image pixels in the 2-dimensional array "pixels"
-			for (int xm = 0; xm < size; ++xm)
-				for (int ym = 0; ym < size; ++ym) 
-					if (xm < width && ym < height)
-						pixels[ym][xm] = im.getRGB(xm, ym);
-					else pixels[ym][xm] = 0;
+			// Store the image pixels in the 2-dimensional array "pixels", reading
+			// the raster a row at a time instead of calling getRGB for each pixel.
+			// The tree covers the image as it is, without padding it to a square;
+			// only a side longer than the canvas allows is cut
+			pixels = RasterIngest.pixels(im);
+			width = Math.min(width, size);
+			height = Math.min(height, size);
 
-			imageTree = new QuadrantTree(pixels);
+			if (tolerance < 0) imageTree = new QuadrantTree(pixels, width, height);
+			else {
+				imageTree = new QuadrantTree(pixels, width, height, QuadrantTree.ErrorMetric.VARIANCE, tolerance);
+				System.out.println("Nodes: " + imageTree.getNodeCount() + "; compression ratio: "
+						+ String.format("%.2f", imageTree.getCompressionRatio()));
+			}
 			startingNode = imageTree.getRoot();
-			ListNode<QTreeNode> head = imageTree.getPixels(imageTree.getRoot(),resolution);storePixels(head);			
+			cache.clear();
+			draw(resolution);
 		} catch (IOException e) {
 			System.out.println("Error opening file. " + e.getMessage());
 			System.exit(0);
@@ -67,11 +86,22 @@ public class DrawImage extends JComponent {
 	/* Draw the image with the given resolution with its upper left corner
 	   defined by the node storing the coordinates (x,y)                  */
 	public DrawImage(int resolution, int x, int y) {
-		ListNode<QTreeNode> head;
+		zoom(resolution, x, y);
+	}
+	
+	/* Draw the image with the given resolution, marking those pixels that have
+       the same color as the color of the pixel at position (x,y)           	*/
+	public DrawImage(int resolution, int x, int y, boolean mark) {
+		find(resolution, x, y);
+	}
+	
+	/* Redraw the image shown by this component with the given resolution with
+	   its upper left corner defined by the node storing the coordinates (x,y) */
+	public void zoom(int resolution, int x, int y) {
 		initialResolution = resolution;
 		if (resolution <= FINAL_RESOLUTION) {
 			startingNode = imageTree.getRoot();
-			head = imageTree.getPixels(startingNode,resolution);
+			draw(resolution);
 		}
 		else {
 			startingNode = imageTree.findNode(imageTree.getRoot(),resolution - FINAL_RESOLUTION,x,y);
@@ -79,16 +109,16 @@ public class DrawImage extends JComponent {
 				System.out.println("Error. There is no node containing the position ("+x+","+y+")");
 				System.exit(0);
 			}
-			head = imageTree.getPixels(startingNode,FINAL_RESOLUTION);
+			draw(FINAL_RESOLUTION);
 		}
-		storePixels(head);
+		repaintChanges();
 	}
 	
-	/* Draw the image with the given resolution, marking those pixels that have
-       the same color as the color of the pixel at position (x,y)           	*/
-	public DrawImage(int resolution, int x, int y, boolean mark) {
-		ListNode<QTreeNode> headAll;  // List with nodes of the same color as pixel at position (x,y)
-		Duple headColor;
+	/* Redraw the image shown by this component with the given resolution,
+	   marking those pixels that have the same color as the color of the pixel
+	   at position (x,y)                                                      */
+	public void find(int resolution, int x, int y) {
+		Duple headColor;  // List with nodes of the same color as pixel at position (x,y)
 		initialResolution = resolution;
 			
 		// Find the node at position (x,y)
@@ -100,31 +130,57 @@ public class DrawImage extends JComponent {
 		
 		// Find the nodes with the same color as the node as position (x,y)
 		headColor = imageTree.findMatching(startingNode,color,resolution);
-		headAll = imageTree.getPixels(startingNode,resolution);	
 
-		// Store the image pixels
-		storePixels(headAll);
+		// Store the image pixels; the marks are drawn over them and are not cached
+		draw(resolution);
 		Gui.markPixels(headColor,resolution);
+		repaintChanges();
 		System.out.println("Number of pixels with the same color as pixel ("+x+","+y+"): "+headColor.getCount());
 	}
 	
-	/* Draw the image on the screen */
+	/* Draw the image on the screen. The canvas is the image itself, so nothing is
+	   copied, and the graphics clip limits the drawing to the region repainted */
 	public void paint(Graphics g) {
-		int[] pix = new int[SIZE_CANVAS*SIZE_CANVAS];
-		int[][] matrixOfPixels = Gui.getPixelsMatrix();
-		int i = 0;
-		for (int xm = 0; xm < SIZE_CANVAS; ++xm)
-			for (int ym = 0; ym < SIZE_CANVAS; ++ym)
-				pix[i++] = matrixOfPixels[xm][ym];
-		im = new BufferedImage(SIZE_CANVAS,SIZE_CANVAS,imageType);
-		im.setRGB(0,0,SIZE_CANVAS,SIZE_CANVAS,pix,0,SIZE_CANVAS);	
-		g.drawImage(im,0,0,null);
+		g.drawImage(Gui.getCanvas().getImage(),0,0,null);
+	}
+	
+	/* Ask Swing to repaint the part of the canvas changed since the last call */
+	private void repaintChanges() {
+		Rectangle dirty = Gui.getCanvas().takeDirty();
+		if (!dirty.isEmpty()) repaint(dirty);
 	}
 	
 	public int getImageSize() {
 		return size;
 	}
 	
+	/* Draw the nodes at the given level below startingNode, copying the canvas
+	   from the cache if it was drawn before                                */
+	private void draw(int level) {
+		TreeEvents.Render event = new TreeEvents.Render();
+		event.start();
+		CanvasRenderer canvas = Gui.getCanvas();
+		int[] cached = cache.get(startingNode, level);
+		if (cached != null) {
+			// Only the rows that differ from the canvas shown are copied and repainted
+			canvas.load(cached);
+		}
+		else {
+			// Parts of the canvas outside the image are not covered by any node; only those
+			// are cleared, and only where they are not already black
+			canvas.beginDraw(0);
+			storePixels(imageTree.getPixels(startingNode, level));
+			canvas.endDraw();
+			cache.put(startingNode, level, canvas.getData());
+		}
+		event.finish(level, cached != null, canvas.getDirtyArea());
+	}
+	
+	/* Returns the cache of the canvases already drawn */
+	public static RasterCache getCache() {
+		return cache;
+	}
+	
 	/* Save the pixels stored in the singly linked list referenced by head,
 	   so they can be displayed in the screen.                              */
 	private void storePixels(ListNode<QTreeNode> head) {
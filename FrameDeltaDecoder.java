@@ -0,0 +1,139 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A class named FrameDeltaDecoder that reads back the trees of the frames of a video from a stream written by
+ * FrameDeltaEncoder. The tree of a frame shares with the tree of the previous frame every subtree the stream did
+ * not write again, so, as for a FrameSequence, the memory held by the trees read grows with the amount of change
+ * rather than with the number of frames.
+ */
+public class FrameDeltaDecoder {
+    private final DataInputStream in;
+    private final int width;
+    private final int height;
+    private final int imageType;
+    private QuadrantTree last;      // The tree of the last frame read
+    private byte[] codes;
+    private int nextCode;
+    private byte[] colors;
+    private int nextColor;
+
+    /**
+     * Constructor for FrameDeltaDecoder. It reads the header of the stream.
+     * @param stream The stream to read from.
+     * @throws IOException If the stream cannot be read or is not a frame delta stream.
+     */
+    public FrameDeltaDecoder(InputStream stream) throws IOException {
+        in = new DataInputStream(stream);
+        if (in.readInt() != FrameDeltaEncoder.MAGIC) {
+            throw new IOException("Not a quadrant tree frame delta stream");
+        }
+        if (in.readInt() != FrameDeltaEncoder.VERSION) {
+            throw new IOException("Unsupported quadrant tree frame delta stream version");
+        }
+        width = in.readInt();
+        height = in.readInt();
+        imageType = in.readInt();
+    }
+
+    /**
+     * Reads the tree of the next frame.
+     * @return The tree of the frame, or null at the end of the stream.
+     * @throws IOException If the stream cannot be read or is corrupt.
+     */
+    public QuadrantTree read() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int count = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        // A frame has at most one code per quadrant of a full tree: 1 + 4 + ... + size * size of them
+        long size = QuadrantTree.coverSize(width, height);
+        if (count < 0 || count > (4 * size * size - 1) / 3) {
+            throw new IOException("Corrupt frame delta: " + Integer.toUnsignedString(count) + " codes");
+        }
+        codes = new byte[(count + 3) / 4];
+        in.readFully(codes);
+        int newNodes = 0;
+        for (int i = 0; i < count; i++) {
+            if (code(i) != FrameDeltaEncoder.SHARED) {
+                newNodes++;
+            }
+        }
+        colors = new byte[3 * newNodes];
+        in.readFully(colors);
+        nextCode = 0;
+        nextColor = 0;
+        QTreeNode root = decode(last == null ? null : last.getRoot(), 0, 0, QuadrantTree.coverSize(width, height));
+        if (nextCode != count) {
+            throw new IOException("Corrupt frame delta: " + (count - nextCode) + " codes left over");
+        }
+        last = new QuadrantTree(root, width, height);
+        return last;
+    }
+
+    /**
+     * Creates the node of a quadrant from the next code, or takes the node of the previous frame.
+     * @param old The node at the same position in the previous frame, or null if there is none.
+     */
+    private QTreeNode decode(QTreeNode old, int x, int y, int size) throws IOException {
+        if (nextCode == 4 * codes.length) {
+            throw new IOException("Corrupt frame delta: missing codes");
+        }
+        int code = code(nextCode++);
+        if (code == FrameDeltaEncoder.SHARED) {
+            if (old == null) {
+                throw new IOException("Corrupt frame delta: no node to share at " + x + "," + y);
+            }
+            return old;
+        }
+        if (code != FrameDeltaEncoder.LEAF && code != FrameDeltaEncoder.INTERNAL) {
+            throw new IOException("Corrupt frame delta: unknown code " + code);
+        }
+        int color = 0xff000000 | (colors[nextColor] & 0xff) << 16 | (colors[nextColor + 1] & 0xff) << 8
+                    | (colors[nextColor + 2] & 0xff);
+        nextColor += 3;
+        QTreeNode node = new QTreeNode(null, x, y, size, color);
+        if (code == FrameDeltaEncoder.INTERNAL) {
+            int halfSize = size / 2;
+            for (int i = 0; i < 4; i++) {
+                int childX = x + (i % 2) * halfSize;
+                int childY = y + (i / 2) * halfSize;
+                if (childX < width && childY < height) {
+                    QTreeNode oldChild = old == null || old.isLeaf() ? null : old.getChild(i);
+                    QTreeNode child = decode(oldChild, childX, childY, halfSize);
+                    if (child != oldChild) {
+                        child.setParent(node);
+                    }
+                    node.setChild(child, i);
+                }
+            }
+        }
+        return node;
+    }
+
+    private int code(int index) {
+        return (codes[index >> 2] >> (6 - 2 * (index & 3))) & 3;
+    }
+
+    /**
+     * Returns the tree of the last frame read.
+     * @return The tree of the last frame, or null if no frame was read.
+     */
+    public QuadrantTree getLast() {
+        return last;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getImageType() {
+        return imageType;
+    }
+}
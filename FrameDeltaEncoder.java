@@ -0,0 +1,139 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A class named FrameDeltaEncoder that writes the trees of the frames of a video to a stream, each one as its
+ * difference from the tree of the previous frame. A subtree that the tree of a frame shares with the tree of the
+ * previous frame, as the trees of a FrameSequence do, is written as a single code, so a frame costs the bytes of
+ * its new nodes only.
+ *
+ * The stream starts with a header (magic, version, width, height, original image type). Then, for each frame, it
+ * holds the number of its codes, one 2 bit code per node in preorder padded to a whole byte, and the color of
+ * every new node packed in 3 bytes. A code is 0 for a new leaf, 1 for a new internal node, whose children follow
+ * it, and 2 for the node at the same position in the previous frame, whose subtree is not written again. The
+ * quadrants lying outside the image have no node and no code. Positions and sizes are not stored, and colors are
+ * read back opaque, as in TreeFile.
+ */
+public class FrameDeltaEncoder {
+    static final int MAGIC = 0x51544644;    // "QTFD"
+    static final int VERSION = 1;
+    static final int LEAF = 0;
+    static final int INTERNAL = 1;
+    static final int SHARED = 2;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private QTreeNode previous;             // The root of the last frame written
+    private byte[] codes = new byte[1 << 10];
+    private int codeCount;
+    private final ByteArrayOutputStream colors = new ByteArrayOutputStream();
+    private int frames;
+    private long newNodes;
+
+    /**
+     * Constructor for FrameDeltaEncoder. It writes the header of the stream.
+     * @param stream The stream to write to.
+     * @param theWidth The width of the frames.
+     * @param theHeight The height of the frames.
+     * @param imageType The type of the BufferedImages the frames were read from.
+     * @throws IOException If the stream cannot be written.
+     */
+    public FrameDeltaEncoder(OutputStream stream, int theWidth, int theHeight, int imageType) throws IOException {
+        out = new DataOutputStream(stream);
+        width = theWidth;
+        height = theHeight;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(imageType);
+    }
+
+    /**
+     * Writes the tree of the next frame.
+     * @param tree The tree of the frame, covering an image of the width and height of the stream. Every internal
+     *             node must have a child for each of its quadrants overlapping the image.
+     * @throws IOException If the stream cannot be written.
+     * @throws QTreeException If the tree does not cover an image of the size of the stream or a child is missing.
+     */
+    public void write(QuadrantTree tree) throws IOException {
+        QTreeNode root = tree.getRoot();
+        if (tree.getWidth() != width || tree.getHeight() != height || root == null
+            || root.getSize() != QuadrantTree.coverSize(width, height)) {
+            throw new QTreeException("The tree does not cover a frame of " + width + "x" + height + " pixels");
+        }
+        codeCount = 0;
+        colors.reset();
+        encode(root, previous);
+        out.writeInt(codeCount);
+        out.write(codes, 0, (codeCount + 3) / 4);
+        colors.writeTo(out);
+        out.flush();
+        newNodes += colors.size() / 3;
+        previous = root;
+        frames++;
+    }
+
+    /**
+     * Adds the codes and the colors of the subtree of a node in preorder.
+     * @param node The node.
+     * @param old The node at the same position in the previous frame, or null if there is none.
+     */
+    private void encode(QTreeNode node, QTreeNode old) {
+        if (node == old) {
+            code(SHARED);
+            return;
+        }
+        int color = node.getColor();
+        colors.write(color >> 16);
+        colors.write(color >> 8);
+        colors.write(color);
+        if (node.isLeaf()) {
+            code(LEAF);
+            return;
+        }
+        code(INTERNAL);
+        int halfSize = node.getSize() / 2;
+        for (int i = 0; i < 4; i++) {
+            if (node.getx() + (i % 2) * halfSize >= width || node.gety() + (i / 2) * halfSize >= height) {
+                continue;
+            }
+            QTreeNode child = node.getChild(i);
+            if (child == null) {
+                throw new QTreeException("Every quadrant of an internal node overlapping the image needs a node");
+            }
+            encode(child, old == null || old.isLeaf() ? null : old.getChild(i));
+        }
+    }
+
+    private void code(int code) {
+        if (codeCount / 4 == codes.length) {
+            codes = Arrays.copyOf(codes, 2 * codes.length);
+        }
+        if (codeCount % 4 == 0) {
+            codes[codeCount / 4] = 0;
+        }
+        codes[codeCount / 4] |= (byte) (code << (6 - 2 * (codeCount % 4)));
+        codeCount++;
+    }
+
+    /**
+     * Returns the number of frames written.
+     * @return The number of frames written.
+     */
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of nodes whose colors were written, over all the frames.
+     * @return The number of new nodes written.
+     */
+    public long getNewNodeCount() {
+        return newNodes;
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+/**
+ * A class named FrameSequence that builds the trees of the frames of a video, such as the frames of a camera, in
+ * which most of each frame is the same as in the previous one. The tree of a frame shares with the tree of the
+ * previous frame every subtree whose quadrant did not change, so only the paths from the root to the changed
+ * quadrants are allocated, and the memory held by the trees of a clip grows with the amount of change rather
+ * than with the number of frames. Every tree is the same, node for node, as the one built from its frame alone by
+ * new QuadrantTree(pixels, width, height) or new QuadrantTree(pixels, width, height, metric, tolerance).
+ *
+ * The sequence keeps a copy of the last frame added and the statistics of its quadrants. A new frame is compared
+ * with it row by row; the changed quadrants are found at a granularity of 4 x 4 pixels. The trees are never
+ * changed once built and cannot be edited, and a node shared by several frames keeps the parent it had in the
+ * frame that created it. FrameDeltaEncoder writes a sequence of such trees keeping only their new subtrees.
+ */
+public class FrameSequence {
+    private final int width;
+    private final int height;
+    private final QuadrantTree.ErrorMetric metric;
+    private final double tolerance;
+    private RegionPyramid stats;    // The last frame and the statistics of its quadrants
+    private QuadrantTree last;      // The tree of the last frame
+    private int frames;
+
+    /**
+     * Constructor for a FrameSequence that keeps every pixel of the frames.
+     * @param theWidth The width of the frames.
+     * @param theHeight The height of the frames.
+     */
+    public FrameSequence(int theWidth, int theHeight) {
+        this(theWidth, theHeight, null, 0);
+    }
+
+    /**
+     * Constructor for a FrameSequence that merges the quadrants of the frames within a tolerance.
+     * @param theWidth The width of the frames.
+     * @param theHeight The height of the frames.
+     * @param theMetric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @param theTolerance The largest color error a leaf may have.
+     * @throws QTreeException If the width or the height is not positive.
+     */
+    public FrameSequence(int theWidth, int theHeight, QuadrantTree.ErrorMetric theMetric, double theTolerance) {
+        if (theWidth <= 0 || theHeight <= 0) {
+            throw new QTreeException("The frames must have a positive width and height");
+        }
+        width = theWidth;
+        height = theHeight;
+        metric = theMetric;
+        tolerance = theTolerance;
+    }
+
+    /**
+     * Builds the tree of the next frame.
+     * @param pixels The pixels of the frame, at least height rows of at least width pixels. The array is only
+     *               read, and may be reused for the next frame.
+     * @return The tree of the frame.
+     * @throws QTreeException If the frame is smaller than the width and height of the sequence.
+     */
+    public QuadrantTree add(int[][] pixels) {
+        if (pixels.length < height || pixels[0].length < width) {
+            throw new QTreeException("The frame is smaller than the frames of the sequence");
+        }
+        if (stats == null) {
+            int[][] copy = new int[height][];
+            for (int y = 0; y < height; y++) {
+                copy[y] = Arrays.copyOf(pixels[y], width);
+            }
+            stats = new RegionPyramid(copy, width, height, QuadrantTree.coverSize(width, height));
+            last = new QuadrantTree(null, stats, width, height, metric, tolerance);
+        } else if (stats.load(pixels)) {
+            last = new QuadrantTree(last, stats, width, height, metric, tolerance);
+        } else {
+            last = new QuadrantTree(last.getRoot(), width, height);
+        }
+        frames++;
+        return last;
+    }
+
+    /**
+     * Returns the tree of the last frame added.
+     * @return The tree of the last frame, or null if no frame was added.
+     */
+    public QuadrantTree getLast() {
+        return last;
+    }
+
+    /**
+     * Returns the number of frames added.
+     * @return The number of frames added.
+     */
+    public int getFrameCount() {
+        return frames;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -43,7 +43,7 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 	private int windowHeight;
 
 	private int xcoord, ycoord;          	// Coordinates entered in the graphical user interface
-	private static int[][] pixelsMatrix; 	// Pixels of image to draw
+	private static CanvasRenderer canvas; 	// Pixels of image to draw
 	private int resolution = INITIAL_RESOLUTION;
 	private DrawImage dim;
 	private static int imageSize;  		// Size of image being displayed
@@ -51,11 +51,19 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 	/* ============================================== */
 	public Gui(int width, int height, String fileName) {
 	/* ============================================== */
+		this(width, height, fileName, -1);
+	}
+
+	/* Display the image compressed with the given tolerance; a negative
+	   tolerance keeps every pixel of the image                         */
+	/* ============================================================== */
+	public Gui(int width, int height, String fileName, double tolerance) {
+	/* ============================================================== */
 
 		try {
 			windowWidth = width;
 			windowHeight = height;
-			pixelsMatrix = new int[CANVAS_SIZE][CANVAS_SIZE];
+			canvas = new CanvasRenderer(CANVAS_SIZE, CANVAS_SIZE);
 
 			panel = new Board();
 			contentPane = getContentPane();
@@ -106,7 +114,7 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 
 			resolution = INITIAL_RESOLUTION;
 			
-			dim = new DrawImage(fileName, resolution);
+			dim = new DrawImage(fileName, resolution, tolerance);
 			contentPane.add(dim);
 			dim.addMouseListener(this);
 			setVisible(true);
@@ -116,27 +124,27 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 		}
 	}
 
-	/* Returns true if the given color are similar; returns false otherwise */
+	/* Returns true if the given color are similar; returns false otherwise.
+	   Two colors are similar if every channel differs by less than 15       */
 	public static boolean similarColor(int color1, int color2) {
-		int simred = 0xf << 16;
-		int simgreen = 0xf << 8;
-		int simblue = 15;
-		if ((Math.abs((color1 & 0xff0000) - (color2 & 0xff0000)) < simred) &&
-		    (Math.abs((color1 & 0xff00) - (color2 & 0xff00)) < simgreen) &&
-			(Math.abs((color1 & 0xff) - (color2 & 0xff)) < simblue)) return true;
-		else return false;
+		return ColorSimilarity.DEFAULT.similar(color1, color2);
 	}
 	
+	/* Returns true if some color whose channels lie between those of minColor and
+	   maxColor is similar to the given color; returns false otherwise           */
+	public static boolean similarRange(int color, int minColor, int maxColor) {
+		return ColorSimilarity.DEFAULT.mayBeSimilar(color, minColor, maxColor);
+	}
 	
-	public static int[][] getPixelsMatrix() {
-		return pixelsMatrix;
+	public static CanvasRenderer getCanvas() {
+		return canvas;
 	}
 	
 	/* Computes the average color of the square region of the image 
 	   "pixels" with upper left corner at (x,y) and size given by 
 	   the last parameter.                                   */
 	public static int averageColor(int[][] pixels, int x, int y, int size) {
-		int red, green, blue;
+		long red, green, blue;	// Sums of more than 2^23 pixels overflow an int
 		red = green = blue = 0;
 		for (int i = x; i < x + size; ++i)
 			for (int j = y; j < y + size; ++j) {
@@ -147,11 +155,11 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 			}
 
 		// Average the components and convert them back to a color
-		int n = size * size;		
+		long n = (long) size * size;
 		red = red / n;
 		green = green / n;
 		blue = blue / n;
-		return ((red & 0xFF) << 16) + ((green & 0xFF) << 8) + (blue & 0xFF); 
+		return (int) (((red & 0xFF) << 16) + ((green & 0xFF) << 8) + (blue & 0xFF));
 	}
 	
 	/* Stores the pixels represented by r in matrixPixels so the image can be     
@@ -159,17 +167,14 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 	public static void storePixel (QTreeNode r) {
 		int x = r.getx();
 		int y = r.gety();
-		int size = 0, i, j;
+		int size = 0;
 		int deltax = 0, deltay = 0, scale = 1;
 		QTreeNode startingNode = DrawImage.startingNode;
 		QTreeNode root = DrawImage.imageTree.getRoot();
 		imageSize = DrawImage.size;
 		try {
 			if (imageSize == CANVAS_SIZE) {
-		    		size = r.getSize();
-		    		for (i = x; i < x + size; ++i)
-		    			for (j = y; j < y + size; ++j)
-		    				pixelsMatrix[j][i] = r.getColor();	
+				fillRegion(x, y, r.getSize(), r.getColor(), DrawImage.width, DrawImage.height);
 				return;
 			}
 		
@@ -180,33 +185,22 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 			y = y - deltay;
 							
 			if (imageSize == 2*CANVAS_SIZE) {
-				if (startingNode != root) 
-					pixelsMatrix[y][x] = r.getColor();			
-				else {
-					scale = 2;
-					x = x/scale;
-					y = y/scale;
-					size = r.getSize()/scale;
-		    			for (i = x; i < x + size; ++i)
-		    				for (j = y; j < y + size; ++j)
-		    					pixelsMatrix[j][i] = r.getColor();								
-				}
+				// A leaf of a pruned tree may cover many pixels even when the
+				// starting node is zoomed in, so the whole region is always filled
+				if (startingNode == root) scale = 2;
 			}
 			else {
-				if (getLevel(startingNode) == 2) 
-					pixelsMatrix[y][x] = r.getColor();
+				if (getLevel(startingNode) == 2) scale = 1;
 				else if (startingNode == root)
 					scale = 4;
 				else if (startingNode.getParent() == root)
 					scale = 2;
-				x = x/scale;
-				y = y/scale;
-				size = r.getSize()/scale;
-				//pixelsMatrix[y/scale][x/scale] = r.getColor();
-		    		for (i = x; i < x + size; ++i)
-		    			for (j = y; j < y + size; ++j)
-		    				pixelsMatrix[j][i] = r.getColor();			
 			}
+			x = x/scale;
+			y = y/scale;
+			size = r.getSize()/scale;
+			fillRegion(x, y, size, r.getColor(), (DrawImage.width - deltax + scale - 1)/scale,
+					   (DrawImage.height - deltay + scale - 1)/scale);
 
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
@@ -214,6 +208,13 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 		}
 	}
 	
+	/* Fills the square of the canvas with upper left corner (x,y) and the given
+	   size; the parts of the square outside of the canvas, or to the right of
+	   column maxX or below row maxY, where the image ends, are ignored        */
+	private static void fillRegion(int x, int y, int size, int color, int maxX, int maxY) {
+		canvas.fill(x, y, Math.min(x + size, maxX), Math.min(y + size, maxY), color);
+	}
+	
 	/* Mark the pixels in the list stored in head */
 	public static void markPixels(Duple head, int resolution) {
 		QTreeNode r;
@@ -223,18 +224,13 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 		QTreeNode root = DrawImage.imageTree.getRoot();
 		imageSize = DrawImage.size;
 		
-		if (DrawImage.size == 2*CANVAS_SIZE) scale = 2;
-		else if (DrawImage.size == 4*CANVAS_SIZE) scale = 4;
 		ListNode<QTreeNode> p = head.getFront();
 		while (p != null) {
 			r = (QTreeNode)p.getData();
 			x = r.getx();
 			y = r.gety();
 			if (imageSize == CANVAS_SIZE) {
-		    		size = r.getSize();
-		    		for (int i = x; i < x + size; ++i)
-		    			for (int j = y; j < y + size; ++j)
-		    				pixelsMatrix[j][i] = 0xff0000;	
+				fillRegion(x, y, r.getSize(), 0xff0000, DrawImage.width, DrawImage.height);
 			}	
 			else {
 				deltax = startingNode.getx();
@@ -242,37 +238,23 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 				x = x - deltax; 	// Translate the coordinates of the node with respect
 							// to the starting node
 				y = y - deltay;
-							
+				
+				scale = 1;
 				if (imageSize == 2*CANVAS_SIZE) {
-					if (startingNode != root) {
-						pixelsMatrix[y][x] = 0xff0000;	
-					}		
-					else {
-						scale = 2;
-						x = x/scale;
-						y = y/scale;
-						size = r.getSize()/scale;
-						for (int i = x; i < x + size; ++i)
-							for (int j = y; j < y + size; ++j)
-								pixelsMatrix[j][i] = 0xff0000;								
-					}
+					if (startingNode == root) scale = 2;
 				}
 				else {
-					if (getLevel(startingNode) == 2) 
-						pixelsMatrix[y][x] = 0xff0000;
+					if (getLevel(startingNode) == 2) scale = 1;
 					else if (startingNode == root)
 						scale = 4;
 					else if (startingNode.getParent() == root)
 						scale = 2;
-					x = x/scale;
-					y = y/scale;
-					size = r.getSize()/scale;
-					//pixelsMatrix[y/scale][x/scale] = r.getColor();
-		    			for (int i = x; i < x + size; ++i)
-		    				for (int j = y; j < y + size; ++j)
-		    					pixelsMatrix[j][i] = 0xff0000;			
 				}
-
+				x = x/scale;
+				y = y/scale;
+				size = r.getSize()/scale;
+				fillRegion(x, y, size, 0xff0000, (DrawImage.width - deltax + scale - 1)/scale,
+						   (DrawImage.height - deltay + scale - 1)/scale);
 			}
 			p = p.getNext();			
 		}
@@ -337,11 +319,7 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 			xcoord = (xcoord * scale) + deltax;
 			ycoord = (ycoord * scale) + deltay;
 			
-			contentPane.remove(dim);			
-			dim = new DrawImage(resolution,xcoord,ycoord,true);
-			contentPane.add(dim);
-			dim.addMouseListener(this);			
-			setVisible(true);				
+			dim.find(resolution,xcoord,ycoord);
 		} else if (s.equals("++Res")) {
 
 			if (((imgSize <= CANVAS_SIZE) && (resolution < FINAL_RESOLUTION)) ||
@@ -359,28 +337,25 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 				}
 				xcoord = xcoord * scale + deltax;
 				ycoord = ycoord * scale + deltay;
-				if (xcoord >= imgSize || ycoord >= imgSize) {
+				if (xcoord >= DrawImage.width || ycoord >= DrawImage.height) {
 					xcoord = 0;
 					ycoord = 0;
 				}
-				contentPane.remove(dim);							
-				dim = new DrawImage(resolution,xcoord,ycoord);
-				contentPane.add(dim);
-				dim.addMouseListener(this);				
-				setVisible(true);
+				dim.zoom(resolution,xcoord,ycoord);
 			}
 		} else if (s.equals("--Res")) {
 				if (resolution >= MIN_RESOLUTION) {
 					if ((imgSize == 4*CANVAS_SIZE) && (resolution == MAX_RESOLUTION)) --resolution;
 					--resolution;
-					if (xcoord == 0 && ycoord == 0) xcoord = ycoord = imgSize / 2;					
-					contentPane.remove(dim);																
-					dim = new DrawImage(resolution,xcoord,ycoord);
-					contentPane.add(dim);
-					dim.addMouseListener(this);					
-					setVisible(true);	
+					if (xcoord == 0 && ycoord == 0) {
+						xcoord = DrawImage.width / 2;
+						ycoord = DrawImage.height / 2;
+					}					
+					dim.zoom(resolution,xcoord,ycoord);
 				}					
 		}else if (s.equals("Exit")) {
+			// Started with -Dqtree.metrics=true, print what the session spent its time on
+			if (TreeMetrics.isEnabled()) TreeMetrics.dump(System.out);
 			dispose();
 			System.exit(0);
 		}
@@ -411,7 +386,8 @@ public class Gui extends JFrame implements ActionListener, MouseListener {
 		Gui window;
 		if (args.length == 1) 
 			window = new Gui(530, 590, args[0]); // Set up drawing environment;
-		else if (args.length == 2) ;
+		else if (args.length == 2)
+			window = new Gui(530, 590, args[0], Double.parseDouble(args[1]));
 	}		
 }
 
@@ -0,0 +1,153 @@
+/**
+ * A class named MappedNode that is a view of a node stored in a TreeFile. The view knows the preorder index of
+ * the node in the file, and its position and size, which are computed while descending from the root.
+ * The nodes of a file are read-only.
+ */
+public class MappedNode extends QTreeNode {
+    private final TreeFile file;
+    private final int index;        // Preorder index of the node in the file
+    private final int x;
+    private final int y;
+    private final int size;
+    private volatile int[] childIndexes;    // Preorder indexes of the children, published once all are found
+
+    /**
+     * Constructor for MappedNode.
+     * @param theFile The file holding the node.
+     * @param theIndex The preorder index of the node.
+     * @param theParent The parent of the node, or null for the root.
+     * @param xcoord The x-coordinate of the node.
+     * @param ycoord The y-coordinate of the node.
+     * @param theSize The size of the node.
+     */
+    MappedNode(TreeFile theFile, int theIndex, QTreeNode theParent, int xcoord, int ycoord, int theSize) {
+        super(theParent);
+        file = theFile;
+        index = theIndex;
+        x = xcoord;
+        y = ycoord;
+        size = theSize;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getx() {
+        return x;
+    }
+
+    @Override
+    public int gety() {
+        return y;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getColor() {
+        return file.color(index);
+    }
+
+    @Override
+    public QTreeNode getChild(int childIndex) throws QTreeException {
+        if (childIndex < 0 || childIndex > 3) {
+            throw new QTreeException("Invalid index or null children array");
+        }
+        if (isLeaf()) {
+            return null;
+        }
+        int halfSize = size / 2;
+        int[] children = childIndexes;
+        if (children == null) {
+            // The children follow the node in preorder, each one after the whole subtree of the previous one.
+            // The array is filled before it is published, so a concurrent reader never sees it half filled.
+            children = new int[4];
+            children[0] = index + 1;
+            for (int i = 1; i < 4; i++) {
+                children[i] = children[i - 1] + file.subtreeSize(children[i - 1], halfSize);
+            }
+            childIndexes = children;
+        }
+        return new MappedNode(file, children[childIndex], this, x + (childIndex % 2) * halfSize,
+                              y + (childIndex / 2) * halfSize, childIndex == 3 ? size - halfSize : halfSize);
+    }
+
+    @Override
+    public boolean isLeaf() {
+        return !file.isInternal(index);
+    }
+
+    @Override
+    public boolean contains(int xcoord, int ycoord) {
+        return xcoord >= x && xcoord < x + size && ycoord >= y && ycoord < y + size;
+    }
+
+    /**
+     * The nodes of a tree file cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setx(int newx) {
+        throw new QTreeException("The nodes of a tree file are read-only");
+    }
+
+    /**
+     * The nodes of a tree file cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void sety(int newy) {
+        throw new QTreeException("The nodes of a tree file are read-only");
+    }
+
+    /**
+     * The nodes of a tree file cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setSize(int newSize) {
+        throw new QTreeException("The nodes of a tree file are read-only");
+    }
+
+    /**
+     * The nodes of a tree file cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setColor(int newColor) {
+        throw new QTreeException("The nodes of a tree file are read-only");
+    }
+
+    /**
+     * The nodes of a tree file cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setParent(QTreeNode newParent) {
+        throw new QTreeException("The nodes of a tree file are read-only");
+    }
+
+    /**
+     * The nodes of a tree file cannot be changed.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setChild(QTreeNode newChild, int childIndex) throws QTreeException {
+        throw new QTreeException("The nodes of a tree file are read-only");
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MappedNode && ((MappedNode) other).file == file && ((MappedNode) other).index == index;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(file) * 31 + index;
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.Arrays;
+
+/**
+ * A class named MortonIndex that is a linear quadtree: an index of the nodes of a QuadrantTree by locational code.
+ * The code of a node at depth d is a 1 followed by the interleaved bits of its row and column among the nodes of
+ * depth d (its Morton or Z-order code), so the code of a parent is the code of its child shifted right by two and
+ * the codes of a level are all larger than the codes of the levels above it. The codes are kept in one sorted array;
+ * the node covering a point at a given level is found with bit arithmetic and a search of that level's codes,
+ * instead of a descent from the root. The index only works for trees whose size is a power of two.
+ *
+ * In a pruned tree the leaves are also listed by the Z-order code of their upper left pixel. The leaves tile the
+ * image in that order, so the leaf covering a pixel is the last one whose code is not larger than the pixel's.
+ */
+public class MortonIndex {
+    private static final int DIRECTORY_BITS = 20;   // Leading code bits resolved by table lookup in the leaf list
+    private static final int SMALL_LEVEL = 1 << 15; // Levels with fewer nodes are searched before the leaves
+
+    private final int maxDepth;
+    private final long[] codes;         // Sorted locational codes
+    private final int[] levelStart;     // Position in codes of the first node of each depth, plus the end
+    private final QTreeNode[] nodes;    // The node of each code, for trees of QTreeNode objects
+    private final int[] storeIndexes;   // The index of the node of each code, for trees kept in a NodeStore
+    private final NodeStore store;
+    private final long[] leafCodes;     // Z-order code of the upper left pixel of every leaf, or null for a full tree
+    private final int[] leafPositions;  // Position in codes of every leaf
+    private final int[] directory;      // First leaf whose code starts with each value of the leading code bits
+    private final int directoryShift;
+    private int leafCount;              // Used while the index is built
+
+    /**
+     * Constructor for MortonIndex.
+     * @param tree The tree to index.
+     * @throws QTreeException If the size of the tree is not a power of two.
+     */
+    public MortonIndex(QuadrantTree tree) {
+        QTreeNode root = tree.getRoot();
+        if (root == null || Integer.bitCount(root.getSize()) != 1) {
+            throw new QTreeException("A Morton index needs a tree whose size is a power of two");
+        }
+        maxDepth = Integer.numberOfTrailingZeros(root.getSize());
+        store = tree.getStore();
+
+        int[] levelCount = new int[maxDepth + 1];
+        count(root, 0, levelCount);
+        levelStart = new int[maxDepth + 2];
+        boolean full = true;
+        for (int d = 0; d <= maxDepth; d++) {
+            levelStart[d + 1] = levelStart[d] + levelCount[d];
+            full &= levelCount[d] == 1L << (2 * d);
+        }
+        codes = new long[levelStart[maxDepth + 1]];
+        nodes = store == null ? new QTreeNode[codes.length] : null;
+        storeIndexes = store == null ? null : new int[codes.length];
+        leafCodes = full ? null : new long[leafCount];
+        leafPositions = full ? null : new int[leafCount];
+
+        // A preorder traversal visits the nodes of every level and the leaves in increasing Z-order,
+        // so filling each list in the order the nodes are reached leaves the codes sorted
+        int[] fill = Arrays.copyOf(levelStart, maxDepth + 1);
+        leafCount = 0;
+        if (store == null) {
+            add(root, 0, fill);
+        } else {
+            add(0, 0, fill);
+        }
+
+        int bits = Math.min(DIRECTORY_BITS, 2 * maxDepth);
+        directoryShift = 2 * maxDepth - bits;
+        if (full) {
+            directory = null;
+        } else {
+            directory = new int[(1 << bits) + 1];
+            int leaf = 0;
+            for (int prefix = 0; prefix <= 1 << bits; prefix++) {
+                while (leaf < leafCount && (leafCodes[leaf] >>> directoryShift) < prefix) {
+                    leaf++;
+                }
+                directory[prefix] = leaf;
+            }
+        }
+    }
+
+    private void count(QTreeNode node, int depth, int[] levelCount) {
+        if (node == null) {
+            return;
+        }
+        levelCount[depth]++;
+        if (node.isLeaf()) {
+            leafCount++;
+        } else {
+            for (int i = 0; i < 4; i++) {
+                count(node.getChild(i), depth + 1, levelCount);
+            }
+        }
+    }
+
+    private void add(QTreeNode node, int depth, int[] fill) {
+        if (node == null) {
+            return;
+        }
+        int position = fill[depth]++;
+        codes[position] = code(node.getx(), node.gety(), depth);
+        nodes[position] = node;
+        if (node.isLeaf()) {
+            addLeaf(node.getx(), node.gety(), position);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                add(node.getChild(i), depth + 1, fill);
+            }
+        }
+    }
+
+    private void add(int index, int depth, int[] fill) {
+        if (store.getSize(index) == 0) {
+            return;     // A child outside the image
+        }
+        int position = fill[depth]++;
+        codes[position] = code(store.getx(index), store.gety(index), depth);
+        storeIndexes[position] = index;
+        int first = store.getFirstChild(index);
+        if (first < 0) {
+            addLeaf(store.getx(index), store.gety(index), position);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                add(first + i, depth + 1, fill);
+            }
+        }
+    }
+
+    private void addLeaf(int x, int y, int position) {
+        if (leafCodes != null) {
+            leafCodes[leafCount] = interleave(x) | (interleave(y) << 1);
+            leafPositions[leafCount] = position;
+            leafCount++;
+        }
+    }
+
+    /**
+     * Returns the locational code of the node at the specified depth that contains the pixel (x,y).
+     * @param x The x-coordinate of the pixel.
+     * @param y The y-coordinate of the pixel.
+     * @param depth The depth of the node.
+     * @return The locational code of the node.
+     */
+    public long code(int x, int y, int depth) {
+        int shift = maxDepth - depth;
+        return (1L << (2 * depth)) | interleave(x >> shift) | (interleave(y >> shift) << 1);
+    }
+
+    /**
+     * Spreads the bits of the argument apart, so bit i moves to bit 2i.
+     */
+    private static long interleave(int value) {
+        long v = value & 0xffffffffL;
+        v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+        v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+        v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+
+    /**
+     * Returns the node at the specified coordinates, with the same results as QuadrantTree.findNode.
+     * @param r A node of the indexed tree.
+     * @param theLevel The number of levels below r of the node to find.
+     * @param x The x-coordinate of the pixel, relative to r.
+     * @param y The y-coordinate of the pixel, relative to r.
+     * @return The node at level theLevel below r containing the pixel, the leaf above that level containing it,
+     *         or null if the pixel is not in r.
+     */
+    public QTreeNode findNode(QTreeNode r, int theLevel, int x, int y) {
+        if (r == null || theLevel < 0) {
+            return null;
+        }
+        if (theLevel == 0 || r.isLeaf()) {
+            return r;
+        }
+        int size = r.getSize();
+        if (x < 0 || x > size - 1 || y < 0 || y > size - 1) {
+            return null;
+        }
+        int top = maxDepth - Integer.numberOfTrailingZeros(size);
+        int target = (int) Math.min((long) top + theLevel, maxDepth);
+        int px = r.getx() + x;
+        int py = r.gety() + y;
+
+        int levelCount = levelStart[target + 1] - levelStart[target];
+        if (leafCodes == null || levelCount == 1L << (2 * target) || levelCount <= SMALL_LEVEL) {
+            // The codes of the level can be searched directly or without leaving the cache
+            int position = find(code(px, py, target), target);
+            if (position >= 0 || leafCodes == null) {
+                return node(position);
+            }
+        }
+        // The leaf covering the pixel is the answer unless it lies below the target level,
+        // in which case the node at the target level is one of its ancestors
+        int leaf = floorLeaf(interleave(px) | (interleave(py) << 1));
+        QTreeNode node = leaf < 0 ? null : node(leafPositions[leaf]);
+        if (node == null || !node.contains(px, py)) {
+            return null;    // The pixel is in a missing child
+        }
+        if (maxDepth - Integer.numberOfTrailingZeros(node.getSize()) <= target) {
+            return node;
+        }
+        return node(find(code(px, py, target), target));
+    }
+
+    private QTreeNode node(int position) {
+        if (position < 0) {
+            return null;
+        }
+        return nodes != null ? nodes[position] : store.node(storeIndexes[position]);
+    }
+
+    /**
+     * Returns the position of a code among the codes of its level.
+     * @return The position of the code, or -1 if there is no node with that code.
+     */
+    private int find(long code, int depth) {
+        int start = levelStart[depth];
+        int end = levelStart[depth + 1];
+        long first = 1L << (2 * depth);
+        if (end - start == first) {
+            // Every node of the level is present, so the code gives the position directly
+            return start + (int) (code - first);
+        }
+        int position = Arrays.binarySearch(codes, start, end, code);
+        return position >= 0 ? position : -1;
+    }
+
+    /**
+     * Returns the last leaf whose code is not larger than the specified code.
+     * @return The position of the leaf in leafCodes, or -1 if every leaf has a larger code.
+     */
+    private int floorLeaf(long code) {
+        int prefix = (int) (code >>> directoryShift);
+        int position = Arrays.binarySearch(leafCodes, directory[prefix], directory[prefix + 1], code);
+        return position >= 0 ? position : -position - 2;
+    }
+
+    /**
+     * Returns the number of nodes in the index.
+     * @return The number of nodes in the index.
+     */
+    public int size() {
+        return codes.length;
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A class named NodeSpliterator that traverses the nodes of a quadrant tree at a given level, in the order
+ * getPixels lists them, optionally keeping only the nodes whose color passes a filter. The subtrees still to be
+ * traversed are kept on a stack whose top is the next subtree in order, so advancing allocates nothing, and
+ * splitting hands the first half of the stack to the new spliterator. A subtree whose color bounds cannot pass
+ * the filter is skipped without visiting its nodes.
+ */
+public class NodeSpliterator implements Spliterator<QTreeNode> {
+    private QTreeNode[] nodes;          // Roots of the subtrees not yet traversed; the last one is traversed first
+    private int[] levels;               // Levels below each subtree root of the nodes to report
+    private int top;                    // Number of subtrees on the stack
+    private final ColorFilter filter;   // Colors of the nodes to report, or null to report every node
+
+    /**
+     * The colors of the nodes to report.
+     */
+    public interface ColorFilter extends IntPredicate {
+        /**
+         * Returns true if some color whose channels lie within the specified bounds may pass the filter.
+         * @param minColor The minimum of each channel, packed as RGB.
+         * @param maxColor The maximum of each channel, packed as RGB.
+         * @return False if no color within the bounds passes the filter.
+         */
+        default boolean mayPass(int minColor, int maxColor) {
+            return true;
+        }
+    }
+
+    /**
+     * Constructor for NodeSpliterator.
+     * @param r The node to start from.
+     * @param theLevel The level below r of the nodes to report. Leaves above that level are reported too;
+     *                 a negative level reports the leaves.
+     * @param theFilter The colors of the nodes to report, or null to report every node.
+     */
+    public NodeSpliterator(QTreeNode r, int theLevel, ColorFilter theFilter) {
+        this(new QTreeNode[16], new int[16], theFilter);
+        if (r != null) {
+            push(r, theLevel);
+        }
+    }
+
+    private NodeSpliterator(QTreeNode[] theNodes, int[] theLevels, ColorFilter theFilter) {
+        nodes = theNodes;
+        levels = theLevels;
+        filter = theFilter;
+    }
+
+    private void push(QTreeNode node, int level) {
+        if (filter != null && !filter.mayPass(node.getMinColor(), node.getMaxColor())) {
+            return;
+        }
+        if (top == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * top);
+            levels = Arrays.copyOf(levels, 2 * top);
+        }
+        nodes[top] = node;
+        levels[top] = level;
+        top++;
+    }
+
+    /**
+     * Replaces the subtree on top of the stack with the subtrees of its children, last child first.
+     */
+    private void expand() {
+        top--;
+        QTreeNode node = nodes[top];
+        int level = levels[top];
+        nodes[top] = null;
+        for (int i = 3; i >= 0; i--) {
+            QTreeNode child = node.getChild(i);
+            if (child != null) {
+                push(child, level - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the subtree on top of the stack is a node to report rather than a node to expand.
+     */
+    private boolean reportTop() {
+        return levels[top - 1] == 0 || nodes[top - 1].isLeaf();
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super QTreeNode> action) {
+        while (top > 0) {
+            if (!reportTop()) {
+                expand();
+                continue;
+            }
+            QTreeNode node = nodes[--top];
+            nodes[top] = null;
+            if (filter == null || filter.test(node.getColor())) {
+                action.accept(node);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super QTreeNode> action) {
+        while (top > 0) {
+            QTreeNode node = nodes[--top];
+            nodes[top] = null;
+            visit(node, levels[top], filter, action);
+        }
+    }
+
+    /**
+     * Reports the nodes of a subtree, recursively.
+     * @param node The root of the subtree.
+     * @param level The level below node of the nodes to report.
+     * @param filter The colors of the nodes to report, or null to report every node.
+     * @param action The consumer the nodes are reported to.
+     * @return The number of nodes reported.
+     */
+    static int visit(QTreeNode node, int level, ColorFilter filter, Consumer<? super QTreeNode> action) {
+        if (node == null || (filter != null && !filter.mayPass(node.getMinColor(), node.getMaxColor()))) {
+            return 0;
+        }
+        if (level == 0 || node.isLeaf()) {
+            if (filter == null || filter.test(node.getColor())) {
+                action.accept(node);
+                return 1;
+            }
+            return 0;
+        }
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+            count += visit(node.getChild(i), level - 1, filter, action);
+        }
+        return count;
+    }
+
+    @Override
+    public Spliterator<QTreeNode> trySplit() {
+        while (top == 1 && !reportTop()) {
+            expand();
+        }
+        if (top < 2) {
+            return null;
+        }
+        // The subtrees on top of the stack come first, so they form the prefix
+        int half = top / 2;
+        int prefixSize = top - half;
+        QTreeNode[] prefixNodes = new QTreeNode[Math.max(16, prefixSize)];
+        int[] prefixLevels = new int[prefixNodes.length];
+        System.arraycopy(nodes, half, prefixNodes, 0, prefixSize);
+        System.arraycopy(levels, half, prefixLevels, 0, prefixSize);
+        Arrays.fill(nodes, half, top, null);
+        top = half;
+        NodeSpliterator prefix = new NodeSpliterator(prefixNodes, prefixLevels, filter);
+        prefix.top = prefixSize;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        long estimate = 0;
+        for (int i = 0; i < top; i++) {
+            long pixels = (long) nodes[i].getSize() * nodes[i].getSize();
+            int level = levels[i];
+            estimate += level >= 0 && level < 31 ? Math.min(1L << (2 * level), pixels) : pixels;
+        }
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
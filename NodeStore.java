@@ -0,0 +1,273 @@
+import java.util.Arrays;
+
+/**
+ * A class named NodeStore that keeps the nodes of a quadrant tree in parallel int arrays instead of one
+ * QTreeNode object per region. Node i covers the square with upper left corner (x[i], y[i]) and side size[i];
+ * its four children are stored consecutively starting at firstChild[i], or firstChild[i] is -1 if it is a leaf.
+ * In a tree covering an image that is not a square, a child lying outside the image has size 0 and is read as null.
+ * The nodes are read through StoredNode views, so the methods of QuadrantTree work on a stored tree unchanged.
+ */
+public class NodeStore {
+    private int[] x;
+    private int[] y;
+    private int[] size;
+    private int[] color;
+    private int[] firstChild;
+    private int[] parent;
+    private int count;          // Number of nodes in use
+    private int width;          // Width of the image covered by the tree
+    private int height;         // Height of the image covered by the tree
+    private StoredNode root;    // The root view is kept so it can be compared by reference, as Gui does
+    private static final int PRUNED_CAPACITY = 1 << 20;    // Most nodes reserved up front for a pruned tree
+
+    private NodeStore(int capacity) {
+        x = new int[capacity];
+        y = new int[capacity];
+        size = new int[capacity];
+        color = new int[capacity];
+        firstChild = new int[capacity];
+        parent = new int[capacity];
+    }
+
+    /**
+     * Builds the full tree of the specified pixels.
+     * @param pixels 2d array consisting of pixels of the image.
+     * @return The stored tree.
+     */
+    public static NodeStore build(int[][] pixels) {
+        return build(pixels, QuadrantTree.ErrorMetric.VARIANCE, -1);
+    }
+
+    /**
+     * Builds the tree of the specified pixels, making a quadrant a leaf as soon as its color error is within
+     * the tolerance. The tree is the same as the one built by new QuadrantTree(pixels, metric, tolerance).
+     * @param pixels 2d array consisting of pixels of the image.
+     * @param metric The way the color error of a quadrant is measured.
+     * @param tolerance The largest color error a leaf may have; a negative tolerance keeps every pixel.
+     * @return The stored tree.
+     */
+    public static NodeStore build(int[][] pixels, QuadrantTree.ErrorMetric metric, double tolerance) {
+        int n = pixels.length;
+        return build(pixels, n, n, n, metric, tolerance);
+    }
+
+    /**
+     * Builds the tree of an image of any width and height, making a quadrant a leaf as soon as its color error
+     * is within the tolerance. The tree is the same as the one built by
+     * new QuadrantTree(pixels, width, height, metric, tolerance).
+     * @param pixels 2d array consisting of pixels of the image, at least height rows of at least width pixels.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param metric The way the color error of a quadrant is measured.
+     * @param tolerance The largest color error a leaf may have; a negative tolerance keeps every pixel.
+     * @return The stored tree.
+     */
+    public static NodeStore build(int[][] pixels, int width, int height, QuadrantTree.ErrorMetric metric,
+                                  double tolerance) {
+        if (width < 0 || height < 0 || height > pixels.length || (height > 0 && width > pixels[0].length)) {
+            throw new QTreeException("The image is larger than its array of pixels");
+        }
+        return build(pixels, width, height, QuadrantTree.coverSize(width, height), metric, tolerance);
+    }
+
+    private static NodeStore build(int[][] pixels, int width, int height, int n, QuadrantTree.ErrorMetric metric,
+                                   double tolerance) {
+        // A full tree has about 4/3 width * height nodes; a pruned tree starts smaller and grows the arrays
+        // as needed, so its memory follows the number of nodes it keeps rather than the size of the image
+        long fullTree = (4L * width * height + 2) / 3;
+        NodeStore store = new NodeStore((int) Math.min(tolerance < 0 ? fullTree : Math.min(fullTree / 4 + 1, PRUNED_CAPACITY),
+                                                       Integer.MAX_VALUE - 8));
+        store.width = width;
+        store.height = height;
+        if (n == 0) {
+            return store;
+        }
+        RegionStats[][] scratch = new RegionStats[32][4];
+        for (RegionStats[] level : scratch) {
+            for (int i = 0; i < 4; i++) {
+                level[i] = new RegionStats();
+            }
+        }
+        store.allocate(1);
+        store.parent[0] = -1;
+        store.fill(pixels, 0, 0, 0, n, new RegionStats(), metric, tolerance, scratch, 0);
+        store.trim();
+        return store;
+    }
+
+    /**
+     * Fills in the node at the specified index and, if it is split, its descendants.
+     * @param stats The statistics of the quadrant, filled in by this method.
+     */
+    private void fill(int[][] pixels, int index, int nx, int ny, int nsize, RegionStats stats,
+                      QuadrantTree.ErrorMetric metric, double tolerance, RegionStats[][] scratch, int depth) {
+        x[index] = nx;
+        y[index] = ny;
+        size[index] = nsize;
+        firstChild[index] = -1;
+        if (nx >= width || ny >= height) {
+            size[index] = 0;    // The quadrant lies outside the image
+            color[index] = 0;
+            return;
+        }
+        if (nsize == 1) {
+            stats.add(pixels[ny][nx]);
+            color[index] = pixels[ny][nx];
+            return;
+        }
+        int halfSize = nsize / 2;
+        int lastSize = nsize - halfSize;
+        int block = allocate(4);
+        RegionStats[] childStats = scratch[depth];
+        for (int i = 0; i < 4; i++) {
+            parent[block + i] = index;
+            childStats[i].clear();
+            fill(pixels, block + i, nx + (i % 2) * halfSize, ny + (i / 2) * halfSize, i == 3 ? lastSize : halfSize,
+                 childStats[i], metric, tolerance, scratch, depth + 1);
+            stats.add(childStats[i]);
+        }
+        if (lastSize != halfSize) {
+            for (int i = ny; i < ny + halfSize; i++) {
+                stats.add(pixels[i][nx + nsize - 1]);
+            }
+            for (int j = nx; j < nx + halfSize; j++) {
+                stats.add(pixels[ny + nsize - 1][j]);
+            }
+        }
+        color[index] = stats.averageColor();
+        double error = metric == QuadrantTree.ErrorMetric.VARIANCE ? stats.variance() : stats.maxDeviation();
+        if (error <= tolerance) {
+            count = block;  // Every descendant was allocated after the children, so all of them are released
+        } else {
+            firstChild[index] = block;
+        }
+    }
+
+    /**
+     * Reserves consecutive nodes at the end of the arrays, growing them if needed.
+     * @param n The number of nodes to reserve.
+     * @return The index of the first reserved node.
+     */
+    private int allocate(int n) {
+        if (count + n > x.length) {
+            int capacity = (int) Math.min(Math.max(2L * x.length, count + n), Integer.MAX_VALUE - 8);
+            resize(capacity);
+        }
+        int first = count;
+        count += n;
+        return first;
+    }
+
+    private void trim() {
+        if (count < x.length) {
+            resize(count);
+        }
+    }
+
+    private void resize(int capacity) {
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        size = Arrays.copyOf(size, capacity);
+        color = Arrays.copyOf(color, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+    }
+
+    /**
+     * Returns the root of the tree.
+     * @return The root of the tree, or null if the tree is empty.
+     */
+    public QTreeNode getRoot() {
+        if (count == 0) {
+            return null;
+        }
+        if (root == null) {
+            root = new StoredNode(this, 0);
+        }
+        return root;
+    }
+
+    /**
+     * Returns a view of the node at the specified index.
+     * @param index The index of the node, or -1.
+     * @return The node, or null if the index is -1.
+     */
+    public QTreeNode node(int index) {
+        if (index < 0) {
+            return null;
+        }
+        return index == 0 ? getRoot() : new StoredNode(this, index);
+    }
+
+    /**
+     * Returns the number of nodes in the tree, including the children lying outside the image.
+     * @return The number of nodes in the tree.
+     */
+    public int getNodeCount() {
+        return count;
+    }
+
+    /**
+     * Returns the width of the image covered by the tree.
+     * @return The width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image covered by the tree.
+     * @return The height of the image.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of bytes used by the arrays of the store.
+     * @return The number of bytes used by the store.
+     */
+    public long getByteSize() {
+        return 6L * 4 * x.length;
+    }
+
+    public int getx(int index) {
+        return x[index];
+    }
+
+    public int gety(int index) {
+        return y[index];
+    }
+
+    public int getSize(int index) {
+        return size[index];
+    }
+
+    public int getColor(int index) {
+        return color[index];
+    }
+
+    public int getFirstChild(int index) {
+        return firstChild[index];
+    }
+
+    public int getParent(int index) {
+        return parent[index];
+    }
+
+    public void setx(int index, int newx) {
+        x[index] = newx;
+    }
+
+    public void sety(int index, int newy) {
+        y[index] = newy;
+    }
+
+    public void setSize(int index, int newSize) {
+        size[index] = newSize;
+    }
+
+    public void setColor(int index, int newColor) {
+        color[index] = newColor;
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A class named ProgressiveDecoder that rebuilds a quadrant tree from a stream written by ProgressiveEncoder,
+ * as its bytes arrive. The nodes of a level are added to the tree only once the whole level has been received,
+ * so getPixels(root, level) is exact for every level below levelsAvailable(), and the nodes of the last level
+ * received look like leaves until their children arrive.
+ */
+public class ProgressiveDecoder {
+    private byte[] pending = new byte[1 << 12];    // Bytes received but not decoded yet
+    private int pendingLength;
+    private boolean headerRead;
+    private int size;
+    private int imageType;
+    private int levels;                             // Number of levels fully decoded
+    private List<QTreeNode> lastLevel = new ArrayList<>();
+    private List<QTreeNode> expanding = new ArrayList<>();  // Nodes of the last level that have children
+    private QTreeNode root;
+    private QuadrantTree tree;
+
+    /**
+     * Decodes the next bytes of the stream. The bytes can be split into chunks in any way.
+     * @param chunk The bytes received.
+     * @param offset The position of the first byte received in chunk.
+     * @param length The number of bytes received.
+     * @throws IOException If the stream is not a progressive tree stream.
+     */
+    public void feed(byte[] chunk, int offset, int length) throws IOException {
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(2 * pending.length, pendingLength + length));
+        }
+        System.arraycopy(chunk, offset, pending, pendingLength, length);
+        pendingLength += length;
+
+        int consumed = 0;
+        if (!headerRead) {
+            if (pendingLength < ProgressiveEncoder.HEADER_BYTES) {
+                return;
+            }
+            ByteBuffer header = ByteBuffer.wrap(pending, 0, ProgressiveEncoder.HEADER_BYTES);
+            if (header.getInt() != ProgressiveEncoder.MAGIC) {
+                throw new IOException("Not a progressive quadrant tree stream");
+            }
+            if (header.getInt() != ProgressiveEncoder.VERSION) {
+                throw new IOException("Unsupported progressive quadrant tree stream version");
+            }
+            size = header.getInt();
+            imageType = header.getInt();
+            headerRead = true;
+            consumed = ProgressiveEncoder.HEADER_BYTES;
+        }
+        while (!isComplete()) {
+            int count = levelSize();
+            int levelBytes = 3 * count + (count + 7) / 8;
+            if (pendingLength - consumed < levelBytes) {
+                break;
+            }
+            decodeLevel(consumed, count);
+            consumed += levelBytes;
+        }
+        if (consumed > 0) {
+            System.arraycopy(pending, consumed, pending, 0, pendingLength - consumed);
+            pendingLength -= consumed;
+        }
+    }
+
+    /**
+     * Returns the number of nodes in the next level of the stream.
+     */
+    private int levelSize() {
+        if (levels == 0) {
+            return 1;
+        }
+        return 4 * expanding.size();
+    }
+
+    /**
+     * Creates the nodes of the next level and attaches them to their parents.
+     * @param start The position of the level in the pending bytes.
+     * @param count The number of nodes in the level.
+     */
+    private void decodeLevel(int start, int count) {
+        List<QTreeNode> level = new ArrayList<>(count);
+        List<QTreeNode> nextExpanding = new ArrayList<>();
+        int structure = start + 3 * count;
+        for (int i = 0; i < count; i++) {
+            int color = 0xff000000 | (pending[start + 3 * i] & 0xff) << 16 | (pending[start + 3 * i + 1] & 0xff) << 8
+                        | (pending[start + 3 * i + 2] & 0xff);
+            QTreeNode node;
+            if (levels == 0) {
+                node = new QTreeNode(null, 0, 0, size, color);
+                root = node;
+            } else {
+                QTreeNode parent = expanding.get(i / 4);
+                int c = i % 4;
+                int halfSize = parent.getSize() / 2;
+                node = new QTreeNode(null, parent.getx() + (c % 2) * halfSize, parent.gety() + (c / 2) * halfSize,
+                                     c == 3 ? parent.getSize() - halfSize : halfSize, color);
+                node.setParent(parent);
+                parent.setChild(node, c);
+            }
+            level.add(node);
+            if ((pending[structure + (i >> 3)] & (0x80 >>> (i & 7))) != 0) {
+                nextExpanding.add(node);
+            }
+        }
+        lastLevel = level;
+        expanding = nextExpanding;
+        levels++;
+        if (tree == null) {
+            tree = new QuadrantTree(root);
+        }
+    }
+
+    /**
+     * Returns the number of levels of the tree received so far. getPixels(getRoot(), level) gives the image
+     * at full quality for every level smaller than this number.
+     * @return The number of levels received.
+     */
+    public int levelsAvailable() {
+        return levels;
+    }
+
+    /**
+     * Returns true if the whole tree has been received.
+     * @return True if the whole tree has been received.
+     */
+    public boolean isComplete() {
+        return headerRead && (size == 0 || (levels > 0 && expanding.isEmpty()));
+    }
+
+    /**
+     * Returns the tree received so far.
+     * @return The tree received so far, or null if no level has been received.
+     */
+    public QuadrantTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the root of the tree received so far.
+     * @return The root of the tree, or null if no level has been received.
+     */
+    public QTreeNode getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the nodes of the last level received.
+     * @return The nodes of the last level received, in Z-order.
+     */
+    public List<QTreeNode> getLastLevel() {
+        return lastLevel;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getImageType() {
+        return imageType;
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class named ProgressiveEncoder that writes a quadrant tree level by level, coarsest first, so a receiver
+ * can draw the image at every level it has fully received while the finer levels are still arriving.
+ *
+ * The stream starts with a header (magic, version, image size, original image type). Then, for each level, it
+ * holds the colors of the nodes of the level packed in 3 bytes, followed by one bit per node of the level that
+ * is 1 if the node has children, padded to a whole byte. The nodes of a level are the children of the internal
+ * nodes of the level above, in order, so their number is known to the decoder before the level arrives.
+ * Positions and sizes are not stored, and colors are read back opaque, as in TreeFile.
+ */
+public class ProgressiveEncoder {
+    static final int MAGIC = 0x51545052;    // "QTPR"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+
+    /**
+     * Writes a tree to a stream, one level at a time.
+     * @param tree The tree to write. Every internal node must have four children.
+     * @param imageType The type of the BufferedImage the tree was built from.
+     * @param stream The stream to write to.
+     * @throws IOException If the stream cannot be written.
+     * @throws QTreeException If an internal node of the tree is missing a child.
+     */
+    public static void encode(QuadrantTree tree, int imageType, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        QTreeNode root = tree.getRoot();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(root == null ? 0 : root.getSize());
+        out.writeInt(imageType);
+
+        List<QTreeNode> level = new ArrayList<>();
+        if (root != null) {
+            level.add(root);
+        }
+        while (!level.isEmpty()) {
+            byte[] colors = new byte[3 * level.size()];
+            byte[] structure = new byte[(level.size() + 7) / 8];
+            List<QTreeNode> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i++) {
+                QTreeNode node = level.get(i);
+                int color = node.getColor();
+                colors[3 * i] = (byte) (color >> 16);
+                colors[3 * i + 1] = (byte) (color >> 8);
+                colors[3 * i + 2] = (byte) color;
+                if (!node.isLeaf()) {
+                    structure[i >> 3] |= (byte) (0x80 >>> (i & 7));
+                    for (int c = 0; c < 4; c++) {
+                        QTreeNode child = node.getChild(c);
+                        if (child == null) {
+                            throw new QTreeException("Progressive streams need every internal node to have four children");
+                        }
+                        next.add(child);
+                    }
+                }
+            }
+            out.write(colors);
+            out.write(structure);
+            level = next;
+        }
+        out.flush();
+    }
+}
@@ -8,6 +8,8 @@ public class QTreeNode {
     private int y;
     private int size;
     private int color;
+    private int minColor = 0;           // Per channel minimum of the colors in the subtree, packed as RGB
+    private int maxColor = 0xffffff;    // Per channel maximum of the colors in the subtree, packed as RGB
     private QTreeNode parent;
     private QTreeNode[] children;
 
@@ -53,7 +55,15 @@ public class QTreeNode {
         color = theColor;
     }
 
-    
+
+    /**
+     * Constructor for subclasses that keep the data of the node somewhere else, such as StoredNode.
+     * No children array is allocated.
+     * @param theParent The parent of the node.
+     */
+    protected QTreeNode(QTreeNode theParent) {
+        parent = theParent;
+    }
 
     // Getter methods
     public int getx() {
@@ -76,6 +86,23 @@ public class QTreeNode {
         return parent;
     }
 
+    /**
+     * Returns the per channel minimum of the colors of the node and its descendants. Unless the bounds
+     * were set when the tree was built, they cover every color.
+     * @return The minimum of each channel, packed as RGB.
+     */
+    public int getMinColor() {
+        return minColor;
+    }
+
+    /**
+     * Returns the per channel maximum of the colors of the node and its descendants.
+     * @return The maximum of each channel, packed as RGB.
+     */
+    public int getMaxColor() {
+        return maxColor;
+    }
+
     /**
      * See the child(the sub-region of image ) node at the specified index.
      * 
@@ -105,6 +132,26 @@ public class QTreeNode {
 
     public void setColor(int newColor) {
         color = newColor;
+        // Widen the bounds of the node and its ancestors so they still cover every color below them
+        for (QTreeNode node = this; node != null; node = node.getParent()) {
+            int min = RegionStats.minChannels(node.minColor, newColor);
+            int max = RegionStats.maxChannels(node.maxColor, newColor);
+            if (min == node.minColor && max == node.maxColor) {
+                break;
+            }
+            node.minColor = min;
+            node.maxColor = max;
+        }
+    }
+
+    /**
+     * Sets the per channel bounds of the colors of the node and its descendants.
+     * @param newMinColor The minimum of each channel, packed as RGB.
+     * @param newMaxColor The maximum of each channel, packed as RGB.
+     */
+    public void setColorBounds(int newMinColor, int newMaxColor) {
+        minColor = newMinColor & 0xffffff;
+        maxColor = newMaxColor & 0xffffff;
     }
 
     public void setParent(QTreeNode newParent) {
@@ -1,19 +1,269 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 /*
  * A class named QuadrantTree that represents a tree of QTreeNodes and provides methods to search for nodes(entire image or sub-region of it) and pixels.
  
  */
 public class QuadrantTree {
+    /**
+     * The ways of measuring how far a quadrant is from being a single color when pruning the tree.
+     */
+    public enum ErrorMetric {
+        VARIANCE,       // Mean squared difference from the average color
+        MAX_DEVIATION   // Largest difference from the average color in any channel
+    }
+
     private QTreeNode root;     // The root of the tree contains the entire image
+    private NodeStore store;    // The arrays holding the nodes, or null if every node is a QTreeNode object
+    private DagStore dag;       // The DAG holding the nodes, or null if identical subtrees are not shared
+    private MortonIndex index;  // Locational code index used by findNode, or null to descend from the node
+    private ColorIndex colorIndex;  // Color index used by findMatching from the root, or null to walk the level
+    private ColorSimilarity similarity = ColorSimilarity.DEFAULT;   // When findMatching considers colors similar
+    private int width;          // Width of the image covered by the tree; quadrants to the right of it have no node
+    private int height;         // Height of the image covered by the tree; quadrants below it have no node
+    private boolean fromPixels; // True if the tree was built from pixels, so setEditable can be given them
+    private int[][] pixels;     // The pixels given to setEditable, which the edits change, or null if not editable
+    private ErrorMetric metric; // The way quadrants were merged into leaves, or null if they were not
+    private double tolerance;
+    private RegionPyramid pyramid;  // Statistics of the quadrants, created by the first edit
+    private boolean reshaped;   // Set when an edit splits or merges a node
 
     /**
      * Constructor for QuadrantTree.
      * @param thePixels The pixels of the image.
      */
     public QuadrantTree(int[][] thePixels) {
-        root = buildTree(thePixels, 0, 0, thePixels.length);
+        this(thePixels, true);
+    }
+
+    /**
+     * Constructor for QuadrantTree.
+     * @param thePixels The pixels of the image.
+     * @param singlePass If true the color of each internal node is computed bottom-up from the channel sums
+     *                   of its children, so every pixel is read once; otherwise every node rescans its region.
+     */
+    public QuadrantTree(int[][] thePixels, boolean singlePass) {
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        width = height = thePixels.length;
+        fromPixels = true;
+        if (singlePass) {
+            root = buildTree(thePixels, 0, 0, thePixels.length, new RegionStats());
+        } else {
+            root = buildTree(thePixels, 0, 0, thePixels.length);
+        }
+        event.finish(root, singlePass ? "single pass" : "rescan", false);
+    }
+
+    /**
+     * Constructor for a compressed QuadrantTree. A quadrant becomes a leaf as soon as its color error is within
+     * the tolerance, so uniform regions are stored as a single node.
+     * @param thePixels The pixels of the image.
+     * @param metric The way the color error of a quadrant is measured.
+     * @param tolerance The largest color error a leaf may have.
+     */
+    public QuadrantTree(int[][] thePixels, ErrorMetric metric, double tolerance) {
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        width = height = thePixels.length;
+        fromPixels = true;
+        this.metric = metric;
+        this.tolerance = tolerance;
+        RegionStats stats = new RegionStats();
+        root = buildTree(thePixels, 0, 0, thePixels.length, stats, metric, tolerance, scratch(thePixels.length), 0);
+        if (root == null && thePixels.length > 0) {
+            root = leaf(thePixels, 0, 0, thePixels.length, stats);
+        }
+        event.finish(root, "single pass", true);
+    }
+
+    /**
+     * Constructor for QuadrantTree that builds the quadrants of the top levels of the tree in parallel.
+     * The tree is the same, node for node, as the one built by new QuadrantTree(thePixels).
+     * @param thePixels The pixels of the image.
+     * @param pool The pool whose threads build the tree.
+     * @param cutoff Quadrants of this size or smaller are built sequentially by a single task.
+     */
+    public QuadrantTree(int[][] thePixels, ForkJoinPool pool, int cutoff) {
+        this(thePixels, null, 0, pool, cutoff);
+    }
+
+    /**
+     * Constructor for a compressed QuadrantTree that builds the quadrants of the top levels of the tree in
+     * parallel. The tree is the same, node for node, as the one built by new QuadrantTree(thePixels, metric, tolerance).
+     * @param thePixels The pixels of the image.
+     * @param metric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @param tolerance The largest color error a leaf may have.
+     * @param pool The pool whose threads build the tree.
+     * @param cutoff Quadrants of this size or smaller are built sequentially by a single task.
+     */
+    public QuadrantTree(int[][] thePixels, ErrorMetric metric, double tolerance, ForkJoinPool pool, int cutoff) {
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        width = height = thePixels.length;
+        fromPixels = true;
+        this.metric = metric;
+        this.tolerance = tolerance;
+        BuildTask task = new BuildTask(thePixels, 0, 0, thePixels.length, metric, tolerance, Math.max(cutoff, 1));
+        root = pool.invoke(task);
+        if (root == null && thePixels.length > 0) {
+            root = leaf(thePixels, 0, 0, thePixels.length, task.stats);
+        }
+        event.finish(root, "parallel", metric != null);
+    }
+
+    /**
+     * Constructor for a QuadrantTree covering an image of any width and height without padding it. The root is
+     * the smallest square whose side is a power of two that contains the image, and the quadrants lying entirely
+     * outside the image have no node, so the tree has about 4/3 width * height nodes. The color of a quadrant
+     * lying partly outside the image is the average of the pixels of the image it covers.
+     * @param thePixels The pixels of the image, at least theHeight rows of at least theWidth pixels.
+     * @param theWidth The width of the image.
+     * @param theHeight The height of the image.
+     * @throws QTreeException If the image is larger than the array of pixels.
+     */
+    public QuadrantTree(int[][] thePixels, int theWidth, int theHeight) {
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        setExtent(thePixels, theWidth, theHeight);
+        root = buildTree(thePixels, 0, 0, coverSize(width, height), new RegionStats());
+        event.finish(root, "rectangle", false);
+    }
+
+    /**
+     * Constructor for a compressed QuadrantTree covering an image of any width and height without padding it.
+     * The quadrants are those of new QuadrantTree(thePixels, theWidth, theHeight), merged as in
+     * new QuadrantTree(thePixels, metric, tolerance); the color error of a quadrant lying partly outside the
+     * image only counts the pixels of the image.
+     * @param thePixels The pixels of the image, at least theHeight rows of at least theWidth pixels.
+     * @param theWidth The width of the image.
+     * @param theHeight The height of the image.
+     * @param metric The way the color error of a quadrant is measured.
+     * @param tolerance The largest color error a leaf may have.
+     * @throws QTreeException If the image is larger than the array of pixels.
+     */
+    public QuadrantTree(int[][] thePixels, int theWidth, int theHeight, ErrorMetric metric, double tolerance) {
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        setExtent(thePixels, theWidth, theHeight);
+        this.metric = metric;
+        this.tolerance = tolerance;
+        int size = coverSize(width, height);
+        RegionStats stats = new RegionStats();
+        root = buildTree(thePixels, 0, 0, size, stats, metric, tolerance, scratch(size), 0);
+        if (root == null && size > 0) {
+            root = leaf(thePixels, 0, 0, size, stats);
+        }
+        event.finish(root, "rectangle", true);
+    }
+
+    private void setExtent(int[][] thePixels, int theWidth, int theHeight) {
+        if (theWidth < 0 || theHeight < 0 || theHeight > thePixels.length
+            || (theHeight > 0 && theWidth > thePixels[0].length)) {
+            throw new QTreeException("The image is larger than its array of pixels");
+        }
+        width = theWidth;
+        height = theHeight;
+        fromPixels = true;
+    }
+
+    /**
+     * Returns the side of the root of a tree covering an image of the specified width and height: the smallest
+     * power of two that is at least the width and the height.
+     * @param theWidth The width of the image.
+     * @param theHeight The height of the image.
+     * @return The size of the root, or 0 if the image is empty.
+     */
+    public static int coverSize(int theWidth, int theHeight) {
+        if (theWidth <= 0 || theHeight <= 0) {
+            return 0;
+        }
+        int side = Math.max(theWidth, theHeight);
+        return side == 1 ? 1 : Integer.highestOneBit(side - 1) << 1;
+    }
+
+    /**
+     * Constructor for a QuadrantTree whose nodes are kept in parallel arrays rather than as QTreeNode objects.
+     * The nodes returned by the methods of the tree are StoredNode views of the store.
+     * @param theStore The arrays holding the nodes of the tree.
+     */
+    public QuadrantTree(NodeStore theStore) {
+        store = theStore;
+        root = store.getRoot();
+        width = store.getWidth();
+        height = store.getHeight();
+    }
+
+    /**
+     * Constructor for a QuadrantTree whose identical subtrees are stored once, in a DagStore. The nodes returned
+     * by the methods of the tree are DagNode views, whose positions are those of the quadrants they were
+     * reached as, so getPixels, findNode and findMatching return the same quadrants and colors as on the tree
+     * the DAG was built from.
+     * @param theDag The DAG holding the nodes of the tree.
+     */
+    public QuadrantTree(DagStore theDag) {
+        dag = theDag;
+        root = dag.getRoot();
+        width = dag.getWidth();
+        height = dag.getHeight();
+    }
+
+    /**
+     * Constructor for a QuadrantTree over nodes that already exist, such as the nodes of a TreeFile.
+     * @param theRoot The root of the tree.
+     */
+    public QuadrantTree(QTreeNode theRoot) {
+        root = theRoot;
+        width = height = root == null ? 0 : root.getSize();
+    }
+
+    /**
+     * Constructor for a QuadrantTree over nodes that already exist covering an image of any width and height,
+     * such as the nodes of a frame read by FrameDeltaDecoder.
+     * @param theRoot The root of the tree.
+     * @param theWidth The width of the image.
+     * @param theHeight The height of the image.
+     */
+    QuadrantTree(QTreeNode theRoot, int theWidth, int theHeight) {
+        root = theRoot;
+        width = theWidth;
+        height = theHeight;
+    }
+
+    /**
+     * Returns the arrays holding the nodes of the tree.
+     * @return The store of the tree, or null if its nodes are QTreeNode objects.
+     */
+    public NodeStore getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the DAG holding the nodes of the tree.
+     * @return The DAG of the tree, or null if its identical subtrees are not shared.
+     */
+    public DagStore getDag() {
+        return dag;
+    }
+
+    /**
+     * Returns the width of the image covered by the tree.
+     * @return The width of the image.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image covered by the tree.
+     * @return The height of the image.
+     */
+    public int getHeight() {
+        return height;
     }
 
     /**
@@ -32,118 +282,191 @@ public class QuadrantTree {
      * @return The pixels of the tree at a specific level.
      */
     public ListNode<QTreeNode> getPixels(QTreeNode r, int theLevel) {
-        List<QTreeNode> result = new ArrayList<>();
-        getPixelsHelper(r, theLevel, 0, result);
-        return listToLinkedList(result);
+        TreeEvents.Query event = new TreeEvents.Query();
+        event.start();
+        ListBuilder list = new ListBuilder();
+        visitPixels(r, theLevel, list);
+        event.finish("getPixels", theLevel, list.count);
+        return list.head;
     }
 
-    private ListNode<QTreeNode> listToLinkedList(List<QTreeNode> nodes) {
-        ListNode<QTreeNode> head = null;
-        ListNode<QTreeNode> prev = null;
-        for (QTreeNode node : nodes) {
-            ListNode<QTreeNode> current = new ListNode<>(node);
-            if (head == null) {
-                head = current;
-            } else {
-                prev.setNext(current);
-            }
-            prev = current;
+    /**
+     * Passes the nodes of the tree at a specific level to a visitor, in the order getPixels lists them,
+     * without building a list.
+     * @param r The root of the tree.
+     * @param theLevel The level of the tree.
+     * @param visitor The consumer the nodes are passed to.
+     */
+    public void visitPixels(QTreeNode r, int theLevel, Consumer<? super QTreeNode> visitor) {
+        if (theLevel >= 0) {
+            NodeSpliterator.visit(r, theLevel, null, visitor);
         }
-        return head;
     }
 
     /**
-     * Helper method for getPixels.
-     * @param node The node to start from.
-     * @param targetLevel The target level to search for.
-     * @param currentLevel The current level of the tree.
-     * @param result The list to store the nodes.
+     * Returns a spliterator over the nodes of the tree at a specific level, in the order getPixels lists them.
+     * @param r The root of the tree.
+     * @param theLevel The level of the tree.
+     * @return A spliterator over the nodes at the level.
+     */
+    public Spliterator<QTreeNode> pixelSpliterator(QTreeNode r, int theLevel) {
+        return new NodeSpliterator(theLevel >= 0 ? r : null, theLevel, null);
+    }
+
+    /**
+     * Returns the number of nodes in the tree at the specified level.
+     * @param r The root of the tree.
+     * @param theLevel The level of the tree.
+     * @return The number of nodes in the tree at the specified level.
      */
-    private void getPixelsHelper(QTreeNode node, int targetLevel, int currentLevel, List<QTreeNode> result) {
-        if (node == null || currentLevel > targetLevel) {
-            return;
+    public Duple findMatching(QTreeNode r, int theColor, int theLevel) {
+        TreeEvents.Query event = new TreeEvents.Query();
+        event.start();
+        Duple matches;
+        if (colorIndex != null && r == root) {
+            matches = colorIndex.findMatching(theColor, theLevel);
+        } else {
+            ListBuilder list = new ListBuilder();
+            int count = visitMatching(r, theColor, theLevel, list);
+            matches = new Duple(list.head, count);
         }
+        event.finish("findMatching", theLevel, matches.getCount());
+        return matches;
+    }
 
-        if (currentLevel == targetLevel || node.isLeaf()) {
-            result.add(node);
-        } else {
-            QTreeNode[] children = new QTreeNode[4];
-            for (int i = 0; i < 4; i++) {
-                children[i] = node.getChild(i);
-            }
-            for (QTreeNode child : children) {
-                getPixelsHelper(child, targetLevel, currentLevel + 1, result);
-            }
+    /**
+     * Passes the nodes of the tree at a specific level whose color is similar to the specified color to
+     * a visitor, in the order findMatching lists them, without building a list.
+     * @param r The root of the tree.
+     * @param theColor The color to match.
+     * @param theLevel The level of the tree.
+     * @param visitor The consumer the nodes are passed to.
+     * @return The number of matching nodes.
+     */
+    public int visitMatching(QTreeNode r, int theColor, int theLevel, Consumer<? super QTreeNode> visitor) {
+        if (colorIndex != null && r == root) {
+            return colorIndex.visitMatching(theColor, theLevel, visitor);
         }
+        return NodeSpliterator.visit(r, theLevel, similarTo(similarity, theColor), visitor);
     }
 
     /**
-     * Returns the number of nodes in the tree at the specified level.
+     * Returns a spliterator over the nodes of the tree at a specific level whose color is similar to
+     * the specified color, in the order findMatching lists them.
      * @param r The root of the tree.
+     * @param theColor The color to match.
      * @param theLevel The level of the tree.
-     * @return The number of nodes in the tree at the specified level.
+     * @return A spliterator over the matching nodes.
      */
-    public Duple findMatching(QTreeNode r, int theColor, int theLevel) {
-        List<QTreeNode> matchingNodes = new ArrayList<>();
-        int count = findMatchingHelper(r, theColor, theLevel, 0, matchingNodes);
-        ListNode<QTreeNode> front = createLinkedList(matchingNodes); // Convert list to linked list
-        return new Duple(front, count);
+    public Spliterator<QTreeNode> matchingSpliterator(QTreeNode r, int theColor, int theLevel) {
+        return new NodeSpliterator(r, theLevel, similarTo(similarity, theColor));
     }
 
     /**
-     * Creates a linked list from the specified list of nodes.
-     * @param nodes The list of nodes to convert.
-     * @return The linked list of nodes.
+     * Returns the filter that findMatching applies to the colors of the nodes. Quadrants whose color bounds
+     * are too far from the color are skipped.
+     * @param theSimilarity The measure of when colors are similar.
+     * @param theColor The color to match.
+     * @return The filter.
      */
-    private ListNode<QTreeNode> createLinkedList(List<QTreeNode> nodes) {
-        ListNode<QTreeNode> head = null;
-        ListNode<QTreeNode> current = null;
+    static NodeSpliterator.ColorFilter similarTo(ColorSimilarity theSimilarity, int theColor) {
+        return new NodeSpliterator.ColorFilter() {
+            @Override
+            public boolean test(int color) {
+                return theSimilarity.similar(color, theColor);
+            }
 
-        for (QTreeNode node : nodes) {
-            ListNode<QTreeNode> newNode = new ListNode<>(node);
-            if (head == null) {
-                head = newNode;
-                current = newNode;
-            } else {
-                current.setNext(newNode);
-                current = newNode;
+            @Override
+            public boolean mayPass(int minColor, int maxColor) {
+                return theSimilarity.mayBeSimilar(theColor, minColor, maxColor);
             }
+        };
+    }
+
+    /**
+     * Selects when findMatching considers the color of a node similar to the color searched for.
+     * An enabled color index is rebuilt for the new measure.
+     * @param theSimilarity The measure of when colors are similar.
+     */
+    public void setColorSimilarity(ColorSimilarity theSimilarity) {
+        similarity = theSimilarity;
+        if (colorIndex != null) {
+            setColorIndex(true);
         }
+    }
 
-        return head;
+    public ColorSimilarity getColorSimilarity() {
+        return similarity;
     }
 
     /**
-     * Helper method for findMatching.
-     * @param node The node to start from.
-     * @param targetColor The target color to search for.
-     * @param targetLevel The target level to search for.
-     * @param currentLevel The current level of the tree.
-     * @param result The list to store the nodes.
-     * @return The number of matching nodes.
+     * A visitor that appends the nodes it is passed to a linked list.
      */
-    private int findMatchingHelper(QTreeNode node, int targetColor, int targetLevel, int currentLevel, List<QTreeNode> result) {
-        if (node == null) {
-            return 0;
-        }
+    private static final class ListBuilder implements Consumer<QTreeNode> {
+        private ListNode<QTreeNode> head;
+        private ListNode<QTreeNode> tail;
+        private int count;
 
-        int count = 0;
-        if (currentLevel == targetLevel || node.isLeaf()) {
-            if (Gui.similarColor(node.getColor(), targetColor)) {
-                result.add(node);
-                count++;
-            }
-        } else {
-            QTreeNode[] children = new QTreeNode[4];
-            for (int i = 0; i < 4; i++) {
-                children[i] = node.getChild(i);
-            }
-            for (QTreeNode child : children) {
-                count += findMatchingHelper(child, targetColor, targetLevel, currentLevel + 1, result);
+        @Override
+        public void accept(QTreeNode node) {
+            count++;
+            ListNode<QTreeNode> current = new ListNode<>(node);
+            if (head == null) {
+                head = current;
+            } else {
+                tail.setNext(current);
             }
+            tail = current;
         }
+    }
 
-        return count;
+    /**
+     * Makes the tree editable with setPixel, fillRect and writeRegion. A tree keeps no reference to the pixels it
+     * was built from, so they can be collected once it is built; an editable tree keeps them and changes them with
+     * every edit.
+     * @param thePixels The pixels the tree was built from, or null to stop editing and let them go.
+     * @throws QTreeException If the tree was not built from pixels or the array is smaller than the image.
+     */
+    public void setEditable(int[][] thePixels) {
+        if (thePixels != null && (!fromPixels || root == null)) {
+            throw new QTreeException("Only a tree built from the pixels of an image can be edited");
+        }
+        if (thePixels != null && (height > thePixels.length || (height > 0 && width > thePixels[0].length))) {
+            throw new QTreeException("The image is larger than its array of pixels");
+        }
+        if (thePixels != pixels) {
+            pyramid = null;
+        }
+        pixels = thePixels;
+    }
+
+    /**
+     * Selects how findNode looks up a node. With the Morton index enabled, the node covering a point is found
+     * from its locational code instead of by descending the tree. The index must be enabled again after
+     * the shape of the tree is changed.
+     * @param enabled True to build the index and use it, false to drop it.
+     * @throws QTreeException If the index is enabled and the size of the tree is not a power of two.
+     */
+    public void setMortonIndex(boolean enabled) {
+        index = enabled ? new MortonIndex(this) : null;
+    }
+
+    /**
+     * Selects how findMatching finds the nodes of a color when it starts at the root. With the color index
+     * enabled, only the nodes whose colors are close to the color are inspected, instead of every node of the
+     * level. The index must be enabled again after the colors or the shape of the tree are changed.
+     * @param enabled True to use the index, false to drop it.
+     */
+    public void setColorIndex(boolean enabled) {
+        colorIndex = enabled ? new ColorIndex(this) : null;
+    }
+
+    /**
+     * Returns the color index used by findMatching.
+     * @return The color index, or null if it is not enabled.
+     */
+    public ColorIndex getColorIndex() {
+        return colorIndex;
     }
 
     /**
@@ -155,6 +478,17 @@ public class QuadrantTree {
      * @return The node at the specified coordinates.
      */
     public QTreeNode findNode(QTreeNode r, int theLevel, int x, int y) {
+        TreeEvents.Query event = new TreeEvents.Query();
+        event.start();
+        QTreeNode node = index != null ? index.findNode(r, theLevel, x, y) : findNodeHelper(r, theLevel, x, y);
+        event.finish("findNode", theLevel, node == null ? 0 : 1);
+        return node;
+    }
+
+    /**
+     * Helper method for findNode that descends the tree from r.
+     */
+    private QTreeNode findNodeHelper(QTreeNode r, int theLevel, int x, int y) {
         if (r == null || theLevel < 0) {
             return null;
         }
@@ -171,14 +505,253 @@ public class QuadrantTree {
         }
 
         if (x < halfSize && y < halfSize) {
-            return findNode(r.getChild(0), theLevel - 1, x, y);
+            return findNodeHelper(r.getChild(0), theLevel - 1, x, y);
         } else if (x >= halfSize && y < halfSize) {
-            return findNode(r.getChild(1), theLevel - 1, x - halfSize, y);
+            return findNodeHelper(r.getChild(1), theLevel - 1, x - halfSize, y);
         } else if (x < halfSize && y >= halfSize) {
-            return findNode(r.getChild(2), theLevel - 1, x, y - halfSize);
+            return findNodeHelper(r.getChild(2), theLevel - 1, x, y - halfSize);
+        } else {
+            return findNodeHelper(r.getChild(3), theLevel - 1, x - halfSize, y - halfSize);
+        }
+    }
+
+    /**
+     * Sets the color of one pixel of the image and updates the tree to the one that would be built from the
+     * edited image. Only the nodes covering the pixel are changed; see fillRect.
+     * @param x The x-coordinate of the pixel.
+     * @param y The y-coordinate of the pixel.
+     * @param color The new color of the pixel.
+     * @throws QTreeException If the tree cannot be edited.
+     */
+    public void setPixel(int x, int y, int color) {
+        fillRect(x, y, 1, 1, color);
+    }
+
+    /**
+     * Fills a rectangle of the image with a color, as a watermark or a redaction would, and updates the tree to
+     * the one that would be built from the edited image. The pixels given to setEditable are changed too.
+     * The leaves covering the rectangle and their ancestors are recomputed from the statistics of their quadrants;
+     * in a pruned tree the quadrants whose color error crosses the tolerance are split or merged. The rest of the
+     * tree is left as it is, so the cost depends on the area of the rectangle rather than the size of the image.
+     * The first edit computes the statistics of every quadrant, which takes about as long as building the tree.
+     * An enabled color index is dropped, as is an enabled Morton index if a node is split or merged.
+     * @param x The x-coordinate of the upper left pixel of the rectangle.
+     * @param y The y-coordinate of the upper left pixel of the rectangle.
+     * @param theWidth The width of the rectangle; the part outside the image is ignored.
+     * @param theHeight The height of the rectangle.
+     * @param color The new color of the pixels.
+     * @throws QTreeException If the tree cannot be edited.
+     */
+    public void fillRect(int x, int y, int theWidth, int theHeight, int color) {
+        RegionPyramid stats = editor();
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = (int) Math.min((long) x + theWidth, width);
+        int y1 = (int) Math.min((long) y + theHeight, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;     // The rectangle is empty or outside the image
+        }
+        for (int i = y0; i < y1; i++) {
+            Arrays.fill(pixels[i], x0, x1, color);
+        }
+        edit(stats, x0, y0, x1, y1);
+    }
+
+    /**
+     * Copies a block of pixels into the image, as a correction or a pasted patch would, and updates the tree to
+     * the one that would be built from the edited image; see fillRect.
+     * @param x The x-coordinate in the image of the upper left pixel of the block.
+     * @param y The y-coordinate in the image of the upper left pixel of the block.
+     * @param region The pixels of the block, row by row; the part outside the image is ignored.
+     * @throws QTreeException If the tree cannot be edited.
+     */
+    public void writeRegion(int x, int y, int[][] region) {
+        RegionPyramid stats = editor();
+        int x0 = Math.max(x, 0);
+        int y0 = Math.max(y, 0);
+        int x1 = x0;
+        int y1 = (int) Math.min((long) y + region.length, height);
+        for (int i = y0; i < y1; i++) {
+            int[] row = region[i - y];
+            int end = (int) Math.min((long) x + row.length, width);
+            if (end > x0) {
+                System.arraycopy(row, x0 - x, pixels[i], x0, end - x0);
+                x1 = Math.max(x1, end);
+            }
+        }
+        edit(stats, x0, y0, x1, y1);
+    }
+
+    /**
+     * Returns the statistics of the quadrants of the image, computing them the first time.
+     * @throws QTreeException If the tree is not editable or its size is not a power of two.
+     */
+    private RegionPyramid editor() {
+        if (pixels == null) {
+            throw new QTreeException("The tree is not editable; setEditable gives it the pixels it was built from");
+        }
+        if (pyramid == null) {
+            pyramid = new RegionPyramid(pixels, width, height, root.getSize());
+        }
+        return pyramid;
+    }
+
+    /**
+     * Updates the statistics and the nodes covering a rectangle whose pixels were changed.
+     */
+    private void edit(RegionPyramid stats, int x0, int y0, int x1, int y1) {
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        stats.update(x0, y0, x1, y1);
+        reshaped = false;
+        refresh(root, 0, 0, root.getSize(), x0, y0, x1, y1);
+        colorIndex = null;
+        if (reshaped) {
+            index = null;
+        }
+    }
+
+    /**
+     * Brings the node of a quadrant overlapping an edited rectangle up to date, in place. The children overlapping
+     * the rectangle are refreshed first, so the ancestors of every changed leaf are recomputed on the way back up.
+     * A leaf that has to be split gets the children buildTree would have given it; a node that has to become a
+     * leaf loses its children.
+     */
+    private void refresh(QTreeNode node, int x, int y, int size, int x0, int y0, int x1, int y1) {
+        RegionStats stats = pyramid.get(x, y, size);
+        if (mergeable(stats, size)) {
+            if (!node.isLeaf()) {
+                for (int i = 0; i < 4; i++) {
+                    node.setChild(null, i);
+                }
+                reshaped = true;
+            }
         } else {
-            return findNode(r.getChild(3), theLevel - 1, x - halfSize, y - halfSize);
+            int halfSize = size / 2;
+            boolean split = node.isLeaf();
+            for (int i = 0; i < 4; i++) {
+                int childX = x + (i % 2) * halfSize;
+                int childY = y + (i / 2) * halfSize;
+                if (split) {
+                    QTreeNode child = grow(childX, childY, halfSize);
+                    if (child != null) {
+                        child.setParent(node);
+                    }
+                    node.setChild(child, i);
+                } else if (node.getChild(i) != null && childX < x1 && childX + halfSize > x0
+                           && childY < y1 && childY + halfSize > y0) {
+                    refresh(node.getChild(i), childX, childY, halfSize, x0, y0, x1, y1);
+                }
+            }
+            reshaped |= split;
+        }
+        // The bounds first, so that setColor finds the color within them and does not widen the ancestors
+        node.setColorBounds(stats.getMinColor(), stats.getMaxColor());
+        node.setColor(size == 1 ? pyramid.getPixel(x, y) : stats.averageColor());
+    }
+
+    /**
+     * Builds the subtree of a quadrant from the statistics of the quadrants, as buildTree builds it from the pixels.
+     * @return The node of the quadrant, or null if it is outside the image.
+     */
+    private QTreeNode grow(int x, int y, int size) {
+        if (x >= width || y >= height) {
+            return null;
+        }
+        RegionStats stats = pyramid.get(x, y, size);
+        QTreeNode node = new QTreeNode(null, x, y, size, size == 1 ? pyramid.getPixel(x, y) : stats.averageColor());
+        node.setColorBounds(stats.getMinColor(), stats.getMaxColor());
+        if (!mergeable(stats, size)) {
+            int halfSize = size / 2;
+            for (int i = 0; i < 4; i++) {
+                QTreeNode child = grow(x + (i % 2) * halfSize, y + (i / 2) * halfSize, halfSize);
+                if (child != null) {
+                    child.setParent(node);
+                }
+                node.setChild(child, i);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Constructor for the QuadrantTree of a frame of a FrameSequence. The statistics hold the pixels of the frame
+     * and tell which quadrants differ from the previous frame; every subtree of the tree of the previous frame
+     * whose quadrant did not change is shared rather than copied, so only the paths to the changed quadrants are
+     * allocated. A shared node keeps the parent it had in the frame that created it. The tree keeps no pixels and
+     * cannot be edited, as an edit would change the other frames too.
+     * @param previous The tree of the previous frame, or null for the first frame.
+     * @param stats The statistics of the quadrants of the frame, loaded with its pixels.
+     * @param theWidth The width of the frame.
+     * @param theHeight The height of the frame.
+     * @param metric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @param tolerance The largest color error a leaf may have.
+     */
+    QuadrantTree(QuadrantTree previous, RegionPyramid stats, int theWidth, int theHeight, ErrorMetric metric,
+                 double tolerance) {
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        width = theWidth;
+        height = theHeight;
+        this.metric = metric;
+        this.tolerance = tolerance;
+        pyramid = stats;
+        int size = coverSize(width, height);
+        root = previous == null ? grow(0, 0, size) : derive(previous.getRoot(), 0, 0, size);
+        pyramid = null;
+        event.finish(root, "frame", metric != null);
+    }
+
+    /**
+     * Returns the node of a quadrant of a frame: the node of the previous frame if the quadrant did not change,
+     * otherwise a new node whose children are derived in turn from the children of the previous node.
+     * @param previous The node of the quadrant in the previous frame, or null if it had none.
+     * @return The node, or null if the quadrant is outside the image.
+     */
+    private QTreeNode derive(QTreeNode previous, int x, int y, int size) {
+        if (previous == null) {
+            return grow(x, y, size);
+        }
+        if (!pyramid.isChanged(x, y, size)) {
+            return previous;
         }
+        RegionStats stats = pyramid.get(x, y, size);
+        QTreeNode node = new QTreeNode(null, x, y, size, size == 1 ? pyramid.getPixel(x, y) : stats.averageColor());
+        node.setColorBounds(stats.getMinColor(), stats.getMaxColor());
+        if (!mergeable(stats, size)) {
+            int halfSize = size / 2;
+            for (int i = 0; i < 4; i++) {
+                int childX = x + (i % 2) * halfSize;
+                int childY = y + (i / 2) * halfSize;
+                QTreeNode child = null;
+                if (childX < width && childY < height) {
+                    // A shared child keeps the parent it was created with, so the previous frame is left as it was
+                    QTreeNode previousChild = previous.isLeaf() ? null : previous.getChild(i);
+                    child = derive(previousChild, childX, childY, halfSize);
+                    if (child != previousChild) {
+                        child.setParent(node);
+                    }
+                }
+                node.setChild(child, i);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns true if the quadrant is a leaf of the tree, given that its parent is not: it is a single pixel, or
+     * the tree is pruned and its color error is within the tolerance.
+     */
+    private boolean mergeable(RegionStats stats, int size) {
+        if (size == 1) {
+            return true;
+        }
+        if (metric == null) {
+            return false;
+        }
+        double error = metric == ErrorMetric.VARIANCE ? stats.variance() : stats.maxDeviation();
+        return error <= tolerance;
     }
 
     /**
@@ -191,7 +764,9 @@ public class QuadrantTree {
      */
     private QTreeNode buildTree(int[][] pixels, int x, int y, int size) {
         if (size == 1) {
-            return new QTreeNode(null,x, y, size, pixels[y][x]);
+            QTreeNode leaf = new QTreeNode(null,x, y, size, pixels[y][x]);
+            leaf.setColorBounds(pixels[y][x], pixels[y][x]);
+            return leaf;
         } else if (size == 0) {
             return null;
         } else {
@@ -203,19 +778,339 @@ public class QuadrantTree {
             children[2] = buildTree(pixels, x, y + halfSize, halfSize);
             children[3] = buildTree(pixels, x + halfSize, y + halfSize, lastSize); // Use adjusted size
             QTreeNode node = new QTreeNode(null, x, y, size, averageColor(pixels, x, y, size));
+            int minColor = 0xffffff;
+            int maxColor = 0;
             for (QTreeNode child : children) {
                 if (child != null) {
                     child.setParent(node);
+                    minColor = RegionStats.minChannels(minColor, child.getMinColor());
+                    maxColor = RegionStats.maxChannels(maxColor, child.getMaxColor());
                 }
             }
             for (int i = 0; i < 4; i++) {
                 node.setChild(children[i],i);
             }
+            if (lastSize != halfSize) {
+                for (int i = y; i < y + halfSize; i++) {
+                    minColor = RegionStats.minChannels(minColor, pixels[i][x + size - 1]);
+                    maxColor = RegionStats.maxChannels(maxColor, pixels[i][x + size - 1]);
+                }
+                for (int j = x; j < x + halfSize; j++) {
+                    minColor = RegionStats.minChannels(minColor, pixels[y + size - 1][j]);
+                    maxColor = RegionStats.maxChannels(maxColor, pixels[y + size - 1][j]);
+                }
+            }
+            node.setColorBounds(minColor, maxColor);
             return node;
         }
     }
-    
 
+    /**
+     * Builds a tree from the specified pixels in a single bottom-up pass.
+     * @param pixels 2d arraylist consisting of pixels of the image.
+     * @param x The x-coordinate of the node.
+     * @param y The y-coordinate of the node.
+     * @param size The size of the node.
+     * @param stats The channel sums of the parent, to which the pixels of this node are added.
+     * @return The root of the tree, or null if the quadrant is empty or outside the image.
+     */
+    private QTreeNode buildTree(int[][] pixels, int x, int y, int size, RegionStats stats) {
+        if (x >= width || y >= height) {
+            return null;
+        } else if (size == 1) {
+            stats.add(pixels[y][x]);
+            QTreeNode leaf = new QTreeNode(null, x, y, size, pixels[y][x]);
+            leaf.setColorBounds(pixels[y][x], pixels[y][x]);
+            return leaf;
+        } else if (size == 0) {
+            return null;
+        } else {
+            int halfSize = size / 2;
+            int lastSize = size - halfSize;
+            RegionStats region = new RegionStats();
+            QTreeNode[] children = new QTreeNode[4];
+            children[0] = buildTree(pixels, x, y, halfSize, region);
+            children[1] = buildTree(pixels, x + halfSize, y, halfSize, region);
+            children[2] = buildTree(pixels, x, y + halfSize, halfSize, region);
+            children[3] = buildTree(pixels, x + halfSize, y + halfSize, lastSize, region);
+            if (lastSize != halfSize) {
+                // With an odd size the children leave the last column of the top half and the
+                // last row of the left half uncovered, but the color of the node includes them
+                for (int i = y; i < y + halfSize; i++) {
+                    region.add(pixels[i][x + size - 1]);
+                }
+                for (int j = x; j < x + halfSize; j++) {
+                    region.add(pixels[y + size - 1][j]);
+                }
+            }
+            QTreeNode node = new QTreeNode(children, x, y, size, region.averageColor());
+            node.setColorBounds(region.getMinColor(), region.getMaxColor());
+            for (QTreeNode child : children) {
+                if (child != null) {
+                    child.setParent(node);
+                }
+            }
+            stats.add(region);
+            return node;
+        }
+    }
+
+    /**
+     * Builds a pruned tree from the specified pixels in a single bottom-up pass. A quadrant whose color error
+     * is within the tolerance is not given a node here: its parent creates a leaf for it if the parent is split.
+     * @param pixels 2d arraylist consisting of pixels of the image.
+     * @param x The x-coordinate of the node.
+     * @param y The y-coordinate of the node.
+     * @param size The size of the node.
+     * @param stats The statistics of the quadrant, filled in by this method.
+     * @param metric The way the color error of a quadrant is measured.
+     * @param tolerance The largest color error a leaf may have.
+     * @param scratch Statistics of the children of the quadrants being built, one row per depth.
+     * @param depth The depth of the node.
+     * @return The node, or null if the quadrant is a leaf, empty or outside the image.
+     */
+    private QTreeNode buildTree(int[][] pixels, int x, int y, int size, RegionStats stats,
+                                ErrorMetric metric, double tolerance, RegionStats[][] scratch, int depth) {
+        if (x >= width || y >= height) {
+            return null;
+        } else if (size == 1) {
+            stats.add(pixels[y][x]);
+            return null;
+        } else if (size == 0) {
+            return null;
+        }
+        int halfSize = size / 2;
+        int lastSize = size - halfSize;
+        int[] childX = {x, x + halfSize, x, x + halfSize};
+        int[] childY = {y, y, y + halfSize, y + halfSize};
+        int[] childSize = {halfSize, halfSize, halfSize, lastSize};
+        RegionStats[] childStats = scratch[depth];
+        QTreeNode[] children = new QTreeNode[4];
+        for (int i = 0; i < 4; i++) {
+            childStats[i].clear();
+            children[i] = buildTree(pixels, childX[i], childY[i], childSize[i], childStats[i],
+                                    metric, tolerance, scratch, depth + 1);
+            stats.add(childStats[i]);
+        }
+        if (lastSize != halfSize) {
+            for (int i = y; i < y + halfSize; i++) {
+                stats.add(pixels[i][x + size - 1]);
+            }
+            for (int j = x; j < x + halfSize; j++) {
+                stats.add(pixels[y + size - 1][j]);
+            }
+        }
+        double error = metric == ErrorMetric.VARIANCE ? stats.variance() : stats.maxDeviation();
+        if (error <= tolerance) {
+            return null;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (children[i] == null && childStats[i].getCount() > 0) {
+                children[i] = leaf(pixels, childX[i], childY[i], childSize[i], childStats[i]);
+            }
+        }
+        QTreeNode node = new QTreeNode(children, x, y, size, stats.averageColor());
+        node.setColorBounds(stats.getMinColor(), stats.getMaxColor());
+        for (QTreeNode child : children) {
+            if (child != null) {
+                child.setParent(node);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * A task that builds the tree of one quadrant, splitting into one task per child while the quadrant
+     * is larger than the cutoff. Each task combines the results of its children exactly as buildTree does.
+     */
+    private class BuildTask extends RecursiveTask<QTreeNode> {
+        private static final long serialVersionUID = 1;
+
+        private final int[][] pixels;
+        private final int x;
+        private final int y;
+        private final int size;
+        private final ErrorMetric metric;   // Null to keep every pixel
+        private final double tolerance;
+        private final int cutoff;
+        private final RegionStats stats = new RegionStats();
+
+        BuildTask(int[][] pixels, int x, int y, int size, ErrorMetric metric, double tolerance, int cutoff) {
+            this.pixels = pixels;
+            this.x = x;
+            this.y = y;
+            this.size = size;
+            this.metric = metric;
+            this.tolerance = tolerance;
+            this.cutoff = cutoff;
+        }
+
+        /**
+         * Builds the tree of the quadrant.
+         * @return The node of the quadrant, or null if it is empty or, when pruning, a leaf.
+         */
+        @Override
+        protected QTreeNode compute() {
+            if (size <= cutoff) {
+                if (metric == null) {
+                    return buildTree(pixels, x, y, size, stats);
+                }
+                return buildTree(pixels, x, y, size, stats, metric, tolerance, scratch(size), 0);
+            }
+            int halfSize = size / 2;
+            int lastSize = size - halfSize;
+            BuildTask[] tasks = {
+                new BuildTask(pixels, x, y, halfSize, metric, tolerance, cutoff),
+                new BuildTask(pixels, x + halfSize, y, halfSize, metric, tolerance, cutoff),
+                new BuildTask(pixels, x, y + halfSize, halfSize, metric, tolerance, cutoff),
+                new BuildTask(pixels, x + halfSize, y + halfSize, lastSize, metric, tolerance, cutoff)
+            };
+            invokeAll(tasks);
+            QTreeNode[] children = new QTreeNode[4];
+            RegionStats[] childStats = new RegionStats[4];
+            for (int i = 0; i < 4; i++) {
+                children[i] = tasks[i].join();
+                childStats[i] = tasks[i].stats;
+            }
+            return joinQuadrants(pixels, x, y, size, children, childStats, stats, metric, tolerance);
+        }
+    }
+
+    /**
+     * Creates the node of a quadrant from the subtrees of its children, built separately, exactly as buildTree
+     * would have.
+     * @param children The nodes of the children; when pruning, null for a child that is a leaf.
+     * @param childStats The statistics of the children.
+     * @param stats Receives the statistics of the quadrant.
+     * @param metric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @return The node, or, when pruning, null if the quadrant is a leaf.
+     */
+    private QTreeNode joinQuadrants(int[][] pixels, int x, int y, int size, QTreeNode[] children,
+                                    RegionStats[] childStats, RegionStats stats, ErrorMetric metric, double tolerance) {
+        int halfSize = size / 2;
+        int lastSize = size - halfSize;
+        for (int i = 0; i < 4; i++) {
+            stats.add(childStats[i]);
+        }
+        if (lastSize != halfSize) {
+            for (int i = y; i < y + halfSize; i++) {
+                stats.add(pixels[i][x + size - 1]);
+            }
+            for (int j = x; j < x + halfSize; j++) {
+                stats.add(pixels[y + size - 1][j]);
+            }
+        }
+        if (metric != null) {
+            double error = metric == ErrorMetric.VARIANCE ? stats.variance() : stats.maxDeviation();
+            if (error <= tolerance) {
+                return null;
+            }
+            for (int i = 0; i < 4; i++) {
+                if (children[i] == null && childStats[i].getCount() > 0) {
+                    children[i] = leaf(pixels, x + (i % 2) * halfSize, y + (i / 2) * halfSize,
+                                       i == 3 ? lastSize : halfSize, childStats[i]);
+                }
+            }
+        }
+        QTreeNode node = new QTreeNode(children, x, y, size, stats.averageColor());
+        node.setColorBounds(stats.getMinColor(), stats.getMaxColor());
+        for (QTreeNode child : children) {
+            if (child != null) {
+                child.setParent(node);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Returns the statistics used by the pruned buildTree for the children of the quadrants it builds.
+     * @param size The size of the largest quadrant that will be built.
+     * @return One row of statistics for each depth.
+     */
+    private static RegionStats[][] scratch(int size) {
+        RegionStats[][] scratch = new RegionStats[depth(size) + 1][4];
+        for (RegionStats[] level : scratch) {
+            for (int i = 0; i < 4; i++) {
+                level[i] = new RegionStats();
+            }
+        }
+        return scratch;
+    }
+
+    /**
+     * Creates a leaf covering a whole quadrant. A single pixel keeps its own color as in the full tree.
+     * @return The leaf.
+     */
+    private QTreeNode leaf(int[][] pixels, int x, int y, int size, RegionStats stats) {
+        int color = size == 1 ? pixels[y][x] : stats.averageColor();
+        QTreeNode leaf = new QTreeNode(null, x, y, size, color);
+        leaf.setColorBounds(stats.getMinColor(), stats.getMaxColor());
+        return leaf;
+    }
+
+    /**
+     * Returns the depth of a full tree over an image of the specified size.
+     */
+    private static int depth(int size) {
+        int depth = 0;
+        while (size > 1) {
+            size -= size / 2;
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of nodes in the tree, the number TreeFile writes. A node of a DAG is counted once for
+     * every quadrant it stands for.
+     * @return The number of nodes in the tree.
+     */
+    public int getNodeCount() {
+        return countNodes(root, false);
+    }
+
+    /**
+     * Returns the number of nodes kept in memory: the distinct nodes of a tree built on a DagStore, each of which
+     * may stand for many quadrants, otherwise the number of nodes in the tree.
+     * @return The number of nodes stored.
+     */
+    public int getStoredNodeCount() {
+        return dag != null ? dag.getNodeCount() : getNodeCount();
+    }
+
+    /**
+     * Returns the number of leaves in the tree, that is, the number of colors needed to draw the whole image.
+     * @return The number of leaves in the tree.
+     */
+    public int getLeafCount() {
+        return countNodes(root, true);
+    }
+
+    /**
+     * Returns the compression ratio of the tree: the number of pixels in the image per node in the tree.
+     * A full tree has a ratio of about 0.75; a pruned tree of a smooth image has a ratio well above 1.
+     * @return The compression ratio of the tree.
+     */
+    public double getCompressionRatio() {
+        if (root == null) {
+            return 0;
+        }
+        return width * (double) height / getNodeCount();
+    }
+
+    private int countNodes(QTreeNode node, boolean leavesOnly) {
+        if (node == null) {
+            return 0;
+        }
+        if (node.isLeaf()) {
+            return 1;
+        }
+        int count = leavesOnly ? 0 : 1;
+        for (int i = 0; i < 4; i++) {
+            count += countNodes(node.getChild(i), leavesOnly);
+        }
+        return count;
+    }
 
     /**
      * Returns the average color of the specified pixels.
@@ -229,9 +1124,9 @@ public class QuadrantTree {
         if (pixels.length == 0) {
             return 0; // Default color for empty array
         }
-        int redSum = 0;
-        int greenSum = 0;
-        int blueSum = 0;
+        long redSum = 0;    // Sums of more than 2^23 pixels overflow an int
+        long greenSum = 0;
+        long blueSum = 0;
 
         // Iterate over all pixels within the actual quadrant size
         for (int i = y; i < y + Math.min(size, pixels.length - y); i++) {
@@ -243,15 +1138,15 @@ public class QuadrantTree {
             }
         }
 
-        int numPixels = Math.min(size, pixels.length - y) * Math.min(size, pixels[0].length - x);
+        long numPixels = (long) Math.min(size, pixels.length - y) * Math.min(size, pixels[0].length - x);
         // Ensure no division by zero
         if (numPixels == 0) {
             return 0; // Or a default color if desired
         }
 
-        int averageRed = Math.round(redSum / (float) numPixels);
-        int averageGreen = Math.round(greenSum / (float) numPixels);
-        int averageBlue = Math.round(blueSum / (float) numPixels);
+        int averageRed = (int) Math.round(redSum / (double) numPixels);
+        int averageGreen = (int) Math.round(greenSum / (double) numPixels);
+        int averageBlue = (int) Math.round(blueSum / (double) numPixels);
 
         // Combine average components back into an ARGB integer
         return (0xFF << 24) | (averageRed << 16) | (averageGreen << 8) | averageBlue;
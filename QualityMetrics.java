@@ -0,0 +1,309 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A class named QualityMetrics that measures how far the images drawn from a tree are from the image it was built
+ * from. The mean squared error and the peak signal-to-noise ratio of every level are computed in one traversal of
+ * the tree: the channel sums and sums of squares of each node are added up from those of its children, the pixels
+ * being read once, at the leaves, and the error of a node drawn in its color follows from them. Only a quadrant of
+ * odd size, whose children do not cover it, reads its pixels again.
+ *
+ * The structural similarity (SSIM) of a level compares the luma of the two images in windows of 8 x 8 pixels,
+ * 4 pixels apart. The image is cut into tiles measured by the tasks of a ForkJoinPool, each drawing only the nodes
+ * over its tile.
+ */
+public class QualityMetrics {
+    private static final int WINDOW = 8;    // The side of the windows compared by SSIM
+    private static final int STRIDE = 4;    // The distance between two windows
+    private static final int TILE = 128;    // The side of the square of window positions measured by one task
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    private final int[][] pixels;
+    private final int width;
+    private final int height;
+
+    /**
+     * Constructor for QualityMetrics.
+     * @param thePixels The pixels of a square image.
+     */
+    public QualityMetrics(int[][] thePixels) {
+        this(thePixels, thePixels.length, thePixels.length);
+    }
+
+    /**
+     * Constructor for QualityMetrics for an image of any width and height.
+     * @param thePixels The pixels of the image, at least theHeight rows of at least theWidth pixels.
+     * @param theWidth The width of the image.
+     * @param theHeight The height of the image.
+     * @throws QTreeException If the image is larger than the array of pixels.
+     */
+    public QualityMetrics(int[][] thePixels, int theWidth, int theHeight) {
+        if (theWidth < 0 || theHeight < 0 || theHeight > thePixels.length
+            || (theHeight > 0 && theWidth > thePixels[0].length)) {
+            throw new QTreeException("The image is larger than its array of pixels");
+        }
+        pixels = thePixels;
+        width = theWidth;
+        height = theHeight;
+    }
+
+    /**
+     * Returns the mean squared error of every level of a tree, per pixel and channel. The image of a level is drawn
+     * with the nodes getPixels returns for it, so the last level is the image drawn with the leaves.
+     * @param tree The tree, built from the image.
+     * @return The mean squared error of levels 0 to the depth of the tree.
+     * @throws QTreeException If the tree does not cover the image.
+     */
+    public double[] getMse(QuadrantTree tree) {
+        check(tree);
+        long[] errors = new long[32];       // The error of the nodes of each depth
+        long[] leafErrors = new long[32];   // The error of the leaves of each depth
+        RegionStats[] scratch = new RegionStats[33];
+        for (int i = 0; i < scratch.length; i++) {
+            scratch[i] = new RegionStats();
+        }
+        int depth = measure(tree.getRoot(), 0, scratch, errors, leafErrors);
+        double[] mse = new double[depth + 1];
+        long above = 0;     // The error of the leaves above the level
+        double count = 3.0 * width * height;
+        for (int level = 0; level <= depth; level++) {
+            mse[level] = count == 0 ? 0 : (errors[level] + above) / count;
+            above += leafErrors[level];
+        }
+        return mse;
+    }
+
+    /**
+     * Returns the peak signal-to-noise ratio of every level of a tree.
+     * @param tree The tree, built from the image.
+     * @return The peak signal-to-noise ratio of levels 0 to the depth of the tree, in dB; positive infinity for
+     *         a level without error.
+     * @throws QTreeException If the tree does not cover the image.
+     */
+    public double[] getPsnr(QuadrantTree tree) {
+        double[] psnr = getMse(tree);
+        for (int level = 0; level < psnr.length; level++) {
+            psnr[level] = psnr(psnr[level]);
+        }
+        return psnr;
+    }
+
+    /**
+     * Returns the peak signal-to-noise ratio of 8 bit channels with a mean squared error.
+     * @param mse The mean squared error per pixel and channel.
+     * @return The peak signal-to-noise ratio in dB, or positive infinity if there is no error.
+     */
+    public static double psnr(double mse) {
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    /**
+     * Adds up the statistics of the pixels under a node and the error of every node of its subtree.
+     * @param depth The depth of the node.
+     * @param scratch One RegionStats per depth, for the statistics of the node being measured.
+     * @return The depth of the deepest node of the subtree.
+     */
+    private int measure(QTreeNode node, int depth, RegionStats[] scratch, long[] errors, long[] leafErrors) {
+        if (node == null) {
+            return depth - 1;
+        }
+        RegionStats stats = scratch[depth];
+        stats.clear();
+        int deepest = depth;
+        if (!node.isLeaf()) {
+            for (int i = 0; i < 4; i++) {
+                deepest = Math.max(deepest, measure(node.getChild(i), depth + 1, scratch, errors, leafErrors));
+            }
+        }
+        if (node.isLeaf() || node.getSize() % 2 != 0) {
+            // The children of a quadrant of odd size, split as the square builder does, do not cover it
+            stats.clear();
+            int x1 = Math.min(width, node.getx() + node.getSize());
+            int y1 = Math.min(height, node.gety() + node.getSize());
+            for (int y = node.gety(); y < y1; y++) {
+                for (int x = node.getx(); x < x1; x++) {
+                    stats.add(pixels[y][x]);
+                }
+            }
+        }
+        long error = stats.squaredError(node.getColor());
+        errors[depth] += error;
+        if (node.isLeaf()) {
+            leafErrors[depth] += error;
+        }
+        if (depth > 0) {
+            scratch[depth - 1].add(stats);
+        }
+        return deepest;
+    }
+
+    /**
+     * Returns the structural similarity of a level of a tree with the image, using the common pool.
+     * @param tree The tree, built from the image.
+     * @param level The level of the tree.
+     * @return The mean SSIM of the windows of the image, 1 for identical images.
+     * @throws QTreeException If the tree does not cover the image.
+     */
+    public double getSsim(QuadrantTree tree, int level) {
+        return getSsim(tree, level, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the structural similarity of a level of a tree with the image. The luma of both images is compared
+     * in windows of 8 x 8 pixels every 4 pixels; the windows of an image narrower or lower than that are as wide or
+     * as high as the image.
+     * @param tree The tree, built from the image.
+     * @param level The level of the tree.
+     * @param pool The pool the tiles are measured in.
+     * @return The mean SSIM of the windows of the image, 1 for identical images.
+     * @throws QTreeException If the tree does not cover the image.
+     */
+    public double getSsim(QuadrantTree tree, int level, ForkJoinPool pool) {
+        check(tree);
+        if (width == 0 || height == 0) {
+            return 1;
+        }
+        int columns = (Math.max(0, width - WINDOW) / STRIDE + TILE) / TILE;
+        int rows = (Math.max(0, height - WINDOW) / STRIDE + TILE) / TILE;
+        double[] result = pool.invoke(new SsimTask(tree.getRoot(), level, columns, 0, columns * rows));
+        return result[0] / result[1];
+    }
+
+    /**
+     * A task that measures a range of tiles, splitting into two tasks while it holds more than one tile. A tile
+     * holds TILE x TILE window positions.
+     */
+    private final class SsimTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1;
+
+        private final QTreeNode root;
+        private final int level;
+        private final int columns;  // The number of tiles in a row
+        private final int first;
+        private final int last;     // One past the last tile of the range
+
+        SsimTask(QTreeNode theRoot, int theLevel, int theColumns, int theFirst, int theLast) {
+            root = theRoot;
+            level = theLevel;
+            columns = theColumns;
+            first = theFirst;
+            last = theLast;
+        }
+
+        /**
+         * Measures the tiles.
+         * @return The sum of the SSIM of the windows of the tiles and the number of windows.
+         */
+        @Override
+        protected double[] compute() {
+            if (last - first == 1) {
+                return tile(root, level, first % columns, first / columns);
+            }
+            int middle = (first + last) / 2;
+            SsimTask left = new SsimTask(root, level, columns, first, middle);
+            SsimTask right = new SsimTask(root, level, columns, middle, last);
+            invokeAll(left, right);
+            double[] a = left.join();
+            double[] b = right.join();
+            return new double[] {a[0] + b[0], a[1] + b[1]};
+        }
+    }
+
+    /**
+     * Measures the windows of one tile: draws the luma of the level over the pixels the windows cover and compares
+     * it with the luma of the image.
+     * @return The sum of the SSIM of the windows and the number of windows.
+     */
+    private double[] tile(QTreeNode root, int level, int column, int row) {
+        int windowWidth = Math.min(WINDOW, width);
+        int windowHeight = Math.min(WINDOW, height);
+        int lastX = width - windowWidth;    // The largest x of a window
+        int lastY = height - windowHeight;
+        int x0 = column * TILE * STRIDE;
+        int y0 = row * TILE * STRIDE;
+        int x1 = Math.min(lastX, x0 + (TILE - 1) * STRIDE) + windowWidth;
+        int y1 = Math.min(lastY, y0 + (TILE - 1) * STRIDE) + windowHeight;
+        int w = x1 - x0;
+        float[] drawn = new float[w * (y1 - y0)];
+        draw(root, level, x0, y0, x1, y1, drawn);
+        float[] source = new float[drawn.length];
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                source[(y - y0) * w + x - x0] = luma(pixels[y][x]);
+            }
+        }
+        double sum = 0;
+        int count = 0;
+        double n = windowWidth * windowHeight;
+        for (int wy = y0; wy + windowHeight <= y1; wy += STRIDE) {
+            for (int wx = x0; wx + windowWidth <= x1; wx += STRIDE) {
+                double sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+                for (int y = wy - y0; y < wy - y0 + windowHeight; y++) {
+                    for (int i = y * w + wx - x0, end = i + windowWidth; i < end; i++) {
+                        double a = source[i];
+                        double b = drawn[i];
+                        sa += a;
+                        sb += b;
+                        saa += a * a;
+                        sbb += b * b;
+                        sab += a * b;
+                    }
+                }
+                double ma = sa / n;
+                double mb = sb / n;
+                double va = Math.max(0, saa / n - ma * ma);
+                double vb = Math.max(0, sbb / n - mb * mb);
+                double cov = sab / n - ma * mb;
+                sum += (2 * ma * mb + C1) * (2 * cov + C2) / ((ma * ma + mb * mb + C1) * (va + vb + C2));
+                count++;
+            }
+        }
+        return new double[] {sum, count};
+    }
+
+    /**
+     * Fills the luma of the nodes of a level over a rectangle, visiting only the nodes that overlap it.
+     * @param x1 One past the right edge of the rectangle.
+     * @param y1 One past the bottom edge of the rectangle.
+     * @param drawn The luma of the rectangle, row by row.
+     */
+    private static void draw(QTreeNode node, int level, int x0, int y0, int x1, int y1, float[] drawn) {
+        if (node == null || node.getx() >= x1 || node.gety() >= y1 || node.getx() + node.getSize() <= x0
+            || node.gety() + node.getSize() <= y0) {
+            return;
+        }
+        if (level == 0 || node.isLeaf()) {
+            float value = luma(node.getColor());
+            int left = Math.max(x0, node.getx()) - x0;
+            int right = Math.min(x1, node.getx() + node.getSize()) - x0;
+            int w = x1 - x0;
+            for (int y = Math.max(y0, node.gety()); y < Math.min(y1, node.gety() + node.getSize()); y++) {
+                Arrays.fill(drawn, (y - y0) * w + left, (y - y0) * w + right, value);
+            }
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            draw(node.getChild(i), level - 1, x0, y0, x1, y1, drawn);
+        }
+    }
+
+    private static float luma(int color) {
+        return 0.299f * ((color >> 16) & 0xff) + 0.587f * ((color >> 8) & 0xff) + 0.114f * (color & 0xff);
+    }
+
+    private void check(QuadrantTree tree) {
+        if (tree.getWidth() != width || tree.getHeight() != height || (tree.getRoot() == null && width > 0)) {
+            throw new QTreeException("The tree does not cover an image of " + width + "x" + height + " pixels");
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A class named RasterCache that keeps the canvases already drawn by DrawImage, keyed by the node the drawing
+ * starts at and the level of the tree it shows, so going back to a resolution already seen copies the canvas
+ * instead of traversing the tree again. The memory used by the canvases is bounded; when a new canvas does not
+ * fit, the canvases used least recently are dropped.
+ */
+public class RasterCache {
+    private final long capacity;            // Largest number of bytes of canvases kept
+    private long bytes;                     // Number of bytes of canvases kept
+    private long hits;
+    private long misses;
+    private long evictions;
+    private final LinkedHashMap<Key, int[]> canvases = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor for RasterCache.
+     * @param theCapacity The largest number of bytes the cached canvases may use.
+     */
+    public RasterCache(long theCapacity) {
+        capacity = theCapacity;
+    }
+
+    /**
+     * Returns the canvas drawn from the specified node at the specified level, without copying it.
+     * @param node The node the drawing starts at.
+     * @param level The level of the drawing below node.
+     * @return The pixels of the canvas row by row, which must not be changed, or null if it has to be drawn.
+     */
+    public int[] get(QTreeNode node, int level) {
+        int[] canvas = canvases.get(new Key(node, level));
+        if (canvas == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return canvas;
+    }
+
+    /**
+     * Stores a copy of the canvas drawn from the specified node at the specified level.
+     * @param node The node the drawing starts at.
+     * @param level The level of the drawing below node.
+     * @param pixels The pixels of the canvas drawn, row by row.
+     */
+    public void put(QTreeNode node, int level, int[] pixels) {
+        if (4L * pixels.length > capacity) {
+            return;
+        }
+        Key key = new Key(node, level);
+        int[] canvas = pixels.clone();
+        long canvasBytes = 4L * canvas.length;
+        int[] old = canvases.put(key, canvas);
+        if (old != null) {
+            bytes -= 4L * old.length;
+        }
+        bytes += canvasBytes;
+        // The map is in access order, so its first entries are the ones used least recently
+        Iterator<int[]> eldest = canvases.values().iterator();
+        while (bytes > capacity) {
+            bytes -= 4L * eldest.next().length;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops every canvas, for example when a new image is loaded. The counters are kept.
+     */
+    public void clear() {
+        canvases.clear();
+        bytes = 0;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of canvases in the cache.
+     * @return The number of canvases in the cache.
+     */
+    public int size() {
+        return canvases.size();
+    }
+
+    /**
+     * Returns the number of bytes used by the canvases in the cache.
+     * @return The number of bytes used by the cache.
+     */
+    public long getByteSize() {
+        return bytes;
+    }
+
+    /**
+     * The key of a canvas: the node the drawing starts at and the level drawn below it.
+     */
+    private static final class Key {
+        private final QTreeNode node;
+        private final int level;
+
+        Key(QTreeNode theNode, int theLevel) {
+            node = theNode;
+            level = theLevel;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return level == key.level && node.equals(key.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * node.hashCode() + level;
+        }
+    }
+}
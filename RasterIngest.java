@@ -0,0 +1,176 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * A class named RasterIngest that copies the pixels of an image into the array the tree is built from.
+ * For the layouts the bundled images use (TYPE_3BYTE_BGR, as ImageIO decodes JPEGs, and TYPE_INT_RGB or
+ * TYPE_INT_ARGB) the samples are read straight from the raster's DataBuffer, one row at a time, into the rows
+ * of the array. Other layouts are converted a row at a time by BufferedImage.getRGB. Either way the colors are
+ * the ones getRGB returns for each pixel.
+ */
+public class RasterIngest {
+    private static final int SIZE_CANVAS = 512;
+
+    /**
+     * Loads an image into a square array of pixels, padded with black up to 512, 1024 or 2048 as DrawImage does.
+     * @param imageFile The image file to load.
+     * @return The pixels of the image.
+     * @throws IOException If the file cannot be read.
+     */
+    public static int[][] load(String imageFile) throws IOException {
+        return load(read(new File(imageFile)));
+    }
+
+    /**
+     * Decodes an image file with ImageIO, recording the time it takes in a TreeEvents.Decode event.
+     * @param imageFile The image file.
+     * @return The image.
+     * @throws IOException If the file cannot be read or its format is not supported.
+     */
+    public static BufferedImage read(File imageFile) throws IOException {
+        TreeEvents.Decode event = new TreeEvents.Decode();
+        event.start();
+        BufferedImage im = null;
+        try {
+            im = ImageIO.read(imageFile);
+        } finally {
+            event.finish(imageFile.getPath(), im == null ? 0 : im.getWidth(), im == null ? 0 : im.getHeight());
+        }
+        if (im == null) {
+            throw new IOException("Unsupported image format: " + imageFile);
+        }
+        return im;
+    }
+
+    /**
+     * Copies an image into a square array of pixels, padded with black up to 512, 1024 or 2048 as DrawImage does.
+     * @param im The image.
+     * @return The pixels of the image.
+     */
+    public static int[][] load(BufferedImage im) {
+        return pixels(im, canvasSize(im.getWidth(), im.getHeight()));
+    }
+
+    /**
+     * Returns the size of the square array DrawImage stores an image in: the smallest of 512, 1024 and 2048
+     * that is at least the smaller side of the image, or 2048 for larger images.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The size of the array.
+     */
+    public static int canvasSize(int width, int height) {
+        int size = Math.min(width, height);
+        if (size <= SIZE_CANVAS) return SIZE_CANVAS;
+        if (size <= 2 * SIZE_CANVAS) return 2 * SIZE_CANVAS;
+        return 4 * SIZE_CANVAS;
+    }
+
+    /**
+     * Copies an image into a square array of pixels. The parts of the array outside the image are 0 and the
+     * parts of the image outside the array are left out.
+     * @param im The image.
+     * @param size The size of the array.
+     * @return The pixels of the image.
+     */
+    public static int[][] pixels(BufferedImage im, int size) {
+        int[][] pixels = new int[size][size];
+        copy(im, pixels, Math.min(size, im.getWidth()), Math.min(size, im.getHeight()));
+        return pixels;
+    }
+
+    /**
+     * Copies an image into an array of pixels of the same width and height, without padding, for
+     * new QuadrantTree(pixels, width, height).
+     * @param im The image.
+     * @return The pixels of the image, one row of im.getWidth() pixels for each of its rows.
+     */
+    public static int[][] pixels(BufferedImage im) {
+        int[][] pixels = new int[im.getHeight()][im.getWidth()];
+        copy(im, pixels, im.getWidth(), im.getHeight());
+        return pixels;
+    }
+
+    /**
+     * Copies the upper left width x height pixels of an image into the array.
+     */
+    static void copy(BufferedImage im, int[][] pixels, int width, int height) {
+        TreeEvents.Ingest event = new TreeEvents.Ingest();
+        event.start();
+        copyRows(im, pixels, width, 0, height);
+        event.finish(width, height, im.getType());
+    }
+
+    /**
+     * Copies the first width pixels of some rows of an image into the same rows of the array.
+     * @param fromRow The first row to copy.
+     * @param toRow The row after the last row to copy.
+     */
+    private static void copyRows(BufferedImage im, int[][] pixels, int width, int fromRow, int toRow) {
+        Raster raster = im.getRaster();
+        boolean direct = raster.getParent() == null && raster.getSampleModelTranslateX() == 0
+                         && raster.getSampleModelTranslateY() == 0;
+        int type = im.getType();
+        if (direct && type == BufferedImage.TYPE_3BYTE_BGR) {
+            copyBgr(raster, pixels, width, fromRow, toRow);
+        } else if (direct && (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)) {
+            copyInt(raster, pixels, width, fromRow, toRow, type == BufferedImage.TYPE_INT_ARGB);
+        } else {
+            for (int y = fromRow; y < toRow; y++) {
+                im.getRGB(0, y, width, 1, pixels[y], 0, width);
+            }
+        }
+    }
+
+    /**
+     * Copies the rows of a raster of interleaved blue, green and red bytes.
+     */
+    private static void copyBgr(Raster raster, int[][] pixels, int width, int fromRow, int toRow) {
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        byte[] data = ((DataBufferByte) buffer).getData();
+        int stride = model.getScanlineStride();
+        int pixelStride = model.getPixelStride();
+        int[] bands = model.getBandOffsets();
+        int red = bands[0];
+        int green = bands[1];
+        int blue = bands[2];
+        for (int y = fromRow; y < toRow; y++) {
+            int[] row = pixels[y];
+            int offset = buffer.getOffset() + y * stride;
+            for (int x = 0; x < width; x++, offset += pixelStride) {
+                row[x] = 0xff000000 | (data[offset + red] & 0xff) << 16 | (data[offset + green] & 0xff) << 8
+                         | (data[offset + blue] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Copies the rows of a raster of packed RGB or ARGB ints.
+     * @param hasAlpha True if the ints hold an alpha channel; otherwise the pixels are made opaque.
+     */
+    private static void copyInt(Raster raster, int[][] pixels, int width, int fromRow, int toRow, boolean hasAlpha) {
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        int[] data = ((DataBufferInt) buffer).getData();
+        int stride = model.getScanlineStride();
+        for (int y = fromRow; y < toRow; y++) {
+            int[] row = pixels[y];
+            int offset = buffer.getOffset() + y * stride;
+            if (hasAlpha) {
+                System.arraycopy(data, offset, row, 0, width);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    row[x] = 0xff000000 | (data[offset + x] & 0xffffff);
+                }
+            }
+        }
+    }
+}
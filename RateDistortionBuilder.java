@@ -0,0 +1,283 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * A class named RateDistortionBuilder that builds the tree of an image to a node budget or to a quality target
+ * instead of to a tolerance. It starts from a tree holding only the root and repeatedly splits the leaf whose split
+ * removes the most squared error per node it adds. It stops when no split fits in what is left of the budget, when
+ * the peak signal-to-noise ratio reaches the target, or when every leaf is a single color. The statistics of the
+ * quadrants are read from a RegionPyramid, so evaluating a split does not rescan its pixels.
+ *
+ * A split is ranked by the better of two rates: the error its children remove per child, and the error its
+ * grandchildren would remove per child and grandchild. Looking one level further finds the textures whose
+ * quadrants have the same average color, which the children alone do not improve but their own children do.
+ *
+ * The builder records the error after every split, the curve of the error against the number of nodes, which
+ * tells what a smaller budget or a lower target would have given without building again.
+ */
+public class RateDistortionBuilder {
+    private final int[][] pixels;
+    private final int width;
+    private final int height;
+    private RegionPyramid pyramid;      // Created by the first build
+    private int[] curveNodes = new int[1 << 10];    // The number of nodes after each split
+    private long[] curveErrors = new long[1 << 10]; // The squared error after each split
+    private int curveLength;
+
+    /**
+     * A leaf that can be split, with the error its split removes.
+     */
+    private static final class Split {
+        final QTreeNode leaf;
+        final long gain;    // The squared error removed by splitting the leaf
+        final double rate;  // The error removed per node added, looking two levels down
+
+        Split(QTreeNode theLeaf, long theGain, double theRate) {
+            leaf = theLeaf;
+            gain = theGain;
+            rate = theRate;
+        }
+    }
+
+    /**
+     * Constructor for RateDistortionBuilder.
+     * @param thePixels The pixels of a square image.
+     */
+    public RateDistortionBuilder(int[][] thePixels) {
+        this(thePixels, thePixels.length, thePixels.length);
+    }
+
+    /**
+     * Constructor for RateDistortionBuilder for an image of any width and height.
+     * @param thePixels The pixels of the image, at least theHeight rows of at least theWidth pixels.
+     * @param theWidth The width of the image.
+     * @param theHeight The height of the image.
+     * @throws QTreeException If the image is larger than the array of pixels.
+     */
+    public RateDistortionBuilder(int[][] thePixels, int theWidth, int theHeight) {
+        if (theWidth < 0 || theHeight < 0 || theHeight > thePixels.length
+            || (theHeight > 0 && theWidth > thePixels[0].length)) {
+            throw new QTreeException("The image is larger than its array of pixels");
+        }
+        pixels = thePixels;
+        width = theWidth;
+        height = theHeight;
+    }
+
+    /**
+     * Builds the tree with the least error the greedy splits give within a number of nodes.
+     * @param maxNodes The largest number of nodes the tree may have, at least 1.
+     * @return The tree.
+     */
+    public QuadrantTree buildToNodeCount(int maxNodes) {
+        return build(maxNodes, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Builds the tree with the fewest nodes the greedy splits give for a peak signal-to-noise ratio.
+     * @param targetPsnr The smallest peak signal-to-noise ratio of the tree, in dB.
+     * @return The tree.
+     */
+    public QuadrantTree buildToPsnr(double targetPsnr) {
+        return build(Integer.MAX_VALUE, targetPsnr);
+    }
+
+    /**
+     * Builds the tree by splitting the leaf that removes the most error per node until no split fits in what is left
+     * of the node budget or the peak signal-to-noise ratio reaches the target, whichever comes first. A split that
+     * does not fit is skipped for the next best one.
+     * @param maxNodes The largest number of nodes the tree may have, at least 1.
+     * @param targetPsnr The peak signal-to-noise ratio at which to stop, in dB.
+     * @return The tree.
+     * @throws QTreeException If the budget is smaller than one node.
+     */
+    public QuadrantTree build(int maxNodes, double targetPsnr) {
+        if (maxNodes < 1) {
+            throw new QTreeException("A tree needs at least one node");
+        }
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        curveLength = 0;
+        int size = QuadrantTree.coverSize(width, height);
+        if (size == 0) {
+            event.finish(null, "rate-distortion", true);
+            return new QuadrantTree((QTreeNode) null, width, height);
+        }
+        if (pyramid == null) {
+            pyramid = new RegionPyramid(pixels, width, height, size);
+        }
+        PriorityQueue<Split> leaves = new PriorityQueue<>((a, b) -> Double.compare(b.rate, a.rate));
+        RegionStats rootStats = pyramid.get(0, 0, size);
+        QTreeNode root = node(rootStats, 0, 0, size);
+        long error = rootStats.squaredError(root.getColor());
+        int nodes = 1;
+        record(nodes, error);
+        offer(leaves, root, error);
+        while (!leaves.isEmpty() && nodes < maxNodes && psnr(error) < targetPsnr) {
+            Split split = leaves.poll();
+            int children = childCount(split.leaf);
+            if (nodes + children > maxNodes) {
+                continue;   // A split on the edge of the image adds fewer children and may still fit
+            }
+            QTreeNode leaf = split.leaf;
+            int halfSize = leaf.getSize() / 2;
+            for (int i = 0; i < 4; i++) {
+                int x = leaf.getx() + (i % 2) * halfSize;
+                int y = leaf.gety() + (i / 2) * halfSize;
+                if (x < width && y < height) {
+                    RegionStats stats = pyramid.get(x, y, halfSize);
+                    QTreeNode child = node(stats, x, y, halfSize);
+                    child.setParent(leaf);
+                    leaf.setChild(child, i);
+                    offer(leaves, child, stats.squaredError(child.getColor()));
+                }
+            }
+            nodes += children;
+            error -= split.gain;
+            record(nodes, error);
+        }
+        event.finish(root, "rate-distortion", true);
+        return new QuadrantTree(root, width, height);
+    }
+
+    private QTreeNode node(RegionStats stats, int x, int y, int size) {
+        QTreeNode node = new QTreeNode(null, x, y, size, color(stats, x, y, size));
+        node.setColorBounds(stats.getMinColor(), stats.getMaxColor());
+        return node;
+    }
+
+    private int color(RegionStats stats, int x, int y, int size) {
+        return size == 1 ? pyramid.getPixel(x, y) : stats.averageColor();
+    }
+
+    /**
+     * Adds a leaf to the leaves that can be split, with the error its split would remove and its rate. A leaf
+     * without error gains nothing from a split and is left out.
+     */
+    private void offer(PriorityQueue<Split> leaves, QTreeNode leaf, long error) {
+        if (error == 0 || leaf.getSize() == 1) {
+            return;
+        }
+        int halfSize = leaf.getSize() / 2;
+        int quarterSize = halfSize / 2;
+        long childError = 0;
+        long grandchildError = 0;
+        int children = 0;
+        int grandchildren = 0;
+        for (int i = 0; i < 4; i++) {
+            int x = leaf.getx() + (i % 2) * halfSize;
+            int y = leaf.gety() + (i / 2) * halfSize;
+            if (x >= width || y >= height) {
+                continue;
+            }
+            RegionStats stats = pyramid.get(x, y, halfSize);
+            childError += stats.squaredError(color(stats, x, y, halfSize));
+            children++;
+            for (int j = 0; j < 4 && quarterSize > 0; j++) {
+                int gx = x + (j % 2) * quarterSize;
+                int gy = y + (j / 2) * quarterSize;
+                if (gx < width && gy < height) {
+                    RegionStats grandchild = pyramid.get(gx, gy, quarterSize);
+                    grandchildError += grandchild.squaredError(color(grandchild, gx, gy, quarterSize));
+                    grandchildren++;
+                }
+            }
+        }
+        double rate = (error - childError) / (double) children;
+        if (grandchildren > 0) {
+            rate = Math.max(rate, (error - grandchildError) / (double) (children + grandchildren));
+        }
+        leaves.add(new Split(leaf, error - childError, rate));
+    }
+
+    /**
+     * Returns the number of children splitting a leaf creates: one for each of its quadrants overlapping the image.
+     */
+    private int childCount(QTreeNode leaf) {
+        int halfSize = leaf.getSize() / 2;
+        int columns = leaf.getx() + halfSize < width ? 2 : 1;
+        int rows = leaf.gety() + halfSize < height ? 2 : 1;
+        return columns * rows;
+    }
+
+    private void record(int nodes, long error) {
+        if (curveLength == curveNodes.length) {
+            curveNodes = Arrays.copyOf(curveNodes, 2 * curveLength);
+            curveErrors = Arrays.copyOf(curveErrors, 2 * curveLength);
+        }
+        curveNodes[curveLength] = nodes;
+        curveErrors[curveLength] = error;
+        curveLength++;
+    }
+
+    /**
+     * Returns the peak signal-to-noise ratio of an image drawn with a squared error, over its three channels.
+     * @param error The squared error summed over the pixels and channels of the image.
+     * @return The peak signal-to-noise ratio in dB, or positive infinity if there is no error.
+     */
+    private double psnr(long error) {
+        return error == 0 ? Double.POSITIVE_INFINITY
+                          : 10 * Math.log10(255.0 * 255.0 * 3 * width * (double) height / error);
+    }
+
+    /**
+     * Returns the number of points of the error curve of the last build: one for the root and one per split.
+     * @return The number of points of the curve.
+     */
+    public int getCurveLength() {
+        return curveLength;
+    }
+
+    /**
+     * Returns the number of nodes of the tree at a point of the error curve of the last build.
+     * @param point The index of the point, 0 for the root alone.
+     * @return The number of nodes.
+     */
+    public int getCurveNodeCount(int point) {
+        checkPoint(point);
+        return curveNodes[point];
+    }
+
+    /**
+     * Returns the mean squared error of the tree at a point of the error curve of the last build, per pixel and
+     * channel.
+     * @param point The index of the point, 0 for the root alone.
+     * @return The mean squared error.
+     */
+    public double getCurveMse(int point) {
+        checkPoint(point);
+        return curveErrors[point] / (3.0 * width * height);
+    }
+
+    /**
+     * Returns the peak signal-to-noise ratio of the tree at a point of the error curve of the last build.
+     * @param point The index of the point, 0 for the root alone.
+     * @return The peak signal-to-noise ratio in dB, or positive infinity if the tree has no error.
+     */
+    public double getCurvePsnr(int point) {
+        checkPoint(point);
+        return psnr(curveErrors[point]);
+    }
+
+    /**
+     * Returns the peak signal-to-noise ratio of the tree of the last build.
+     * @return The peak signal-to-noise ratio in dB, or positive infinity if the tree has no error.
+     */
+    public double getPsnr() {
+        return curveLength == 0 ? Double.POSITIVE_INFINITY : psnr(curveErrors[curveLength - 1]);
+    }
+
+    private void checkPoint(int point) {
+        if (point < 0 || point >= curveLength) {
+            throw new QTreeException("Invalid point of the error curve");
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
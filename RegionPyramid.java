@@ -0,0 +1,198 @@
+import java.util.Arrays;
+
+/**
+ * A class named RegionPyramid that keeps the statistics of every quadrant of an image, one level per quadrant size,
+ * so that after some pixels change the statistics of the quadrants covering them are recomputed from those of
+ * their children instead of by rescanning their pixels. Quadrants smaller than 4 x 4 pixels are not kept: their
+ * statistics are read from the pixels when asked for. QuadrantTree uses it to edit a tree in place, and
+ * FrameSequence to find the quadrants of a frame that differ from the previous frame. The side of the square
+ * covering the image must be a power of two, as the quadrants of each level then form a grid.
+ */
+public class RegionPyramid {
+    private static final int BASE = 2;  // The smallest quadrants kept are 2^BASE pixels wide
+
+    private final int[][] pixels;
+    private final int width;
+    private final int height;
+    private final int size;
+    private final RegionStats[][] levels;   // levels[k] holds the quadrants of size 2^(k + BASE), row by row
+    private boolean[][] changed;            // The quadrants of each level whose pixels the last load changed
+    private boolean anyChanged;             // True if the last load changed a pixel
+
+    /**
+     * Constructor for RegionPyramid. It reads every pixel of the image once.
+     * @param thePixels The pixels of the image.
+     * @param theWidth The width of the image.
+     * @param theHeight The height of the image.
+     * @param theSize The size of the square covering the image, the size of the root of its tree.
+     * @throws QTreeException If the size is not a power of two.
+     */
+    public RegionPyramid(int[][] thePixels, int theWidth, int theHeight, int theSize) {
+        if (Integer.bitCount(theSize) != 1) {
+            throw new QTreeException("The statistics of the quadrants need a tree whose size is a power of two");
+        }
+        pixels = thePixels;
+        width = theWidth;
+        height = theHeight;
+        size = theSize;
+        int depth = Integer.numberOfTrailingZeros(size);
+        levels = new RegionStats[Math.max(0, depth - BASE + 1)][];
+        for (int k = 0; k < levels.length; k++) {
+            int side = size >> (k + BASE);
+            levels[k] = new RegionStats[side * side];
+            for (int i = 0; i < levels[k].length; i++) {
+                levels[k][i] = new RegionStats();
+                compute(k, i % side, i / side);
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of a quadrant. Those of a quadrant 4 x 4 pixels or larger are the ones kept by the
+     * pyramid and must not be changed.
+     * @param x The x-coordinate of the quadrant.
+     * @param y The y-coordinate of the quadrant.
+     * @param theSize The size of the quadrant, a power of two; x and y are multiples of it.
+     * @return The statistics of the pixels of the image in the quadrant.
+     */
+    public RegionStats get(int x, int y, int theSize) {
+        if (theSize < 1 << BASE) {
+            RegionStats stats = new RegionStats();
+            addPixels(stats, x, y, theSize);
+            return stats;
+        }
+        int k = Integer.numberOfTrailingZeros(theSize) - BASE;
+        return levels[k][(y >> (k + BASE)) * (size >> (k + BASE)) + (x >> (k + BASE))];
+    }
+
+    /**
+     * Returns the color of a pixel of the image.
+     * @param x The x-coordinate of the pixel.
+     * @param y The y-coordinate of the pixel.
+     * @return The color of the pixel.
+     */
+    public int getPixel(int x, int y) {
+        return pixels[y][x];
+    }
+
+    /**
+     * Replaces the pixels of the image by those of another image of the same size, such as the next frame of a
+     * video, and recomputes the statistics of the quadrants whose pixels differ. The rows are compared with
+     * Arrays.mismatch, so the unchanged parts of the image are only read.
+     * @param image The pixels of the new image, at least height rows of at least width pixels.
+     * @return True if a pixel changed.
+     */
+    public boolean load(int[][] image) {
+        if (changed == null) {
+            changed = new boolean[levels.length][];
+            for (int k = 0; k < levels.length; k++) {
+                changed[k] = new boolean[levels[k].length];
+            }
+        } else {
+            for (boolean[] level : changed) {
+                Arrays.fill(level, false);
+            }
+        }
+        anyChanged = false;
+        int side = size >> BASE;
+        for (int y = 0; y < height; y++) {
+            int[] row = pixels[y];
+            int[] newRow = image[y];
+            int x = Arrays.mismatch(row, 0, width, newRow, 0, width);
+            while (x >= 0) {
+                // Copy the rest of the row of the quadrant the difference falls in, and go on after it
+                int end = Math.min(((x >> BASE) + 1) << BASE, width);
+                System.arraycopy(newRow, x, row, x, end - x);
+                if (levels.length > 0) {
+                    changed[0][(y >> BASE) * side + (x >> BASE)] = true;
+                }
+                anyChanged = true;
+                int next = end < width ? Arrays.mismatch(row, end, width, newRow, end, width) : -1;
+                x = next < 0 ? -1 : end + next;
+            }
+        }
+        for (int k = 0; k < levels.length; k++) {
+            int levelSide = size >> (k + BASE);
+            for (int cy = 0; cy < levelSide; cy++) {
+                for (int cx = 0; cx < levelSide; cx++) {
+                    int i = cy * levelSide + cx;
+                    if (k > 0) {
+                        int first = 2 * cy * 2 * levelSide + 2 * cx;
+                        boolean[] below = changed[k - 1];
+                        changed[k][i] = below[first] | below[first + 1] | below[first + 2 * levelSide]
+                                        | below[first + 2 * levelSide + 1];
+                    }
+                    if (changed[k][i]) {
+                        compute(k, cx, cy);
+                    }
+                }
+            }
+        }
+        return anyChanged;
+    }
+
+    /**
+     * Returns true if the last load changed a pixel of a quadrant. A quadrant smaller than 4 x 4 pixels is
+     * reported as changed if a pixel of the 4 x 4 quadrant containing it changed.
+     * @param x The x-coordinate of the quadrant.
+     * @param y The y-coordinate of the quadrant.
+     * @param theSize The size of the quadrant, a power of two; x and y are multiples of it.
+     * @return True if the quadrant may have changed, false if it did not.
+     */
+    public boolean isChanged(int x, int y, int theSize) {
+        if (levels.length == 0) {
+            return anyChanged;
+        }
+        int k = Math.max(Integer.numberOfTrailingZeros(theSize) - BASE, 0);
+        return changed != null && changed[k][(y >> (k + BASE)) * (size >> (k + BASE)) + (x >> (k + BASE))];
+    }
+
+    /**
+     * Recomputes the statistics of the quadrants covering a rectangle whose pixels changed. Each level is
+     * computed from the one below it, so the work is proportional to the area of the rectangle plus the
+     * number of levels.
+     * @param x0 The x-coordinate of the upper left pixel of the rectangle.
+     * @param y0 The y-coordinate of the upper left pixel of the rectangle.
+     * @param x1 The x-coordinate just right of the rectangle.
+     * @param y1 The y-coordinate just below the rectangle.
+     */
+    public void update(int x0, int y0, int x1, int y1) {
+        for (int k = 0; k < levels.length; k++) {
+            int shift = k + BASE;
+            for (int cy = y0 >> shift; cy <= (y1 - 1) >> shift; cy++) {
+                for (int cx = x0 >> shift; cx <= (x1 - 1) >> shift; cx++) {
+                    compute(k, cx, cy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the statistics of one quadrant of a level, from the pixels for the lowest level and from the four
+     * quadrants of the level below otherwise.
+     */
+    private void compute(int k, int cx, int cy) {
+        int side = size >> (k + BASE);
+        RegionStats stats = levels[k][cy * side + cx];
+        stats.clear();
+        if (k == 0) {
+            addPixels(stats, cx << BASE, cy << BASE, 1 << BASE);
+            return;
+        }
+        RegionStats[] below = levels[k - 1];
+        int belowSide = 2 * side;
+        int first = 2 * cy * belowSide + 2 * cx;
+        stats.add(below[first]);
+        stats.add(below[first + 1]);
+        stats.add(below[first + belowSide]);
+        stats.add(below[first + belowSide + 1]);
+    }
+
+    private void addPixels(RegionStats stats, int x, int y, int theSize) {
+        for (int i = y; i < Math.min(y + theSize, height); i++) {
+            for (int j = x; j < Math.min(x + theSize, width); j++) {
+                stats.add(pixels[i][j]);
+            }
+        }
+    }
+}
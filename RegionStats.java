@@ -0,0 +1,159 @@
+/**
+ * A class named RegionStats that accumulates the red, green and blue channel sums of a region of an image,
+ * so the average color of a region can be computed from the sums of its sub-regions instead of rescanning its pixels.
+ * It also keeps the sums of squares and the range of every channel, which measure how far the region is from
+ * being a single color.
+ */
+public class RegionStats {
+    private long redSum;
+    private long greenSum;
+    private long blueSum;
+    private long redSquares;
+    private long greenSquares;
+    private long blueSquares;
+    private int minColor = 0xffffff;    // Per channel minimum, packed as RGB
+    private int maxColor = 0;           // Per channel maximum, packed as RGB
+    private long count;     // Number of pixels accumulated
+
+    /**
+     * Adds one pixel to the region.
+     * @param color The color of the pixel.
+     */
+    public void add(int color) {
+        int red = (color >> 16) & 0xff;
+        int green = (color >> 8) & 0xff;
+        int blue = color & 0xff;
+        redSum += red;
+        greenSum += green;
+        blueSum += blue;
+        redSquares += red * red;
+        greenSquares += green * green;
+        blueSquares += blue * blue;
+        minColor = minChannels(minColor, color);
+        maxColor = maxChannels(maxColor, color);
+        count++;
+    }
+
+    /**
+     * Adds all the pixels accumulated by another region to this one.
+     * @param other The region to add.
+     */
+    public void add(RegionStats other) {
+        redSum += other.redSum;
+        greenSum += other.greenSum;
+        blueSum += other.blueSum;
+        redSquares += other.redSquares;
+        greenSquares += other.greenSquares;
+        blueSquares += other.blueSquares;
+        minColor = minChannels(minColor, other.minColor);
+        maxColor = maxChannels(maxColor, other.maxColor);
+        count += other.count;
+    }
+
+    /**
+     * Empties the region so the object can be reused.
+     */
+    public void clear() {
+        redSum = greenSum = blueSum = 0;
+        redSquares = greenSquares = blueSquares = 0;
+        minColor = 0xffffff;
+        maxColor = 0;
+        count = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getRedSum() {
+        return redSum;
+    }
+
+    public long getGreenSum() {
+        return greenSum;
+    }
+
+    public long getBlueSum() {
+        return blueSum;
+    }
+
+    public int getMinColor() {
+        return minColor;
+    }
+
+    public int getMaxColor() {
+        return maxColor;
+    }
+
+    /**
+     * Returns the variance of the region: the mean squared difference between its pixels and its average
+     * color, averaged over the three channels.
+     * @return The variance of the region, or 0 if the region is empty.
+     */
+    public double variance() {
+        if (count == 0 || minColor == maxColor) {
+            return 0;
+        }
+        double red = redSquares - redSum * (double) redSum / count;
+        double green = greenSquares - greenSum * (double) greenSum / count;
+        double blue = blueSquares - blueSum * (double) blueSum / count;
+        return Math.max(0, (red + green + blue) / (3.0 * count));
+    }
+
+    /**
+     * Returns the largest difference, in any channel, between a pixel of the region and its average color.
+     * @return The maximum deviation of the region, or 0 if the region is empty.
+     */
+    public double maxDeviation() {
+        if (count == 0) {
+            return 0;
+        }
+        double red = deviation(redSum, minColor >> 16, maxColor >> 16);
+        double green = deviation(greenSum, (minColor >> 8) & 0xff, (maxColor >> 8) & 0xff);
+        double blue = deviation(blueSum, minColor & 0xff, maxColor & 0xff);
+        return Math.max(red, Math.max(green, blue));
+    }
+
+    /**
+     * Returns the sum, over the pixels of the region and the three channels, of the squared difference between a
+     * pixel and the specified color: the error of drawing the whole region in that color.
+     * @param color The color the region is drawn in.
+     * @return The squared error of the region.
+     */
+    public long squaredError(int color) {
+        return squaredError(redSum, redSquares, (color >> 16) & 0xff)
+               + squaredError(greenSum, greenSquares, (color >> 8) & 0xff)
+               + squaredError(blueSum, blueSquares, color & 0xff);
+    }
+
+    private long squaredError(long sum, long squares, int value) {
+        return squares - 2 * value * sum + count * value * value;
+    }
+
+    private double deviation(long sum, int min, int max) {
+        double mean = sum / (double) count;
+        return Math.max(max - mean, mean - min);
+    }
+
+    static int minChannels(int a, int b) {
+        return Math.min(a & 0xff0000, b & 0xff0000) | Math.min(a & 0xff00, b & 0xff00) | Math.min(a & 0xff, b & 0xff);
+    }
+
+    static int maxChannels(int a, int b) {
+        return Math.max(a & 0xff0000, b & 0xff0000) | Math.max(a & 0xff00, b & 0xff00) | Math.max(a & 0xff, b & 0xff);
+    }
+
+    /**
+     * Returns the average color of the region, rounded the same way as QuadrantTree.averageColor.
+     * @return The average color of the region as an ARGB integer, or 0 if the region is empty.
+     */
+    public int averageColor() {
+        if (count == 0) {
+            return 0;
+        }
+        int averageRed = (int) Math.round(redSum / (double) count);
+        int averageGreen = (int) Math.round(greenSum / (double) count);
+        int averageBlue = (int) Math.round(blueSum / (double) count);
+        return (0xFF << 24) | (averageRed << 16) | (averageGreen << 8) | averageBlue;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * A class named StoredNode that is a lightweight view of a node kept in a NodeStore. Views are created when
+ * a node is reached, so a stored tree holds no node objects; two views of the same node are equal but, except
+ * for the root, not the same object.
+ */
+public class StoredNode extends QTreeNode {
+    private final NodeStore store;
+    private final int index;
+
+    /**
+     * Constructor for StoredNode.
+     * @param theStore The store holding the node.
+     * @param theIndex The index of the node in the store.
+     */
+    public StoredNode(NodeStore theStore, int theIndex) {
+        super((QTreeNode) null);
+        store = theStore;
+        index = theIndex;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getx() {
+        return store.getx(index);
+    }
+
+    @Override
+    public int gety() {
+        return store.gety(index);
+    }
+
+    @Override
+    public int getSize() {
+        return store.getSize(index);
+    }
+
+    @Override
+    public int getColor() {
+        return store.getColor(index);
+    }
+
+    @Override
+    public QTreeNode getParent() {
+        return store.node(store.getParent(index));
+    }
+
+    @Override
+    public QTreeNode getChild(int childIndex) throws QTreeException {
+        if (childIndex < 0 || childIndex > 3) {
+            throw new QTreeException("Invalid index or null children array");
+        }
+        int first = store.getFirstChild(index);
+        if (first < 0 || store.getSize(first + childIndex) == 0) {
+            return null;    // A leaf, or a child outside the image
+        }
+        return store.node(first + childIndex);
+    }
+
+    @Override
+    public void setx(int newx) {
+        store.setx(index, newx);
+    }
+
+    @Override
+    public void sety(int newy) {
+        store.sety(index, newy);
+    }
+
+    @Override
+    public void setSize(int newSize) {
+        store.setSize(index, newSize);
+    }
+
+    @Override
+    public void setColor(int newColor) {
+        store.setColor(index, newColor);
+    }
+
+    /**
+     * The shape of a stored tree is fixed when it is built.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setParent(QTreeNode newParent) {
+        throw new QTreeException("The nodes of a stored tree cannot be moved");
+    }
+
+    /**
+     * The shape of a stored tree is fixed when it is built.
+     * @throws QTreeException Always.
+     */
+    @Override
+    public void setChild(QTreeNode newChild, int childIndex) throws QTreeException {
+        throw new QTreeException("The nodes of a stored tree cannot be moved");
+    }
+
+    @Override
+    public boolean contains(int xcoord, int ycoord) {
+        int x = getx();
+        int y = gety();
+        int size = getSize();
+        return xcoord >= x && xcoord < x + size && ycoord >= y && ycoord < y + size;
+    }
+
+    @Override
+    public boolean isLeaf() {
+        return store.getFirstChild(index) < 0;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof StoredNode && ((StoredNode) other).store == store && ((StoredNode) other).index == index;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store) * 31 + index;
+    }
+}
@@ -201,19 +201,19 @@ public class TestQuadrant {
 	//Additional test cases
 
 	/* Test constructor with empty array */
-	// private static boolean test7() {
-	// 	boolean testPassed = true;
-	// 	int[][] pixels = new int[0][0];
-	// 	try {
-	// 		QuadrantTree tree = new QuadrantTree(pixels);
-	// 		QTreeNode root = tree.getRoot();
-	// 		if (root != null) testPassed = false; // The root should be null for an empty array
-	// 	} catch (Exception e) {
-	// 		ex(e);
-	// 		testPassed = false;
-	// 	}
-	// 	return testPassed;
-	// }
+	private static boolean test7() {
+		boolean testPassed = true;
+		int[][] pixels = new int[0][0];
+		try {
+			QuadrantTree tree = new QuadrantTree(pixels);
+			QTreeNode root = tree.getRoot();
+			if (root != null) testPassed = false; // The root should be null for an empty array
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
 
 	/* Test constructor with single pixel */
 	private static boolean test8() {
@@ -295,9 +295,1139 @@ public class TestQuadrant {
 		return testPassed;
 	}
 
-	
+	/* Test that the single-pass constructor builds the same tree as the rescanning one */
+	private static boolean test12() {
+		boolean testPassed = true;
+		int[] sizes = {1, 2, 5, 10, 13, 32};
+		try {
+			for (int size : sizes) {
+				int[][] pixels = new int[size][size];
+				for (int i = 0; i < size; ++i)
+					for (int j = 0; j < size; ++j)
+						pixels[i][j] = (int) (Math.random() * 0xffffff);
+				QuadrantTree singlePass = new QuadrantTree(pixels, true);
+				QuadrantTree rescan = new QuadrantTree(pixels, false);
+				if (!sameTree(singlePass.getRoot(), rescan.getRoot())) testPassed = false;
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+	/* Test the compressed constructor */
+	private static boolean test13() {
+		boolean testPassed = true;
+		int[][] pixels = new int[32][32];
+		for (int i = 0; i < 32; ++i)
+			for (int j = 0; j < 32; ++j)
+				pixels[i][j] = j < 16 ? 0xff0000 : (i * 8) << 8;
+		try {
+			// Nothing is merged with a negative tolerance
+			QuadrantTree full = new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, -1);
+			if (!sameTree(full.getRoot(), new QuadrantTree(pixels).getRoot())) testPassed = false;
+
+			// The left half is a single color, the rows of the right half are all different
+			QuadrantTree tree = new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 0);
+			QTreeNode root = tree.getRoot();
+			if (!root.getChild(0).isLeaf() || root.getChild(0).getSize() != 16) testPassed = false;
+			if (root.getChild(1).isLeaf()) testPassed = false;
+			if (tree.getLeafCount() != 2 + 16 * 32) testPassed = false;
+			if (tree.getNodeCount() != numNodes(root)) testPassed = false;
+			if ((tree.findNode(root, 5, 3, 7).getColor() & 0xffffff) != 0xff0000) testPassed = false;
+			if (tree.findNode(root, 5, 20, 7).getColor() != (7 * 8) << 8) testPassed = false;
+			int area = 0;
+			for (ListNode<QTreeNode> p = tree.getPixels(root, 5); p != null; p = p.getNext())
+				area += p.getData().getSize() * p.getData().getSize();
+			if (area != 32 * 32) testPassed = false;
+			if (tree.findMatching(root, 0xff0000, 5).getCount() != 2) testPassed = false;
+
+			// A uniform image is a single node
+			for (int i = 0; i < 32; ++i)
+				for (int j = 0; j < 32; ++j)
+					pixels[i][j] = 7;
+			tree = new QuadrantTree(pixels, QuadrantTree.ErrorMetric.MAX_DEVIATION, 0);
+			if (tree.getNodeCount() != 1 || tree.getRoot().getSize() != 32) testPassed = false;
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+	/* Test trees stored in arrays */
+	private static boolean test14() {
+		boolean testPassed = true;
+		int[][] pixels = new int[32][32];
+		for (int i = 0; i < 32; ++i)
+			for (int j = 0; j < 32; ++j)
+				pixels[i][j] = j < 16 ? 0xff0000 : (i * 8) << 8;
+		try {
+			QuadrantTree objects = new QuadrantTree(pixels);
+			QuadrantTree stored = new QuadrantTree(NodeStore.build(pixels));
+			QTreeNode root = stored.getRoot();
+			if (!sameTree(root, objects.getRoot())) testPassed = false;
+			if (stored.getStore().getNodeCount() != 1365) testPassed = false;
+			if (length(stored.getPixels(root, 5)) != 1024) testPassed = false;
+			if (stored.findMatching(root, 0xff0000, 5).getCount() != 512) testPassed = false;
+			if (stored.findNode(root, 0, 0, 0) != root) testPassed = false;
+			QTreeNode r = stored.findNode(root, 5, 20, 7);
+			if (r.getColor() != (7 * 8) << 8 || r.getParent().getParent().getParent().getParent().getParent() != root) testPassed = false;
+
+			objects = new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 0);
+			stored = new QuadrantTree(NodeStore.build(pixels, QuadrantTree.ErrorMetric.VARIANCE, 0));
+			if (!sameTree(stored.getRoot(), objects.getRoot())) testPassed = false;
+			if (stored.getStore().getNodeCount() != objects.getNodeCount()) testPassed = false;
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+	/* Test findNode with the Morton index */
+	private static boolean test15() {
+		boolean testPassed = true;
+		int[][] pixels = new int[32][32];
+		for (int i = 0; i < 32; ++i)
+			for (int j = 0; j < 32; ++j)
+				pixels[i][j] = j < 16 ? 0xff0000 : (i * 8) << 8;
+		try {
+			QuadrantTree[] trees = {new QuadrantTree(pixels),
+					new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 0),
+					new QuadrantTree(NodeStore.build(pixels, QuadrantTree.ErrorMetric.VARIANCE, 0))};
+			for (QuadrantTree tree : trees) {
+				QTreeNode root = tree.getRoot();
+				MortonIndex index = new MortonIndex(tree);
+				QTreeNode[] starts = {root, root.getChild(1), root.getChild(3).getChild(2)};
+				for (QTreeNode start : starts)
+					for (int level = -1; level <= 6; ++level)
+						for (int y = -1; y <= start.getSize(); ++y)
+							for (int x = -1; x <= start.getSize(); ++x)
+								if (!java.util.Objects.equals(index.findNode(start, level, x, y),
+										tree.findNode(start, level, x, y))) testPassed = false;
+				tree.setMortonIndex(true);
+				if (tree.findNode(root, 5, 20, 7) != index.findNode(root, 5, 20, 7)
+						&& tree.getStore() == null) testPassed = false;
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		try {
+			new QuadrantTree(new int[10][10]).setMortonIndex(true);
+			testPassed = false;
+		} catch (QTreeException e) {;}
+		return testPassed;
+	}
+	/* Test the parallel constructors */
+	private static boolean test16() {
+		boolean testPassed = true;
+		java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+		int[] sizes = {13, 32};
+		try {
+			for (int size : sizes) {
+				int[][] pixels = new int[size][size];
+				for (int i = 0; i < size; ++i)
+					for (int j = 0; j < size; ++j)
+						pixels[i][j] = j < size / 2 ? 0x10ff00 : (int) (Math.random() * 0xffffff);
+				for (int cutoff = 1; cutoff <= 8; cutoff *= 2) {
+					if (!sameTree(new QuadrantTree(pixels, pool, cutoff).getRoot(),
+							new QuadrantTree(pixels).getRoot())) testPassed = false;
+					if (!sameTree(new QuadrantTree(pixels, QuadrantTree.ErrorMetric.MAX_DEVIATION, 20, pool, cutoff).getRoot(),
+							new QuadrantTree(pixels, QuadrantTree.ErrorMetric.MAX_DEVIATION, 20).getRoot())) testPassed = false;
+				}
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		} finally {
+			pool.shutdown();
+		}
+		return testPassed;
+	}
+	/* Test writing a tree to a file and reading it back */
+	private static boolean test17() {
+		boolean testPassed = true;
+		int[][] pixels = new int[32][32];
+		for (int i = 0; i < 32; ++i)
+			for (int j = 0; j < 32; ++j)
+				pixels[i][j] = 0xff000000 | (j < 16 ? 0xff0000 : (i * 8) << 8) | (i * j);
+		try {
+			java.io.File file = java.io.File.createTempFile("test", ".qtree");
+			file.deleteOnExit();
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, QuadrantTree.ErrorMetric.MAX_DEVIATION, 40)};
+			for (QuadrantTree tree : trees) {
+				TreeFile.write(tree, java.awt.image.BufferedImage.TYPE_INT_RGB, file);
+				TreeFile treeFile = TreeFile.open(file.toPath());
+				QTreeNode root = treeFile.getRoot();
+				if (!sameTree(root, tree.getRoot())) testPassed = false;
+				if (treeFile.getImageType() != java.awt.image.BufferedImage.TYPE_INT_RGB) testPassed = false;
+				if (treeFile.getNodeCount() != tree.getNodeCount()) testPassed = false;
+				QuadrantTree mapped = treeFile.getTree();
+				if (length(mapped.getPixels(root, 3)) != length(tree.getPixels(tree.getRoot(), 3))) testPassed = false;
+				if (mapped.findNode(root, 5, 20, 7).getColor() != tree.findNode(tree.getRoot(), 5, 20, 7).getColor()) testPassed = false;
+				if (root.getChild(2).getParent() != root || root.getParent() != null) testPassed = false;
+				treeFile.close();
+				// Threads reading one file from a fresh root all see the tree written
+				TreeFile shared = TreeFile.open(file.toPath());
+				java.util.List<java.util.concurrent.Callable<Boolean>> readers = new java.util.ArrayList<>();
+				for (int k = 0; k < 4; ++k) readers.add(() -> sameTree(shared.getRoot(), tree.getRoot()));
+				java.util.concurrent.ExecutorService threads = java.util.concurrent.Executors.newFixedThreadPool(4);
+				for (java.util.concurrent.Future<Boolean> read : threads.invokeAll(readers))
+					if (!read.get()) testPassed = false;
+				threads.shutdown();
+				shared.close();
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
 	
 		
+	private static boolean test18() {
+		boolean testPassed = true;
+		int[][] pixels = new int[32][32];
+		for (int i = 0; i < 32; ++i)
+			for (int j = 0; j < 32; ++j)
+				pixels[i][j] = 0xff000000 | (i < 16 ? 0x00ff00 : (j * 8) << 16) | (i + j);
+		try {
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 30)};
+			for (QuadrantTree tree : trees) {
+				java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+				ProgressiveEncoder.encode(tree, java.awt.image.BufferedImage.TYPE_INT_RGB, out);
+				byte[] bytes = out.toByteArray();
+				ProgressiveDecoder decoder = new ProgressiveDecoder();
+				int levels = 0;
+				for (int i = 0; i < bytes.length; i += 7) {
+					decoder.feed(bytes, i, Math.min(7, bytes.length - i));
+					if (decoder.levelsAvailable() < levels) testPassed = false;
+					levels = decoder.levelsAvailable();
+					// Every level received must already match the complete tree
+					for (int level = 0; level < levels; ++level)
+						if (!sameColors(decoder.getTree().getPixels(decoder.getRoot(), level),
+						                tree.getPixels(tree.getRoot(), level))) testPassed = false;
+				}
+				if (!decoder.isComplete()) testPassed = false;
+				if (!sameTree(decoder.getRoot(), tree.getRoot())) testPassed = false;
+				if (decoder.getSize() != 32 || decoder.getImageType() != java.awt.image.BufferedImage.TYPE_INT_RGB) testPassed = false;
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test19() {
+		boolean testPassed = true;
+		try {
+			QuadrantTree tree = new QuadrantTree(new int[16][16]);
+			QTreeNode root = tree.getRoot();
+			int[] canvas = new int[64];
+			RasterCache cache = new RasterCache(3 * 4 * 64);  // Room for three canvases
+			if (cache.get(root, 1) != null) testPassed = false;
+			for (int level = 1; level <= 3; ++level) {
+				canvas[0] = level;
+				cache.put(root, level, canvas);
+			}
+			int[] cached = cache.get(root, 1);
+			if (cached == null || cached[0] != 1) testPassed = false;
+			// Level 2 is now the least recently used canvas, so it is the one dropped
+			cache.put(root.getChild(0), 1, canvas);
+			if (cache.size() != 3 || cache.getEvictions() != 1 || cache.getByteSize() != 3 * 4 * 64) testPassed = false;
+			if (cache.get(root, 2) != null) testPassed = false;
+			cached = cache.get(root, 3);
+			if (cached == null || cached[0] != 3) testPassed = false;
+			if (cache.get(root.getChild(0), 1) == null || cache.get(root.getChild(1), 1) != null) testPassed = false;
+			if (cache.getHits() != 3 || cache.getMisses() != 3) testPassed = false;
+			cache.clear();
+			if (cache.size() != 0 || cache.getByteSize() != 0 || cache.get(root, 3) != null) testPassed = false;
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test20() {
+		boolean testPassed = true;
+		int[][] pixels = new int[64][64];
+		for (int i = 0; i < 64; ++i)
+			for (int j = 0; j < 64; ++j)
+				pixels[i][j] = 0xff000000 | ((i / 8 + j / 16) % 3 == 0 ? 0x336699 : (i * 4) << 16 | j);
+		try {
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 10)};
+			for (QuadrantTree tree : trees) {
+				QTreeNode root = tree.getRoot();
+				for (int level = -1; level <= 7; ++level) {
+					// The visitor and the spliterator, split or not, list the same nodes as getPixels and findMatching
+					java.util.List<QTreeNode> visited = new java.util.ArrayList<QTreeNode>();
+					tree.visitPixels(root, level, visited::add);
+					java.util.List<QTreeNode> split = java.util.stream.StreamSupport.stream(tree.pixelSpliterator(root, level), true)
+						.collect(java.util.stream.Collectors.toList());
+					java.util.List<QTreeNode> advanced = new java.util.ArrayList<QTreeNode>();
+					java.util.Spliterator<QTreeNode> spliterator = tree.pixelSpliterator(root, level);
+					while (spliterator.tryAdvance(advanced::add));
+					if (!sameNodes(tree.getPixels(root, level), visited) || !visited.equals(split) || !visited.equals(advanced))
+						testPassed = false;
+
+					Duple matching = tree.findMatching(root, 0xff336699, level);
+					java.util.List<QTreeNode> matched = new java.util.ArrayList<QTreeNode>();
+					int count = tree.visitMatching(root, 0xff336699, level, matched::add);
+					java.util.Spliterator<QTreeNode> matchSplit = tree.matchingSpliterator(root, 0xff336699, level);
+					java.util.Spliterator<QTreeNode> prefix = matchSplit.trySplit();
+					java.util.List<QTreeNode> parts = new java.util.ArrayList<QTreeNode>();
+					if (prefix != null) prefix.forEachRemaining(parts::add);
+					matchSplit.forEachRemaining(parts::add);
+					if (count != matching.getCount() || !sameNodes(matching.getFront(), matched) || !matched.equals(parts))
+						testPassed = false;
+				}
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test21() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(7);
+		int[][] pixels = new int[37][37];
+		for (int i = 0; i < 37; ++i)
+			for (int j = 0; j < 37; ++j)
+				pixels[i][j] = 0xff000000 | (i < 20 ? 0x204060 + random.nextInt(8) : random.nextInt(0x1000000));
+		try {
+			java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(2);
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, false),
+			                        new QuadrantTree(pixels, QuadrantTree.ErrorMetric.MAX_DEVIATION, 8),
+			                        new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 100, pool, 4)};
+			pool.shutdown();
+			for (QuadrantTree tree : trees) {
+				QTreeNode root = tree.getRoot();
+				if (!boundsHold(root)) testPassed = false;
+				// Skipping quadrants by their bounds must not change what findMatching finds
+				for (int query = 0; query < 20; ++query) {
+					int color = query < 10 ? pixels[random.nextInt(37)][random.nextInt(37)] : random.nextInt(0x1000000);
+					for (int level = -1; level <= 7; ++level) {
+						java.util.List<QTreeNode> expected = new java.util.ArrayList<QTreeNode>();
+						for (ListNode<QTreeNode> p = tree.getPixels(root, level < 0 ? 100 : level); p != null; p = p.getNext())
+							if (ColorSimilarity.DEFAULT.similar(p.getData().getColor(), color)) expected.add(p.getData());
+						Duple found = tree.findMatching(root, color, level);
+						if (found.getCount() != expected.size() || !sameNodes(found.getFront(), expected)) testPassed = false;
+					}
+				}
+			}
+			// Changing the color of a node widens the bounds of its ancestors
+			QTreeNode leaf = trees[0].findNode(trees[0].getRoot(), 6, 3, 3);
+			leaf.setColor(0xff00ff00);
+			if (!boundsHold(trees[0].getRoot())) testPassed = false;
+			if (trees[0].findMatching(trees[0].getRoot(), 0xff00ff00, 6).getCount() < 1) testPassed = false;
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test22() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(11);
+		int[][] pixels = new int[64][64];
+		for (int i = 0; i < 64; ++i)
+			for (int j = 0; j < 64; ++j)
+				pixels[i][j] = 0xff000000 | (j < 32 ? (i * 4) << 16 | (j * 8) << 8 | 0x80 : random.nextInt(0x1000000));
+		try {
+			QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 50)};
+			for (QuadrantTree tree : trees) {
+				QTreeNode root = tree.getRoot();
+				for (int query = 0; query < 30; ++query) {
+					int color = query < 15 ? pixels[random.nextInt(64)][random.nextInt(64)] : random.nextInt(0x1000000);
+					if (query == 0) color = 0xff000000;
+					if (query == 1) color = 0xffffffff;
+					for (int level = -1; level <= 8; ++level) {
+						tree.setColorIndex(false);
+						Duple walked = tree.findMatching(root, color, level);
+						tree.setColorIndex(true);
+						Duple indexed = tree.findMatching(root, color, level);
+						if (walked.getCount() != indexed.getCount()) testPassed = false;
+						java.util.List<QTreeNode> visited = new java.util.ArrayList<QTreeNode>();
+						if (tree.visitMatching(root, color, level, visited::add) != walked.getCount()) testPassed = false;
+						if (!sameNodes(walked.getFront(), visited)) testPassed = false;
+						ListNode<QTreeNode> a = walked.getFront(), b = indexed.getFront();
+						for (; a != null && b != null; a = a.getNext(), b = b.getNext())
+							if (a.getData() != b.getData()) testPassed = false;
+						if (a != b) testPassed = false;
+					}
+				}
+				// A search below the root does not use the index
+				QTreeNode child = root.getChild(1);
+				if (tree.findMatching(child, child.getColor(), 3).getCount() < 1) testPassed = false;
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test23() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(5);
+		try {
+			ColorSimilarity[] measures = {ColorSimilarity.DEFAULT, ColorSimilarity.box(4), ColorSimilarity.euclidean(20),
+			                              ColorSimilarity.perceptual(30), ColorSimilarity.euclidean(500)};
+			int[] colors = new int[1003];
+			int query = 0xff808080;
+			for (int i = 0; i < colors.length; ++i)
+				colors[i] = 0xff000000 | (query + (random.nextInt(61) - 30) * 0x10101 + random.nextInt(9) * 0x10203) & 0xffffff;
+			for (ColorSimilarity measure : measures) {
+				// The batch comparison, vectorized or not, finds the same colors as the scalar one
+				int[] batch = new int[colors.length];
+				int[] scalar = new int[colors.length];
+				for (int from = 0; from < 20; from += 7) {
+					int count = measure.matches(query, colors, from, colors.length - from, batch);
+					if (count != measure.scalarMatches(query, colors, from, colors.length - from, scalar)) testPassed = false;
+					for (int i = 0; i < count; ++i)
+						if (batch[i] != scalar[i]) testPassed = false;
+				}
+				// A box of colors is only rejected if none of its colors is similar
+				for (int i = 0; i < 2000; ++i) {
+					int a = random.nextInt(0x1000000), b = random.nextInt(0x1000000);
+					int min = RegionStats.minChannels(a, b), max = RegionStats.maxChannels(a, b);
+					int inside = 0;
+					for (int shift = 0; shift < 24; shift += 8)
+						inside |= (((min >> shift) & 0xff) + random.nextInt(((max >> shift) & 0xff) - ((min >> shift) & 0xff) + 1)) << shift;
+					int color = random.nextInt(0x1000000);
+					if (measure.similar(color, inside) && !measure.mayBeSimilar(color, min, max)) testPassed = false;
+					if (measure.similar(color, max) && !measure.mayBeSimilar(color, min, max)) testPassed = false;
+					if (measure.similar(color, a) != measure.similar(a, color)) testPassed = false;
+				}
+			}
+			// The default measure is the one similarColor has always used
+			for (int i = 0; i < 10000; ++i) {
+				int c1 = random.nextInt(), c2 = c1 ^ random.nextInt(0x202020);
+				boolean old = Math.abs((c1 & 0xff0000) - (c2 & 0xff0000)) < (0xf << 16) && Math.abs((c1 & 0xff00) - (c2 & 0xff00)) < (0xf << 8)
+				              && Math.abs((c1 & 0xff) - (c2 & 0xff)) < 15;
+				if (Gui.similarColor(c1, c2) != old) testPassed = false;
+			}
+			// findMatching uses the measure of the tree, with and without the color index
+			int[][] pixels = new int[32][32];
+			for (int i = 0; i < 32; ++i)
+				for (int j = 0; j < 32; ++j)
+					pixels[i][j] = 0xff000000 | random.nextInt(0x1000000) & 0x3f7f3f;
+			QuadrantTree tree = new QuadrantTree(pixels);
+			for (ColorSimilarity measure : measures) {
+				tree.setColorSimilarity(measure);
+				for (int level = 0; level <= 5; ++level) {
+					int color = pixels[random.nextInt(32)][random.nextInt(32)];
+					java.util.List<QTreeNode> expected = new java.util.ArrayList<QTreeNode>();
+					for (ListNode<QTreeNode> p = tree.getPixels(tree.getRoot(), level); p != null; p = p.getNext())
+						if (measure.similar(p.getData().getColor(), color)) expected.add(p.getData());
+					tree.setColorIndex(level % 2 == 0);
+					Duple found = tree.findMatching(tree.getRoot(), color, level);
+					if (found.getCount() != expected.size() || !sameNodes(found.getFront(), expected)) testPassed = false;
+				}
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test24() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(3);
+		int[] types = {java.awt.image.BufferedImage.TYPE_3BYTE_BGR, java.awt.image.BufferedImage.TYPE_INT_RGB,
+		               java.awt.image.BufferedImage.TYPE_INT_ARGB, java.awt.image.BufferedImage.TYPE_4BYTE_ABGR,
+		               java.awt.image.BufferedImage.TYPE_BYTE_GRAY};
+		try {
+			for (int type : types) {
+				java.awt.image.BufferedImage im = new java.awt.image.BufferedImage(40, 30, type);
+				for (int y = 0; y < 30; ++y)
+					for (int x = 0; x < 40; ++x)
+						im.setRGB(x, y, random.nextInt());
+				java.awt.image.BufferedImage[] images = {im, im.getSubimage(3, 5, 30, 20)};
+				for (java.awt.image.BufferedImage image : images)
+					for (int size : new int[] {16, 32, 64}) {
+						// The pixels are the ones getRGB returns, padded with 0 or cropped to the size
+						int[][] pixels = RasterIngest.pixels(image, size);
+						for (int y = 0; y < size; ++y)
+							for (int x = 0; x < size; ++x) {
+								int expected = x < image.getWidth() && y < image.getHeight() ? image.getRGB(x, y) : 0;
+								if (pixels[y][x] != expected) testPassed = false;
+							}
+					}
+			}
+			if (RasterIngest.canvasSize(409, 437) != 512 || RasterIngest.canvasSize(1024, 950) != 1024
+			    || RasterIngest.canvasSize(2048, 3000) != 2048) testPassed = false;
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test25() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(4);
+		try {
+			int[][] dims = {{13, 7}, {7, 13}, {16, 5}, {1, 9}, {20, 20}, {16, 16}};
+			for (int[] dim : dims) {
+				int w = dim[0], h = dim[1];
+				// The array is larger than the image; the extra pixels must be left out
+				int[][] pixels = new int[h + 2][w + 3];
+				for (int y = 0; y < h + 2; ++y)
+					for (int x = 0; x < w + 3; ++x)
+						pixels[y][x] = 0xff000000 | (random.nextInt(3) * 0x505050);
+				QuadrantTree tree = new QuadrantTree(pixels, w, h);
+				if (tree.getRoot().getSize() != QuadrantTree.coverSize(w, h)) testPassed = false;
+				if (tree.getWidth() != w || tree.getHeight() != h) testPassed = false;
+				if (tree.getLeafCount() != w * h || !rectColors(tree.getRoot(), pixels, w, h)) testPassed = false;
+				if (w == 16 && h == 16) {
+					int[][] square = new int[16][];
+					for (int y = 0; y < 16; ++y) square[y] = java.util.Arrays.copyOf(pixels[y], 16);
+					if (!sameTree(tree.getRoot(), new QuadrantTree(square).getRoot())) testPassed = false;
+				}
+				for (double tolerance : new double[] {-1, 0, 500}) {
+					QuadrantTree pruned = tolerance < 0 ? tree
+						: new QuadrantTree(pixels, w, h, QuadrantTree.ErrorMetric.VARIANCE, tolerance);
+					QuadrantTree stored = new QuadrantTree(NodeStore.build(pixels, w, h, QuadrantTree.ErrorMetric.VARIANCE, tolerance));
+					if (!sameTree(pruned.getRoot(), stored.getRoot())) testPassed = false;
+					if (!rectColors(pruned.getRoot(), pixels, w, h)) testPassed = false;
+					// The leaves cover the image exactly once
+					long area = 0;
+					for (ListNode<QTreeNode> p = pruned.getPixels(pruned.getRoot(), 64); p != null; p = p.getNext()) {
+						QTreeNode leaf = p.getData();
+						area += (long) (Math.min(leaf.getx() + leaf.getSize(), w) - leaf.getx())
+						        * (Math.min(leaf.gety() + leaf.getSize(), h) - leaf.gety());
+					}
+					if (area != w * h) testPassed = false;
+					// The Morton index finds the nodes the descent finds, and nothing where there is no image
+					stored.setMortonIndex(true);
+					int size = pruned.getRoot().getSize();
+					for (int level = 0; level <= 5; ++level)
+						for (int y = 0; y < size; ++y)
+							for (int x = 0; x < size; ++x) {
+								QTreeNode a = pruned.findNode(pruned.getRoot(), level, x, y);
+								QTreeNode b = stored.findNode(stored.getRoot(), level, x, y);
+								if ((a == null) != (b == null)) testPassed = false;
+								else if (a != null && (a.getx() != b.getx() || a.gety() != b.gety()
+								         || a.getSize() != b.getSize() || a.getColor() != b.getColor())) testPassed = false;
+							}
+				}
+			}
+			if (new QuadrantTree(new int[0][0], 0, 0).getRoot() != null) testPassed = false;
+			if (QuadrantTree.coverSize(1, 1) != 1 || QuadrantTree.coverSize(1100, 700) != 2048
+			    || QuadrantTree.coverSize(1024, 700) != 1024 || QuadrantTree.coverSize(0, 5) != 0) testPassed = false;
+			try {
+				new QuadrantTree(new int[4][4], 5, 4);
+				testPassed = false;
+			} catch (QTreeException e) {
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test26() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(5);
+		try {
+			int w = 100, h = 70;
+			int[][] image = new int[h][w];
+			for (int y = 0; y < h; ++y)
+				for (int x = 0; x < w; ++x)
+					image[y][x] = 0xff000000 | (x < 50 ? 0x336699 : random.nextInt(3) * 0x505050);
+			// Tree files store colors without alpha, so the padding is read back as opaque black
+			int[][] padded = new int[128][128];
+			for (int[] row : padded) java.util.Arrays.fill(row, 0xff000000);
+			for (int y = 0; y < h; ++y) System.arraycopy(image[y], 0, padded[y], 0, w);
+			java.io.File file = java.io.File.createTempFile("tiled", ".qtree");
+			file.deleteOnExit();
+			QuadrantTree.ErrorMetric[] metrics = {null, QuadrantTree.ErrorMetric.VARIANCE, QuadrantTree.ErrorMetric.MAX_DEVIATION};
+			for (QuadrantTree.ErrorMetric metric : metrics)
+				for (double tolerance : new double[] {0, 20, 500})
+					for (int tile : new int[] {8, 16, 128, 1024}) {
+						if (metric == null && tolerance > 0) continue;
+						long budget = (long) tile * tile * TiledTreeBuilder.BYTES_PER_PIXEL;
+						TiledTreeBuilder builder = new TiledTreeBuilder(budget, metric, tolerance);
+						if (builder.getTileSize() != tile) testPassed = false;
+						int count = builder.build(TiledTreeBuilder.source(image, w, h, 5), file);
+						QuadrantTree expected = metric == null ? new QuadrantTree(padded)
+							: new QuadrantTree(padded, metric, tolerance);
+						TreeFile treeFile = TreeFile.open(file.toPath());
+						if (count != expected.getNodeCount() || treeFile.getNodeCount() != count) testPassed = false;
+						if (treeFile.getImageType() != 5 || treeFile.getSize() != 128) testPassed = false;
+						if (!sameTree(expected.getRoot(), treeFile.getRoot())) testPassed = false;
+						treeFile.close();
+					}
+			// Tiles cut from the bands decoded from an image file, lossless so the pixels are the same
+			java.io.File png = java.io.File.createTempFile("tiled", ".png");
+			png.deleteOnExit();
+			java.awt.image.BufferedImage im = new java.awt.image.BufferedImage(w, h, java.awt.image.BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < h; ++y) im.setRGB(0, y, w, 1, image[y], 0, w);
+			javax.imageio.ImageIO.write(im, "png", png);
+			for (int tile : new int[] {8, 32}) {
+				TiledTreeBuilder builder = new TiledTreeBuilder((long) tile * tile * TiledTreeBuilder.BYTES_PER_PIXEL);
+				try (TiledTreeBuilder.TileSource source = TiledTreeBuilder.source(png)) {
+					builder.build(source, file);
+				}
+				TreeFile treeFile = TreeFile.open(file.toPath());
+				if (!sameTree(new QuadrantTree(padded).getRoot(), treeFile.getRoot())) testPassed = false;
+				treeFile.close();
+			}
+			// The band decoded for a row of tiles counts in the budget, so a wide image gets smaller tiles
+			java.io.File wide = java.io.File.createTempFile("wide", ".png");
+			wide.deleteOnExit();
+			int[][] widePadded = new int[512][512];
+			java.awt.image.BufferedImage wideIm = new java.awt.image.BufferedImage(512, 32, java.awt.image.BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 512; ++y)
+				for (int x = 0; x < 512; ++x) {
+					widePadded[y][x] = y < 32 ? 0xff000000 | (x / 4 * 0x010203 + y / 4 * 0x030201) & 0xffffff : 0xff000000;
+					if (y < 32) wideIm.setRGB(x, y, widePadded[y][x]);
+				}
+			javax.imageio.ImageIO.write(wideIm, "png", wide);
+			long budget = 32L * 32 * TiledTreeBuilder.BYTES_PER_PIXEL;
+			TiledTreeBuilder wideBuilder = new TiledTreeBuilder(budget, QuadrantTree.ErrorMetric.VARIANCE, 0);
+			try (TiledTreeBuilder.TileSource source = TiledTreeBuilder.source(wide)) {
+				int tile = wideBuilder.getTileSize(source);
+				if (wideBuilder.getTileSize() != 32 || tile != 8) testPassed = false;
+				if ((long) tile * tile * TiledTreeBuilder.BYTES_PER_PIXEL + source.getBufferBytes(tile) > budget) testPassed = false;
+				wideBuilder.build(source, file);
+			}
+			TreeFile wideFile = TreeFile.open(file.toPath());
+			if (!sameTree(new QuadrantTree(widePadded, QuadrantTree.ErrorMetric.VARIANCE, 0).getRoot(), wideFile.getRoot())) testPassed = false;
+			wideFile.close();
+			// An empty image gives an empty tree
+			new TiledTreeBuilder(1 << 20).build(TiledTreeBuilder.source(new int[0][0], 0, 0, 5), file);
+			TreeFile empty = TreeFile.open(file.toPath());
+			if (empty.getRoot() != null) testPassed = false;
+			empty.close();
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test28() {
+		boolean testPassed = true;
+		try {
+			CanvasRenderer canvas = new CanvasRenderer(8, 6);
+			int[] data = canvas.getData();
+			if (data.length != 48 || !canvas.takeDirty().isEmpty()) testPassed = false;
+			// Spans are filled row by row and clipped to the canvas
+			canvas.fill(-2, 1, 3, 3, 0x123456);
+			canvas.fill(6, 5, 20, 20, 0xff0000);
+			for (int y = 0; y < 6; ++y)
+				for (int x = 0; x < 8; ++x) {
+					int expected = x < 3 && y >= 1 && y < 3 ? 0x123456 : (x >= 6 && y == 5 ? 0xff0000 : 0);
+					if (data[y * 8 + x] != expected || (canvas.getImage().getRGB(x, y) & 0xffffff) != expected) testPassed = false;
+				}
+			if (!canvas.takeDirty().equals(new java.awt.Rectangle(0, 1, 8, 5))) testPassed = false;
+			if (!canvas.takeDirty().isEmpty()) testPassed = false;
+			canvas.fill(4, 4, 4, 6, 1);
+			if (!canvas.takeDirty().isEmpty()) testPassed = false;
+			// Loading a canvas copies and repaints only the pixels that differ
+			int[] other = data.clone();
+			other[2 * 8 + 5] = 7;
+			other[4 * 8 + 1] = 7;
+			canvas.load(data.clone());
+			if (!canvas.takeDirty().isEmpty()) testPassed = false;
+			canvas.load(other);
+			if (!java.util.Arrays.equals(data, other) || !canvas.takeDirty().equals(new java.awt.Rectangle(1, 2, 5, 3))) testPassed = false;
+			// A drawing clears only the parts of the canvas it leaves out, where they are not already cleared
+			canvas.beginDraw(0);
+			canvas.fill(2, 1, 6, 4, 9);
+			canvas.endDraw();
+			for (int y = 0; y < 6; ++y)
+				for (int x = 0; x < 8; ++x)
+					if (data[y * 8 + x] != (x >= 2 && x < 6 && y >= 1 && y < 4 ? 9 : 0)) testPassed = false;
+			if (!canvas.takeDirty().equals(new java.awt.Rectangle(0, 1, 8, 5))) testPassed = false;
+			canvas.beginDraw(0);
+			canvas.fill(2, 1, 6, 4, 9);
+			canvas.endDraw();
+			if (!canvas.takeDirty().equals(new java.awt.Rectangle(2, 1, 4, 3))) testPassed = false;
+			canvas.beginDraw(0);
+			canvas.endDraw();
+			if (data[1 * 8 + 2] != 0 || !canvas.takeDirty().equals(new java.awt.Rectangle(2, 1, 4, 3))) testPassed = false;
+			canvas.load(other);
+			canvas.takeDirty();
+			// The cache stores a copy of the canvas and returns it without copying
+			RasterCache cache = new RasterCache(4 * 48);
+			QTreeNode node = new QTreeNode(null, 0, 0, 8, 0);
+			if (cache.get(node, 1) != null) testPassed = false;
+			cache.put(node, 1, data);
+			canvas.clear(3);
+			int[] cached = cache.get(node, 1);
+			if (cached == data || !java.util.Arrays.equals(cached, other)) testPassed = false;
+			if (!canvas.takeDirty().equals(new java.awt.Rectangle(0, 0, 8, 6))) testPassed = false;
+			cache.put(node, 2, new int[49]);
+			if (cache.size() != 1 || cache.getHits() != 1 || cache.getMisses() != 1) testPassed = false;
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test29() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(7);
+		try {
+			java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("batch");
+			java.io.File images = new java.io.File(dir.toFile(), "images");
+			java.io.File trees = new java.io.File(dir.toFile(), "trees");
+			new java.io.File(images, "sub").mkdirs();
+			java.awt.image.BufferedImage[] ims = new java.awt.image.BufferedImage[3];
+			String[] names = {"a.png", "sub/b.png", "c.png"};
+			for (int k = 0; k < ims.length; ++k) {
+				ims[k] = new java.awt.image.BufferedImage(100 + 50 * k, 120, java.awt.image.BufferedImage.TYPE_INT_RGB);
+				for (int y = 0; y < 120; ++y)
+					for (int x = 0; x < ims[k].getWidth(); ++x)
+						ims[k].setRGB(x, y, y < 60 ? 0x336699 : random.nextInt());
+				javax.imageio.ImageIO.write(ims[k], "png", new java.io.File(images, names[k]));
+			}
+			java.nio.file.Files.write(new java.io.File(images, "broken.png").toPath(), new byte[] {1, 2, 3});
+			java.nio.file.Files.write(new java.io.File(images, "notes.txt").toPath(), new byte[] {1, 2, 3});
+			java.util.List<java.io.File> paths = java.util.Arrays.asList(images);
+			if (BatchCompressor.images(paths).size() != 4) testPassed = false;
+			for (int workers : new int[] {1, 3}) {
+				BatchCompressor compressor = new BatchCompressor(trees, QuadrantTree.ErrorMetric.VARIANCE, 30, workers);
+				if (compressor.compress(paths) != 3 || compressor.getFailures().size() != 1) testPassed = false;
+				if (!compressor.getFailures().get(0).contains("broken.png")) testPassed = false;
+				for (int k = 0; k < ims.length; ++k) {
+					// Each tree file holds the same bytes TreeFile.write writes for the image
+					java.awt.image.BufferedImage im = javax.imageio.ImageIO.read(new java.io.File(images, names[k]));
+					java.io.ByteArrayOutputStream expected = new java.io.ByteArrayOutputStream();
+					TreeFile.write(new QuadrantTree(RasterIngest.load(im), QuadrantTree.ErrorMetric.VARIANCE, 30), im.getType(), expected);
+					java.io.File output = compressor.outputs(paths).get(new java.io.File(images, names[k]));
+					if (!output.equals(new java.io.File(trees, names[k] + ".qtree"))) testPassed = false;
+					byte[] file = java.nio.file.Files.readAllBytes(output.toPath());
+					if (!java.util.Arrays.equals(expected.toByteArray(), file)) testPassed = false;
+				}
+				for (int stage = 0; stage < 3; ++stage)
+					if (compressor.percentile(stage, 50) <= 0 || compressor.percentile(stage, 50) > compressor.percentile(stage, 100)) testPassed = false;
+			}
+			// Images of the same name in different directories get different tree files
+			java.io.File same = new java.io.File(dir.toFile(), "same");
+			java.io.File[] twins = {new java.io.File(same, "x/a.png"), new java.io.File(same, "y/a.png"), new java.io.File(same, "x/a.gif")};
+			for (java.io.File twin : twins) {
+				twin.getParentFile().mkdirs();
+				javax.imageio.ImageIO.write(ims[0], twin.getName().endsWith(".png") ? "png" : "gif", twin);
+			}
+			java.io.File sameTrees = new java.io.File(dir.toFile(), "same-trees");
+			BatchCompressor compressor = new BatchCompressor(sameTrees, 3);
+			if (compressor.compress(java.util.Arrays.asList(same)) != 3) testPassed = false;
+			for (String name : new String[] {"x/a.png", "y/a.png", "x/a.gif"})
+				if (!new java.io.File(sameTrees, name + ".qtree").isFile()) testPassed = false;
+			// Named directly they would share a tree file, so nothing is converted
+			java.io.File flat = new java.io.File(dir.toFile(), "flat");
+			try {
+				new BatchCompressor(flat, 3).compress(java.util.Arrays.asList(twins[0], twins[1]));
+				testPassed = false;
+			} catch (java.io.IOException e) {
+				if (flat.exists()) testPassed = false;
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test30() {
+		boolean testPassed = true;
+		try {
+			TreeMetrics.Histogram h = new TreeMetrics.Histogram();
+			if (h.getPercentile(50) != 0 || h.getMean() != 0) testPassed = false;
+			for (int k = 1; k <= 100; ++k) h.record(k * 1000);
+			// Each percentile is bounded by the end of its power of two bucket, and never beyond the maximum
+			if (h.getCount() != 100 || h.getMax() != 100000 || h.getMean() != 50500) testPassed = false;
+			if (h.getPercentile(50) < 50000 || h.getPercentile(50) >= 100000) testPassed = false;
+			if (h.getPercentile(100) != 100000 || h.getPercentile(1) < 1000 || h.getPercentile(1) >= 2000) testPassed = false;
+
+			boolean wasEnabled = TreeMetrics.isEnabled();
+			TreeMetrics.reset();
+			TreeMetrics.setEnabled(false);
+			QuadrantTree tree = new QuadrantTree(new int[][] {{1, 2}, {3, 4}});
+			if (TreeMetrics.histogram("build").getCount() != 0) testPassed = false;
+			TreeMetrics.setEnabled(true);
+			tree = new QuadrantTree(new int[][] {{1, 2}, {3, 4}});
+			tree.findNode(tree.getRoot(), 1, 1, 0);
+			tree.getPixels(tree.getRoot(), 1);
+			TreeMetrics.setEnabled(wasEnabled);
+			if (TreeMetrics.histogram("build").getCount() != 1 || TreeMetrics.counter("build.nodes").get() != 5) testPassed = false;
+			if (TreeMetrics.histogram("findNode").getCount() != 1 || TreeMetrics.counter("getPixels.results").get() != 4) testPassed = false;
+			// A tree written straight to a file records its build too
+			TreeMetrics.reset();
+			int[][] image = new int[16][16];
+			for (int y = 0; y < 16; ++y)
+				for (int x = 0; x < 16; ++x) image[y][x] = y < 8 ? 0xff000000 : 0xff000000 | (x * 16 + y);
+			java.io.File file = java.io.File.createTempFile("metrics", ".qtree");
+			file.deleteOnExit();
+			TreeMetrics.setEnabled(true);
+			int count = new TiledTreeBuilder(8 * 8 * TiledTreeBuilder.BYTES_PER_PIXEL, QuadrantTree.ErrorMetric.VARIANCE, 0)
+				.build(TiledTreeBuilder.source(image, 16, 16, 5), file);
+			TreeMetrics.setEnabled(wasEnabled);
+			if (TreeMetrics.histogram("build").getCount() != 1 || TreeMetrics.counter("build.nodes").get() != count) testPassed = false;
+			TreeMetrics.reset();
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test31() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(31);
+		try {
+			QuadrantTree.ErrorMetric[] metrics = {null, QuadrantTree.ErrorMetric.VARIANCE, QuadrantTree.ErrorMetric.MAX_DEVIATION};
+			int[][] shapes = {{64, 64}, {50, 37}};
+			for (int[] shape : shapes) {
+				for (QuadrantTree.ErrorMetric metric : metrics) {
+					// Blocks of similar colors, so the pruned trees have leaves of every size
+					int[][] pixels = new int[shape[1]][shape[0]];
+					for (int y = 0; y < shape[1]; ++y)
+						for (int x = 0; x < shape[0]; ++x)
+							pixels[y][x] = 0xff000000 | ((x / 16 + y / 8) * 0x203040 & 0xffffff) + random.nextInt(4);
+					QuadrantTree tree = metric == null ? new QuadrantTree(pixels, shape[0], shape[1])
+						: new QuadrantTree(pixels, shape[0], shape[1], metric, 6);
+					tree.setEditable(pixels);
+					QTreeNode root = tree.getRoot();
+					for (int step = 0; step < 12; ++step) {
+						int x = random.nextInt(shape[0] + 8) - 4, y = random.nextInt(shape[1] + 8) - 4;
+						int color = 0xff000000 | random.nextInt(1 << 24);
+						if (step % 3 == 0) tree.setPixel(Math.min(x, shape[0] - 1), Math.max(y, 0), color);
+						else if (step % 3 == 1) tree.fillRect(x, y, random.nextInt(24), random.nextInt(24), step == 10 ? pixels[0][0] : color);
+						else {
+							int[][] patch = new int[random.nextInt(12) + 1][random.nextInt(12) + 1];
+							for (int[] row : patch) java.util.Arrays.fill(row, color + random.nextInt(3));
+							tree.writeRegion(x, y, patch);
+						}
+						// The edited tree is the one built again from the edited pixels, and keeps its root
+						QuadrantTree rebuilt = metric == null ? new QuadrantTree(pixels, shape[0], shape[1])
+							: new QuadrantTree(pixels, shape[0], shape[1], metric, 6);
+						if (tree.getRoot() != root || !sameTree(rebuilt.getRoot(), root) || !sameBounds(rebuilt.getRoot(), root)) testPassed = false;
+					}
+				}
+			}
+			int[][] square = new int[8][8];
+			QuadrantTree tree = new QuadrantTree(square);
+			tree.setEditable(square);
+			tree.setMortonIndex(true);
+			tree.setPixel(3, 5, 0xff123456);
+			if (tree.findNode(tree.getRoot(), 3, 3, 5).getColor() != 0xff123456 || square[5][3] != 0xff123456) testPassed = false;
+			// Rectangles outside the image, or empty, change nothing
+			QuadrantTree blank = new QuadrantTree(new int[4][4]);
+			blank.setEditable(new int[4][4]);
+			blank.fillRect(5, 0, 2, 2, 1);
+			blank.fillRect(0, -3, 2, 2, 1);
+			blank.fillRect(1, 1, 0, 2, 1);
+			blank.writeRegion(4, 4, new int[][] {{1}});
+			if (!sameTree(new QuadrantTree(new int[4][4]).getRoot(), blank.getRoot())) testPassed = false;
+			try {
+				QuadrantTree odd = new QuadrantTree(new int[6][6]);
+				odd.setEditable(new int[6][6]);
+				odd.setPixel(0, 0, 1);
+				testPassed = false;
+			} catch (QTreeException e) {
+				// A tree whose size is not a power of two cannot be edited
+			}
+			try {
+				new QuadrantTree(tree.getRoot()).setEditable(square);
+				testPassed = false;
+			} catch (QTreeException e) {
+				// Nor a tree without pixels
+			}
+			try {
+				new QuadrantTree(new int[8][8]).setEditable(new int[4][8]);
+				testPassed = false;
+			} catch (QTreeException e) {
+				// Nor one given fewer pixels than its image
+			}
+			// Editing is opt in: a tree does not change the pixels it was built from unless made editable
+			int[][] kept = new int[4][4];
+			QuadrantTree plain = new QuadrantTree(kept);
+			try {
+				plain.setPixel(1, 1, 7);
+				testPassed = false;
+			} catch (QTreeException e) {
+				// Not editable
+			}
+			plain.setEditable(kept);
+			plain.setPixel(1, 1, 7);
+			plain.setEditable(null);
+			if (kept[1][1] != 7 || plain.findNode(plain.getRoot(), 2, 1, 1).getColor() != 7) testPassed = false;
+			try {
+				plain.setPixel(1, 1, 8);
+				testPassed = false;
+			} catch (QTreeException e) {
+				// No longer editable
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test32() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(32);
+		try {
+			QuadrantTree.ErrorMetric[] metrics = {null, QuadrantTree.ErrorMetric.VARIANCE};
+			for (QuadrantTree.ErrorMetric metric : metrics) {
+				int w = 50, h = 37, frames = 8;
+				int[][] frame = new int[h][w];
+				for (int y = 0; y < h; ++y)
+					for (int x = 0; x < w; ++x)
+						frame[y][x] = 0xff000000 | ((x / 16 + y / 8) * 0x203040 & 0xffffff) + random.nextInt(3);
+				FrameSequence sequence = new FrameSequence(w, h, metric, 4);
+				java.io.ByteArrayOutputStream stream = new java.io.ByteArrayOutputStream();
+				FrameDeltaEncoder encoder = new FrameDeltaEncoder(stream, w, h, java.awt.image.BufferedImage.TYPE_INT_RGB);
+				QuadrantTree[] trees = new QuadrantTree[frames];
+				int[][][] copies = new int[frames][h][];
+				for (int f = 0; f < frames; ++f) {
+					// A small block moves across an unchanging background; frame 3 is the same as frame 2
+					if (f > 0 && f != 3) {
+						int bx = random.nextInt(w - 6), by = random.nextInt(h - 6), color = 0xff000000 | random.nextInt(1 << 24);
+						for (int y = by; y < by + 6; ++y)
+							java.util.Arrays.fill(frame[y], bx, bx + 6, color);
+					}
+					for (int y = 0; y < h; ++y) copies[f][y] = frame[y].clone();
+					trees[f] = sequence.add(frame);
+					encoder.write(trees[f]);
+				}
+				java.util.Set<QTreeNode> seen = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+				FrameDeltaDecoder decoder = new FrameDeltaDecoder(new java.io.ByteArrayInputStream(stream.toByteArray()));
+				QuadrantTree previousDecoded = null;
+				for (int f = 0; f < frames; ++f) {
+					// Every frame, even once later frames were added, is the tree built from its pixels alone
+					QuadrantTree built = metric == null ? new QuadrantTree(copies[f], w, h) : new QuadrantTree(copies[f], w, h, metric, 4);
+					if (!sameTree(built.getRoot(), trees[f].getRoot()) || !sameBounds(trees[f].getRoot(), built.getRoot())) testPassed = false;
+					int created = countNew(trees[f].getRoot(), seen);
+					// Only the changed paths are new; a pruned tree is small, and a block reshapes a larger part of it
+					if (f > 0 && created >= (metric == null ? built.getNodeCount() / 4 : built.getNodeCount())) testPassed = false;
+					if (f == 3 && (created != 0 || trees[3].getRoot() != trees[2].getRoot())) testPassed = false;
+					QuadrantTree decoded = decoder.read();
+					if (decoded == null || !sameTree(built.getRoot(), decoded.getRoot()) || decoded.getWidth() != w) testPassed = false;
+					if (f > 0 && decoded.getRoot().getChild(3) != previousDecoded.getRoot().getChild(3)
+						&& trees[f].getRoot().getChild(3) == trees[f - 1].getRoot().getChild(3)) testPassed = false;
+					previousDecoded = decoded;
+				}
+				if (decoder.read() != null || encoder.getNewNodeCount() != seen.size()) testPassed = false;
+				// A code count that is negative or more than the 5461 quadrants of a 64 x 64 tree is rejected
+				for (int count : new int[] {0x80000000, -1, 5462, Integer.MAX_VALUE}) {
+					byte[] corrupt = stream.toByteArray();
+					java.nio.ByteBuffer.wrap(corrupt).putInt(20, count);
+					try {
+						new FrameDeltaDecoder(new java.io.ByteArrayInputStream(corrupt)).read();
+						testPassed = false;
+					} catch (java.io.IOException e) {
+						if (!e.getMessage().startsWith("Corrupt frame delta")) testPassed = false;
+					}
+				}
+				try {
+					sequence.getLast().setPixel(0, 0, 0);
+					testPassed = false;
+				} catch (QTreeException e) {
+					// The trees of a sequence share their nodes and cannot be edited
+				}
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test33() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(33);
+		try {
+			// A tiled pattern with a few random pixels, on a square and on a rectangle
+			int[][] pixels = new int[64][64];
+			for (int y = 0; y < 64; ++y)
+				for (int x = 0; x < 64; ++x)
+					pixels[y][x] = 0xff000000 | ((x % 8) / 4 * 0x204060 + (y % 8) / 4 * 0x402010);
+			for (int k = 0; k < 20; ++k) pixels[random.nextInt(64)][random.nextInt(64)] = 0xff000000 | random.nextInt(1 << 24);
+			int[][] shapes = {{64, 64}, {50, 37}};
+			QuadrantTree.ErrorMetric[] metrics = {null, QuadrantTree.ErrorMetric.VARIANCE, QuadrantTree.ErrorMetric.MAX_DEVIATION};
+			for (int[] shape : shapes) {
+				for (QuadrantTree.ErrorMetric metric : metrics) {
+					int w = shape[0], h = shape[1];
+					double tolerance = metric == QuadrantTree.ErrorMetric.MAX_DEVIATION ? 40 : 300;
+					QuadrantTree tree = metric == null ? new QuadrantTree(pixels, w, h) : new QuadrantTree(pixels, w, h, metric, tolerance);
+					QuadrantTree dag = new QuadrantTree(DagStore.build(pixels, w, h, metric, tolerance));
+					if (!sameTree(tree.getRoot(), dag.getRoot()) || dag.getStoredNodeCount() >= tree.getNodeCount() / 2) testPassed = false;
+					if (DagStore.intern(tree).getNodeCount() != dag.getStoredNodeCount() || dag.getLeafCount() != tree.getLeafCount()) testPassed = false;
+					// The tree of a DAG has the nodes of the tree it stands for, and is written and read back as that tree
+					if (dag.getNodeCount() != tree.getNodeCount() || dag.getCompressionRatio() != tree.getCompressionRatio()) testPassed = false;
+					if (w == h) {
+						// Tree files hold square trees, whose internal nodes have four children
+						java.io.File file = java.io.File.createTempFile("dag", ".qtree");
+						file.deleteOnExit();
+						TreeFile.write(dag, java.awt.image.BufferedImage.TYPE_INT_RGB, file);
+						TreeFile treeFile = TreeFile.open(file.toPath());
+						if (treeFile.getNodeCount() != tree.getNodeCount() || !sameTree(tree.getRoot(), treeFile.getRoot())) testPassed = false;
+						treeFile.close();
+					}
+					for (int level = 0; level <= 7; ++level) {
+						ListNode<QTreeNode> a = tree.getPixels(tree.getRoot(), level), b = dag.getPixels(dag.getRoot(), level);
+						for (; a != null && b != null; a = a.getNext(), b = b.getNext())
+							if (a.getData().getx() != b.getData().getx() || a.getData().gety() != b.getData().gety()
+								|| a.getData().getSize() != b.getData().getSize() || a.getData().getColor() != b.getData().getColor()) testPassed = false;
+						if (a != null || b != null) testPassed = false;
+						int color = pixels[random.nextInt(h)][random.nextInt(w)];
+						Duple m1 = tree.findMatching(tree.getRoot(), color, level), m2 = dag.findMatching(dag.getRoot(), color, level);
+						if (m1.getCount() != m2.getCount() || !sameColors(m1.getFront(), m2.getFront())) testPassed = false;
+						for (int k = 0; k < 20; ++k) {
+							int x = random.nextInt(w), y = random.nextInt(h);
+							QTreeNode n1 = tree.findNode(tree.getRoot(), level, x, y), n2 = dag.findNode(dag.getRoot(), level, x, y);
+							if (n1.getx() != n2.getx() || n1.gety() != n2.gety() || n1.getSize() != n2.getSize() || n1.getColor() != n2.getColor()) testPassed = false;
+							if (!n2.contains(x, y) || (n2.getParent() != null && !n2.getParent().contains(x, y))) testPassed = false;
+						}
+					}
+					if (!boundsHold(dag.getRoot())) testPassed = false;
+				}
+			}
+			try {
+				new QuadrantTree(DagStore.build(pixels)).getRoot().setColor(0);
+				testPassed = false;
+			} catch (QTreeException e) {
+				// A node of a DAG may stand for many quadrants and cannot be changed
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test34() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(34);
+		try {
+			// A gradient with noise and a few sharp blocks, on a square and on a rectangle
+			int[][] pixels = new int[64][64];
+			for (int y = 0; y < 64; ++y)
+				for (int x = 0; x < 64; ++x)
+					pixels[y][x] = 0xff000000 | (x * 4 + random.nextInt(8)) << 16 | (y * 4) << 8 | ((x + y) * 2);
+			for (int y = 8; y < 24; ++y)
+				for (int x = 40; x < 56; ++x) pixels[y][x] = 0xff10e020;
+			int[][] shapes = {{64, 64}, {50, 37}};
+			for (int[] shape : shapes) {
+				int w = shape[0], h = shape[1];
+				RateDistortionBuilder builder = new RateDistortionBuilder(pixels, w, h);
+				for (int budget : new int[] {1, 5, 100, 777}) {
+					QuadrantTree tree = builder.buildToNodeCount(budget);
+					int last = builder.getCurveLength() - 1;
+					if (tree.getNodeCount() > budget || tree.getNodeCount() != builder.getCurveNodeCount(last)) testPassed = false;
+					if (Math.abs(treeError(tree.getRoot(), pixels, w, h) / (3.0 * w * h) - builder.getCurveMse(last)) > 1e-9) testPassed = false;
+					if (!boundsHold(tree.getRoot()) || tree.getWidth() != w || tree.getHeight() != h) testPassed = false;
+					// The budget is used until no split that removes error fits in what is left of it
+					if ((long) tree.getNodeCount() + smallestSplit(tree.getRoot(), pixels, w, h) <= budget) testPassed = false;
+					for (int p = 1; p <= last; ++p)
+						if (builder.getCurveNodeCount(p) <= builder.getCurveNodeCount(p - 1)
+							|| builder.getCurveMse(p) > builder.getCurveMse(p - 1)) testPassed = false;
+				}
+				for (double target : new double[] {20, 30, 40}) {
+					QuadrantTree tree = builder.buildToPsnr(target);
+					int last = builder.getCurveLength() - 1;
+					if (builder.getPsnr() < target || (last > 0 && builder.getCurvePsnr(last - 1) >= target)) testPassed = false;
+					double mse = treeError(tree.getRoot(), pixels, w, h) / (3.0 * w * h);
+					if (Math.abs(10 * Math.log10(255 * 255 / mse) - builder.getPsnr()) > 1e-9) testPassed = false;
+				}
+				// Without a budget or a target, every pixel is drawn in its own color
+				QuadrantTree exact = builder.build(Integer.MAX_VALUE, Double.POSITIVE_INFINITY);
+				if (builder.getPsnr() != Double.POSITIVE_INFINITY || treeError(exact.getRoot(), pixels, w, h) != 0) testPassed = false;
+				for (int k = 0; k < 50; ++k) {
+					int x = random.nextInt(w), y = random.nextInt(h);
+					if (exact.findNode(exact.getRoot(), 20, x, y).getColor() != pixels[y][x]) testPassed = false;
+				}
+			}
+			try {
+				new RateDistortionBuilder(pixels).buildToNodeCount(0);
+				testPassed = false;
+			} catch (QTreeException e) {
+				// A tree has at least its root
+			}
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+	private static boolean test35() {
+		boolean testPassed = true;
+		java.util.Random random = new java.util.Random(35);
+		try {
+			// Wide enough for the windows of the last shape to span two tiles
+			int[][] pixels = new int[64][600];
+			for (int y = 0; y < 64; ++y)
+				for (int x = 0; x < 600; ++x)
+					pixels[y][x] = 0xff000000 | ((x * 3 + random.nextInt(16)) & 0xff) << 16 | (y * 4) << 8 | (x * y % 256);
+			int[][] shapes = {{64, 64}, {50, 37}, {50, 50}, {5, 3}, {600, 40}};
+			java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(3);
+			for (int[] shape : shapes) {
+				int w = shape[0], h = shape[1];
+				int[][] square = new int[w][];
+				for (int y = 0; y < w && w == h; ++y) square[y] = java.util.Arrays.copyOf(pixels[y], w);
+				QualityMetrics metrics = new QualityMetrics(pixels, w, h);
+				QuadrantTree[] trees = {
+					w == h ? new QuadrantTree(square) : new QuadrantTree(pixels, w, h),
+					new QuadrantTree(pixels, w, h, QuadrantTree.ErrorMetric.VARIANCE, 200),
+					new RateDistortionBuilder(pixels, w, h).buildToNodeCount(200)
+				};
+				for (QuadrantTree tree : trees) {
+					double[] mse = metrics.getMse(tree);
+					double[] psnr = metrics.getPsnr(tree);
+					// The last level is the first whose nodes are all leaves
+					int leaves = 0;
+					for (ListNode<QTreeNode> p = tree.getPixels(tree.getRoot(), mse.length - 1); p != null; p = p.getNext())
+						if (p.getData().isLeaf()) ++leaves;
+					if (leaves != tree.getLeafCount()) testPassed = false;
+					if (mse.length > 1 && length(tree.getPixels(tree.getRoot(), mse.length - 2)) >= length(tree.getPixels(tree.getRoot(), mse.length - 1))) testPassed = false;
+					for (int level = 0; level < mse.length; ++level) {
+						long error = 0;
+						for (ListNode<QTreeNode> p = tree.getPixels(tree.getRoot(), level); p != null; p = p.getNext())
+							error += nodeError(p.getData(), pixels, w, h);
+						if (Math.abs(error / (3.0 * w * h) - mse[level]) > 1e-9 || psnr[level] != QualityMetrics.psnr(mse[level])) testPassed = false;
+						double ssim = metrics.getSsim(tree, level, pool);
+						if (Math.abs(ssim - ssim(tree, level, pixels, w, h)) > 1e-6 || ssim > 1 + 1e-9) testPassed = false;
+						if (Math.abs(ssim - metrics.getSsim(tree, level)) > 1e-12) testPassed = false;
+					}
+					// The leaves of a square tree of odd size leave some pixels uncovered
+					if (tree == trees[0] && (w != h || Integer.bitCount(w) == 1) && (mse[mse.length - 1] != 0 || Math.abs(metrics.getSsim(tree, 99) - 1) > 1e-9)) testPassed = false;
+				}
+			}
+			QualityMetrics metrics = new QualityMetrics(pixels);
+			if (metrics.getSsim(new QuadrantTree(pixels), 0) >= metrics.getSsim(new QuadrantTree(pixels), 4)) testPassed = false;
+			try {
+				metrics.getMse(new QuadrantTree(pixels, 50, 37));
+				testPassed = false;
+			} catch (QTreeException e) {
+				// The tree covers another image
+			}
+			pool.shutdown();
+		} catch (Exception e) {
+			ex(e);
+			testPassed = false;
+		}
+		return testPassed;
+	}
+
+
+
+
 	public static void main(String[] args) {
 		// The first two tests are for class QTreeNode
 		try {
@@ -371,6 +1501,190 @@ public class TestQuadrant {
 			System.out.println("Test 11 failed");
 		}
 
+		try {
+			if (test12()) System.out.println("Test 12 passed");
+			else System.out.println("Test 12 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 12 failed");
+		}
+
+		try {
+			if (test13()) System.out.println("Test 13 passed");
+			else System.out.println("Test 13 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 13 failed");
+		}
+
+		try {
+			if (test14()) System.out.println("Test 14 passed");
+			else System.out.println("Test 14 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 14 failed");
+		}
+
+		try {
+			if (test15()) System.out.println("Test 15 passed");
+			else System.out.println("Test 15 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 15 failed");
+		}
+
+		try {
+			if (test16()) System.out.println("Test 16 passed");
+			else System.out.println("Test 16 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 16 failed");
+		}
+
+		try {
+			if (test17()) System.out.println("Test 17 passed");
+			else System.out.println("Test 17 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 17 failed");
+		}
+
+		try {
+			if (test18()) System.out.println("Test 18 passed");
+			else System.out.println("Test 18 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 18 failed");
+		}
+
+		try {
+			if (test19()) System.out.println("Test 19 passed");
+			else System.out.println("Test 19 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 19 failed");
+		}
+
+		try {
+			if (test20()) System.out.println("Test 20 passed");
+			else System.out.println("Test 20 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 20 failed");
+		}
+
+		try {
+			if (test21()) System.out.println("Test 21 passed");
+			else System.out.println("Test 21 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 21 failed");
+		}
+
+		try {
+			if (test22()) System.out.println("Test 22 passed");
+			else System.out.println("Test 22 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 22 failed");
+		}
+
+		try {
+			if (test23()) System.out.println("Test 23 passed");
+			else System.out.println("Test 23 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 23 failed");
+		}
+
+		try {
+			if (test24()) System.out.println("Test 24 passed");
+			else System.out.println("Test 24 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 24 failed");
+		}
+
+		try {
+			if (test25()) System.out.println("Test 25 passed");
+			else System.out.println("Test 25 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 25 failed");
+		}
+
+		try {
+			if (test26()) System.out.println("Test 26 passed");
+			else System.out.println("Test 26 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 26 failed");
+		}
+
+		try {
+			if (test28()) System.out.println("Test 28 passed");
+			else System.out.println("Test 28 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 28 failed");
+		}
+
+		try {
+			if (test29()) System.out.println("Test 29 passed");
+			else System.out.println("Test 29 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 29 failed");
+		}
+
+		try {
+			if (test30()) System.out.println("Test 30 passed");
+			else System.out.println("Test 30 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 30 failed");
+		}
+
+		try {
+			if (test31()) System.out.println("Test 31 passed");
+			else System.out.println("Test 31 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 31 failed");
+		}
+
+		try {
+			if (test32()) System.out.println("Test 32 passed");
+			else System.out.println("Test 32 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 32 failed");
+		}
+
+		try {
+			if (test33()) System.out.println("Test 33 passed");
+			else System.out.println("Test 33 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 33 failed");
+		}
+
+		try {
+			if (test34()) System.out.println("Test 34 passed");
+			else System.out.println("Test 34 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 34 failed");
+		}
+
+		try {
+			if (test35()) System.out.println("Test 35 passed");
+			else System.out.println("Test 35 failed");
+		} catch (Exception e) {
+			ex(e);
+			System.out.println("Test 35 failed");
+		}
+
 
 		
 													
@@ -388,6 +1702,149 @@ public class TestQuadrant {
 		return c;
 	}
 	
+	/* Returns true if the trees rooted at a and b have the same shape, positions and colors */
+	private static boolean sameColors(ListNode<QTreeNode> a, ListNode<QTreeNode> b) {
+		while (a != null && b != null) {
+			if (a.getData().getColor() != b.getData().getColor()) return false;
+			a = a.getNext();
+			b = b.getNext();
+		}
+		return a == b;
+	}
+	private static boolean sameNodes(ListNode<QTreeNode> list, java.util.List<QTreeNode> nodes) {
+		for (QTreeNode node : nodes) {
+			if (list == null || list.getData() != node) return false;
+			list = list.getNext();
+		}
+		return list == null;
+	}
+	/* Returns true if no node of the tree rooted at r lies outside the w x h image and
+	   the color of every node is the average of the pixels of the image it covers */
+	private static boolean rectColors(QTreeNode r, int[][] pixels, int w, int h) {
+		if (r == null) return true;
+		if (r.getx() >= w || r.gety() >= h) return false;
+		RegionStats stats = new RegionStats();
+		for (int y = r.gety(); y < Math.min(r.gety() + r.getSize(), h); ++y)
+			for (int x = r.getx(); x < Math.min(r.getx() + r.getSize(), w); ++x)
+				stats.add(pixels[y][x]);
+		if (r.getColor() != stats.averageColor()) return false;
+		if (r.isLeaf()) return true;
+		for (int i = 0; i < 4; ++i)
+			if (!rectColors(r.getChild(i), pixels, w, h)) return false;
+		return true;
+	}
+	/* Returns true if the color bounds of every node contain its color and the bounds of its children */
+	private static boolean boundsHold(QTreeNode r) {
+		if (r == null) return true;
+		if (!withinBounds(r, r.getColor(), r.getColor())) return false;
+		if (r.isLeaf()) return true;
+		for (int i = 0; i < 4; ++i) {
+			QTreeNode child = r.getChild(i);
+			if (child != null && (!withinBounds(r, child.getMinColor(), child.getMaxColor()) || !boundsHold(child))) return false;
+		}
+		return true;
+	}
+	private static boolean withinBounds(QTreeNode r, int min, int max) {
+		for (int shift = 0; shift < 24; shift += 8)
+			if (((min >> shift) & 0xff) < ((r.getMinColor() >> shift) & 0xff) || ((max >> shift) & 0xff) > ((r.getMaxColor() >> shift) & 0xff))
+				return false;
+		return true;
+	}
+	private static boolean sameTree(QTreeNode a, QTreeNode b) {
+		if (a == null || b == null) return a == b;
+		if (a.getx() != b.getx() || a.gety() != b.gety() || a.getSize() != b.getSize()
+				|| a.getColor() != b.getColor() || a.isLeaf() != b.isLeaf()) return false;
+		if (a.isLeaf()) return true;
+		for (int i = 0; i < 4; ++i)
+			if (!sameTree(a.getChild(i), b.getChild(i))) return false;
+		return true;
+	}
+	
+	private static boolean sameBounds(QTreeNode a, QTreeNode b) {
+		if (a == null || b == null) return a == b;
+		if (a.getMinColor() != b.getMinColor() || a.getMaxColor() != b.getMaxColor() || a.isLeaf() != b.isLeaf()) return false;
+		for (int i = 0; i < 4 && !a.isLeaf(); ++i)
+			if (!sameBounds(a.getChild(i), b.getChild(i)) || (b.getChild(i) != null && b.getChild(i).getParent() != b)) return false;
+		return true;
+	}
+	/* Count the nodes of the tree rooted at r that are not in seen, and add them to it */
+	private static int countNew(QTreeNode r, java.util.Set<QTreeNode> seen) {
+		if (r == null || !seen.add(r)) return 0;
+		int count = 1;
+		for (int i = 0; i < 4 && !r.isLeaf(); ++i) count += countNew(r.getChild(i), seen);
+		return count;
+	}
+	/* Compute the squared error, over the pixels of the image and their three channels, of drawing each leaf in its color */
+	private static long treeError(QTreeNode r, int[][] pixels, int w, int h) {
+		if (r == null) return 0;
+		if (r.isLeaf()) return nodeError(r, pixels, w, h);
+		long error = 0;
+		for (int i = 0; i < 4; ++i) error += treeError(r.getChild(i), pixels, w, h);
+		return error;
+	}
+
+	/* Return the fewest nodes the split of a leaf with an error would add, or Integer.MAX_VALUE if there is no such leaf */
+	private static int smallestSplit(QTreeNode r, int[][] pixels, int w, int h) {
+		if (r == null) return Integer.MAX_VALUE;
+		if (r.isLeaf()) {
+			if (r.getSize() == 1 || nodeError(r, pixels, w, h) == 0) return Integer.MAX_VALUE;
+			int half = r.getSize() / 2;
+			return (r.getx() + half < w ? 2 : 1) * (r.gety() + half < h ? 2 : 1);
+		}
+		int smallest = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; ++i) smallest = Math.min(smallest, smallestSplit(r.getChild(i), pixels, w, h));
+		return smallest;
+	}
+
+	/* Compute the squared error of drawing the pixels of the quadrant of r in the color of r */
+	private static long nodeError(QTreeNode r, int[][] pixels, int w, int h) {
+		long error = 0;
+		for (int y = r.gety(); y < Math.min(h, r.gety() + r.getSize()); ++y)
+			for (int x = r.getx(); x < Math.min(w, r.getx() + r.getSize()); ++x)
+				for (int shift = 0; shift <= 16; shift += 8) {
+					long d = ((pixels[y][x] >> shift) & 0xff) - ((r.getColor() >> shift) & 0xff);
+					error += d * d;
+				}
+		return error;
+	}
+
+	/* Compute the mean SSIM of the luma of a level of a tree and of the image, in 8 x 8 windows every 4 pixels */
+	private static double ssim(QuadrantTree tree, int level, int[][] pixels, int w, int h) {
+		float[][] a = new float[h][w], b = new float[h][w];
+		for (ListNode<QTreeNode> p = tree.getPixels(tree.getRoot(), level); p != null; p = p.getNext()) {
+			QTreeNode n = p.getData();
+			for (int y = n.gety(); y < Math.min(h, n.gety() + n.getSize()); ++y)
+				for (int x = n.getx(); x < Math.min(w, n.getx() + n.getSize()); ++x) b[y][x] = luma(n.getColor());
+		}
+		for (int y = 0; y < h; ++y)
+			for (int x = 0; x < w; ++x) a[y][x] = luma(pixels[y][x]);
+		int ww = Math.min(8, w), wh = Math.min(8, h);
+		double c1 = 2.55 * 2.55, c2 = 7.65 * 7.65, sum = 0;
+		int count = 0;
+		for (int wy = 0; wy + wh <= h; wy += 4)
+			for (int wx = 0; wx + ww <= w; wx += 4) {
+				double ma = 0, mb = 0, va = 0, vb = 0, cov = 0, n = ww * wh;
+				for (int y = wy; y < wy + wh; ++y)
+					for (int x = wx; x < wx + ww; ++x) {
+						ma += a[y][x] / n;
+						mb += b[y][x] / n;
+					}
+				for (int y = wy; y < wy + wh; ++y)
+					for (int x = wx; x < wx + ww; ++x) {
+						va += (a[y][x] - ma) * (a[y][x] - ma) / n;
+						vb += (b[y][x] - mb) * (b[y][x] - mb) / n;
+						cov += (a[y][x] - ma) * (b[y][x] - mb) / n;
+					}
+				sum += (2 * ma * mb + c1) * (2 * cov + c2) / ((ma * ma + mb * mb + c1) * (va + vb + c2));
+				++count;
+			}
+		return sum / count;
+	}
+
+	private static float luma(int color) {
+		return 0.299f * ((color >> 16) & 0xff) + 0.587f * ((color >> 8) & 0xff) + 0.114f * (color & 0xff);
+	}
+
 	/* Compute the height of the tree rooted at r */
 	private static int height(QTreeNode r) {
 		if (r == null) return 0;
@@ -0,0 +1,603 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A class named TiledTreeBuilder that writes the tree of an image too large to be held in memory straight to
+ * a TreeFile. The image, padded with black to a square whose side is a power of two, is read one tile at a time.
+ * The tree of each tile is built in memory and spilled to a temporary file in the layout of a tree file, and only
+ * the channel statistics of the tile are kept. Once every tile is read, the levels above the tiles are built from
+ * those statistics and the tree file is written in preorder, copying the subtree of each tile from the temporary
+ * file. The file holds the same tree, node for node, as new QuadrantTree(pixels) or
+ * new QuadrantTree(pixels, metric, tolerance) on the padded pixels would, while the heap used by the build is
+ * bounded by the tile budget plus a few objects per tile. The budget covers the tile being built and what the
+ * source holds to read a row of tiles, such as the band a source decoding an image file keeps, so the tiles of a
+ * wide image are smaller.
+ */
+public class TiledTreeBuilder {
+    /**
+     * Bytes of heap needed for each pixel of a tile: the pixel, the arrays of the tile's tree in a NodeStore
+     * with room to grow, and the encoded tree.
+     */
+    static final int BYTES_PER_PIXEL = 72;
+    /**
+     * Bytes of heap a source decoding an image file holds for each pixel of a band: the decoded raster, of up to
+     * four bytes per pixel, and the band of ints cut into tiles.
+     */
+    static final int BAND_BYTES_PER_PIXEL = 8;
+    private static final int MIN_TILE = 8;
+    private static final int COPY_BYTES = 1 << 16;
+
+    private final long tileBudget;
+    private final QuadrantTree.ErrorMetric metric;  // Null to keep every pixel
+    private final double tolerance;
+
+    /**
+     * A source of the pixels of an image, read a region at a time.
+     */
+    public interface TileSource extends Closeable {
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Returns the type of the BufferedImage the pixels come from, which is recorded in the tree file.
+         * @return The image type.
+         */
+        int getImageType();
+
+        /**
+         * Copies a region of the image into the upper left corner of an array, with the colors getRGB returns.
+         * @param x The x-coordinate of the region.
+         * @param y The y-coordinate of the region.
+         * @param width The width of the region.
+         * @param height The height of the region.
+         * @param pixels The array receiving the pixels, at least height rows of at least width pixels.
+         * @throws IOException If the image cannot be read.
+         */
+        void read(int x, int y, int width, int height, int[][] pixels) throws IOException;
+
+        /**
+         * Returns the number of bytes of heap the source holds, beyond the tile, to read a row of tiles.
+         * @param tileSize The side of the tiles.
+         * @return The number of bytes, 0 for a source that holds nothing.
+         */
+        default long getBufferBytes(int tileSize) {
+            return 0;
+        }
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * Constructor for TiledTreeBuilder that writes full trees.
+     * @param theTileBudget The number of bytes of heap the tile being built and the buffer of the source may use.
+     */
+    public TiledTreeBuilder(long theTileBudget) {
+        this(theTileBudget, null, 0);
+    }
+
+    /**
+     * Constructor for TiledTreeBuilder that writes compressed trees.
+     * @param theTileBudget The number of bytes of heap the tile being built and the buffer of the source may use.
+     * @param theMetric The way the color error of a quadrant is measured, or null to keep every pixel.
+     * @param theTolerance The largest color error a leaf may have.
+     */
+    public TiledTreeBuilder(long theTileBudget, QuadrantTree.ErrorMetric theMetric, double theTolerance) {
+        tileBudget = theTileBudget;
+        metric = theMetric;
+        tolerance = theTolerance;
+    }
+
+    /**
+     * Returns the side of the largest tile that can be built within a budget: the largest power of two whose
+     * square fits in the budget at BYTES_PER_PIXEL bytes per pixel, and at least 8.
+     * @param tileBudget The number of bytes of heap a tile may use.
+     * @return The side of the tiles.
+     */
+    public static int tileSize(long tileBudget) {
+        return tileSize(tileBudget, source(new int[0][0], 0, 0, 0));
+    }
+
+    /**
+     * Returns the side of the largest tile that can be built from a source within a budget: the largest power of
+     * two whose square at BYTES_PER_PIXEL bytes per pixel and the buffer the source holds for a row of tiles of
+     * that side fit in the budget together, and at least 8.
+     * @param tileBudget The number of bytes of heap a tile and the buffer of the source may use.
+     * @param source The source of the pixels.
+     * @return The side of the tiles.
+     */
+    public static int tileSize(long tileBudget, TileSource source) {
+        int tile = MIN_TILE;
+        while (tile < 1 << 15 && 4L * tile * tile * BYTES_PER_PIXEL + source.getBufferBytes(2 * tile) <= tileBudget) {
+            tile *= 2;
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the side of the tiles of a source that holds no buffer.
+     * @return The side of the tiles.
+     */
+    public int getTileSize() {
+        return tileSize(tileBudget);
+    }
+
+    /**
+     * Returns the side of the tiles the tree of an image is built from.
+     * @param source The source of the pixels of the image.
+     * @return The side of the tiles.
+     */
+    public int getTileSize(TileSource source) {
+        return tileSize(tileBudget, source);
+    }
+
+    /**
+     * Returns a source reading the pixels of an array.
+     * @param pixels The pixels of the image.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @param imageType The type of the BufferedImage the pixels come from.
+     * @return The source.
+     */
+    public static TileSource source(int[][] pixels, int width, int height, int imageType) {
+        return new TileSource() {
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public int getImageType() {
+                return imageType;
+            }
+
+            @Override
+            public void read(int x, int y, int regionWidth, int regionHeight, int[][] into) {
+                for (int row = 0; row < regionHeight; row++) {
+                    System.arraycopy(pixels[y + row], x, into[row], 0, regionWidth);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a source decoding the regions of an image file with an ImageReader, so the whole image is never
+     * held in memory. As the JPEG reader decodes the image from the top for every region read, the source decodes
+     * one band of the full width of the image for each row of tiles and cuts the tiles out of it, holding the
+     * width of the image times the height of a tile in pixels, which getBufferBytes reports so the tiles are made
+     * small enough for the band to fit in the budget. The source must be closed.
+     * @param imageFile The image file.
+     * @return The source.
+     * @throws IOException If the file cannot be read or its format is not supported.
+     */
+    public static TileSource source(File imageFile) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(imageFile);
+        if (stream == null) {
+            throw new IOException("Cannot open " + imageFile);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            stream.close();
+            throw new IOException("Unsupported image format: " + imageFile);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(stream, false, true);
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        int imageType = types.hasNext() ? types.next().getBufferedImageType() : BufferedImage.TYPE_INT_RGB;
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        return new TileSource() {
+            private int[][] band;       // The rows of the last band decoded, across the whole image
+            private int bandY = -1;     // The first row of the band
+
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public int getImageType() {
+                return imageType;
+            }
+
+            @Override
+            public void read(int x, int y, int regionWidth, int regionHeight, int[][] into) throws IOException {
+                if (y != bandY || regionHeight != band.length) {
+                    band = null;    // Let the previous band go before the next one is decoded
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceRegion(new Rectangle(0, y, width, regionHeight));
+                    BufferedImage image = reader.read(0, param);
+                    band = new int[regionHeight][width];
+                    RasterIngest.copy(image, band, width, regionHeight);
+                    bandY = y;
+                }
+                for (int row = 0; row < regionHeight; row++) {
+                    System.arraycopy(band[row], x, into[row], 0, regionWidth);
+                }
+            }
+
+            @Override
+            public long getBufferBytes(int tileSize) {
+                return (long) width * Math.min(tileSize, height) * BAND_BYTES_PER_PIXEL;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.dispose();
+                stream.close();
+            }
+        };
+    }
+
+    /**
+     * Builds the tree of an image and writes it to a tree file.
+     * @param source The pixels of the image.
+     * @param output The tree file to write.
+     * @return The number of nodes of the tree.
+     * @throws IOException If the image cannot be read or the file cannot be written.
+     * @throws QTreeException If the tree has too many nodes for a tree file.
+     */
+    public int build(TileSource source, File output) throws IOException {
+        TreeEvents.Build event = new TreeEvents.Build();
+        event.start();
+        int size = QuadrantTree.coverSize(source.getWidth(), source.getHeight());
+        if (size == 0) {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(output))) {
+                TreeFile.writeHeader(out, 0, source.getImageType(), 0);
+            }
+            event.finish(0, 0, "tiled", metric != null);
+            return 0;
+        }
+        Tiles tiles = new Tiles(size, getTileSize(source));
+        File spill = File.createTempFile("qtree", ".tiles", output.getAbsoluteFile().getParentFile());
+        try {
+            spillTiles(source, tiles, spill);
+            tiles.sumLevels();
+            long count = count(tiles, 0, 0, 0);
+            if (count > Integer.MAX_VALUE || TreeFile.HEADER_BYTES + TreeFile.structureBytes((int) count)
+                                             + 3 * count > Integer.MAX_VALUE) {
+                throw new QTreeException("The tree has too many nodes for a tree file");
+            }
+            try (RandomAccessFile in = new RandomAccessFile(spill, "r");
+                 DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(output), COPY_BYTES))) {
+                TreeFile.writeHeader(out, size, source.getImageType(), (int) count);
+                BitOutput bits = new BitOutput(out);
+                writeStructure(tiles, 0, 0, 0, in, bits);
+                bits.finish(TreeFile.structureBytes((int) count));
+                writeColors(tiles, 0, 0, 0, in, out, new byte[COPY_BYTES]);
+            }
+            event.finish((int) count, depth(tiles, 0, 0, 0), "tiled", metric != null);
+            return (int) count;
+        } finally {
+            spill.delete();
+        }
+    }
+
+    /**
+     * The tiles of one build: where their subtrees are in the temporary file, and the statistics of the tiles
+     * and of every quadrant above them.
+     */
+    private static final class Tiles {
+        private final int tile;         // Side of a tile
+        private final int grid;         // Tiles per side
+        private final int depth;        // Depth of the tiles below the root
+        private final long[] offsets;   // Position in the temporary file of the subtree of each tile
+        private final int[] counts;     // Number of nodes of the subtree of each tile
+        private final int[] depths;     // Depth of the deepest node of the subtree of each tile
+        private final RegionStats[][] stats;    // Statistics of the quadrants at each depth, down to the tiles
+
+        Tiles(int size, int tileSize) {
+            tile = Math.min(size, tileSize);
+            grid = size / tile;
+            depth = Integer.numberOfTrailingZeros(grid);
+            offsets = new long[grid * grid];
+            counts = new int[grid * grid];
+            depths = new int[grid * grid];
+            stats = new RegionStats[depth + 1][];
+            for (int d = 0; d <= depth; d++) {
+                stats[d] = new RegionStats[1 << (2 * d)];
+            }
+        }
+
+        /**
+         * Returns the position in the arrays of a depth of the quadrant in column x and row y.
+         */
+        int index(int d, int x, int y) {
+            return (y << d) + x;
+        }
+
+        /**
+         * Adds up the statistics of the tiles into those of the quadrants above them.
+         */
+        void sumLevels() {
+            for (int d = depth - 1; d >= 0; d--) {
+                for (int y = 0; y < 1 << d; y++) {
+                    for (int x = 0; x < 1 << d; x++) {
+                        RegionStats sum = new RegionStats();
+                        for (int i = 0; i < 4; i++) {
+                            sum.add(stats[d + 1][index(d + 1, 2 * x + i % 2, 2 * y + i / 2)]);
+                        }
+                        stats[d][index(d, x, y)] = sum;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the tiles row by row, builds the tree of each and appends it to the temporary file: its structure
+     * bits, padded to a byte, then its colors.
+     */
+    private void spillTiles(TileSource source, Tiles tiles, File spill) throws IOException {
+        int tile = tiles.tile;
+        int[][] pixels = new int[tile][tile];
+        long offset = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spill), COPY_BYTES)) {
+            for (int ty = 0; ty < tiles.grid; ty++) {
+                for (int tx = 0; tx < tiles.grid; tx++) {
+                    int x = tx * tile;
+                    int y = ty * tile;
+                    int width = Math.max(0, Math.min(tile, source.getWidth() - x));
+                    int height = Math.max(0, Math.min(tile, source.getHeight() - y));
+                    if (width < tile || height < tile) {
+                        for (int[] row : pixels) {
+                            Arrays.fill(row, 0);    // The padding is black, as in RasterIngest
+                        }
+                    }
+                    if (width > 0 && height > 0) {
+                        source.read(x, y, width, height, pixels);
+                    }
+                    RegionStats stats = new RegionStats();
+                    for (int[] row : pixels) {
+                        for (int pixel : row) {
+                            stats.add(pixel);
+                        }
+                    }
+                    NodeStore store = metric == null ? NodeStore.build(pixels) : NodeStore.build(pixels, metric, tolerance);
+                    int count = store.getNodeCount();
+                    byte[] structure = new byte[(count + 7) >>> 3];
+                    byte[] colors = new byte[3 * count];
+                    TreeFile.encode(store.getRoot(), structure, colors, new int[1]);
+                    out.write(structure);
+                    out.write(colors);
+                    int index = tiles.index(tiles.depth, tx, ty);
+                    tiles.offsets[index] = offset;
+                    tiles.counts[index] = count;
+                    tiles.depths[index] = depth(store, tile);
+                    tiles.stats[tiles.depth][index] = stats;
+                    offset += structure.length + colors.length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the quadrant with the specified statistics is split into four children.
+     */
+    private boolean split(RegionStats stats) {
+        if (metric == null) {
+            return true;
+        }
+        double error = metric == QuadrantTree.ErrorMetric.VARIANCE ? stats.variance() : stats.maxDeviation();
+        return error > tolerance;
+    }
+
+    /**
+     * Returns the number of nodes of the subtree of the quadrant at depth d in column x and row y.
+     */
+    private long count(Tiles tiles, int d, int x, int y) {
+        int index = tiles.index(d, x, y);
+        if (d == tiles.depth) {
+            return tiles.counts[index];
+        }
+        if (!split(tiles.stats[d][index])) {
+            return 1;
+        }
+        long count = 1;
+        for (int i = 0; i < 4; i++) {
+            count += count(tiles, d + 1, 2 * x + i % 2, 2 * y + i / 2);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the depth of the deepest node of the subtree of the quadrant at depth d in column x and row y,
+     * counted from the root of the tree.
+     */
+    private int depth(Tiles tiles, int d, int x, int y) {
+        int index = tiles.index(d, x, y);
+        if (d == tiles.depth) {
+            return d + tiles.depths[index];
+        }
+        if (!split(tiles.stats[d][index])) {
+            return d;
+        }
+        int depth = 0;
+        for (int i = 0; i < 4; i++) {
+            depth = Math.max(depth, depth(tiles, d + 1, 2 * x + i % 2, 2 * y + i / 2));
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the depth of the deepest node of the tree of a tile: the number of halvings from the side of the
+     * tile to its smallest node.
+     */
+    private static int depth(NodeStore store, int tile) {
+        int smallest = tile;
+        for (int i = 0; i < store.getNodeCount(); i++) {
+            smallest = Math.min(smallest, store.getSize(i));
+        }
+        return Integer.numberOfTrailingZeros(tile) - Integer.numberOfTrailingZeros(smallest);
+    }
+
+    /**
+     * Writes the structure bits of the subtree of a quadrant in preorder.
+     */
+    private void writeStructure(Tiles tiles, int d, int x, int y, RandomAccessFile in, BitOutput bits)
+            throws IOException {
+        int index = tiles.index(d, x, y);
+        if (d == tiles.depth) {
+            byte[] structure = new byte[(tiles.counts[index] + 7) >>> 3];
+            in.seek(tiles.offsets[index]);
+            in.readFully(structure);
+            bits.write(structure, tiles.counts[index]);
+        } else if (!split(tiles.stats[d][index])) {
+            bits.write(false);
+        } else {
+            bits.write(true);
+            for (int i = 0; i < 4; i++) {
+                writeStructure(tiles, d + 1, 2 * x + i % 2, 2 * y + i / 2, in, bits);
+            }
+        }
+    }
+
+    /**
+     * Writes the colors of the subtree of a quadrant in preorder. A quadrant above the tiles has the average
+     * color of its pixels whether it is split or not.
+     */
+    private void writeColors(Tiles tiles, int d, int x, int y, RandomAccessFile in, OutputStream out, byte[] buffer)
+            throws IOException {
+        int index = tiles.index(d, x, y);
+        if (d == tiles.depth) {
+            long remaining = 3L * tiles.counts[index];
+            in.seek(tiles.offsets[index] + ((tiles.counts[index] + 7) >>> 3));
+            while (remaining > 0) {
+                int n = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, n);
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+            return;
+        }
+        RegionStats stats = tiles.stats[d][index];
+        int color = stats.averageColor();
+        out.write(color >> 16);
+        out.write(color >> 8);
+        out.write(color);
+        if (split(stats)) {
+            for (int i = 0; i < 4; i++) {
+                writeColors(tiles, d + 1, 2 * x + i % 2, 2 * y + i / 2, in, out, buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes a sequence of bits, most significant bit of each byte first, that need not start on a byte.
+     */
+    private static final class BitOutput {
+        private final OutputStream out;
+        private int current;    // The bits of the byte being filled, from the top
+        private int used;       // Number of bits of the byte being filled
+        private long written;   // Number of bytes written
+
+        BitOutput(OutputStream theOut) {
+            out = theOut;
+        }
+
+        void write(boolean bit) throws IOException {
+            if (bit) {
+                current |= 0x80 >>> used;
+            }
+            if (++used == 8) {
+                out.write(current);
+                written++;
+                current = 0;
+                used = 0;
+            }
+        }
+
+        /**
+         * Writes the first count bits of an array.
+         */
+        void write(byte[] bits, int count) throws IOException {
+            int whole = count >>> 3;
+            if (used == 0) {
+                out.write(bits, 0, whole);
+            } else {
+                for (int i = 0; i < whole; i++) {
+                    int b = bits[i] & 0xff;
+                    out.write(current | b >>> used);
+                    current = (b << (8 - used)) & 0xff;
+                }
+            }
+            written += whole;
+            for (int i = whole << 3; i < count; i++) {
+                write((bits[i >>> 3] & (0x80 >>> (i & 7))) != 0);
+            }
+        }
+
+        /**
+         * Writes the last partial byte and pads the bits with zeros to the specified length.
+         * @param bytes The number of bytes the bits take up once padded.
+         */
+        void finish(long bytes) throws IOException {
+            if (used > 0) {
+                out.write(current);
+                written++;
+                current = 0;
+                used = 0;
+            }
+            for (; written < bytes; written++) {
+                out.write(0);
+            }
+        }
+    }
+
+    /**
+     * Converts an image into a tree file without decoding the whole image at once:
+     *
+     *   java TiledTreeBuilder map.jpg map.qtree 100 64
+     *
+     * builds the tree pruned with a variance tolerance of 100, using at most 64 MB for the tile being built and the
+     * band of the image it is cut from.
+     * Without a tolerance every pixel is kept.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java TiledTreeBuilder <image> <tree file> [tolerance] [budget in MB]");
+            return;
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : -1;
+        long budget = (args.length > 3 ? Long.parseLong(args[3]) : 64) << 20;
+        TiledTreeBuilder builder = tolerance < 0 ? new TiledTreeBuilder(budget)
+                                   : new TiledTreeBuilder(budget, QuadrantTree.ErrorMetric.VARIANCE, tolerance);
+        long start = System.nanoTime();
+        int count;
+        int tile;
+        try (TileSource source = source(new File(args[0]))) {
+            tile = builder.getTileSize(source);
+            count = builder.build(source, new File(args[1]));
+        }
+        System.out.printf("Wrote %d nodes to %s in %.1f s with %dx%d tiles%n", count, args[1],
+                          (System.nanoTime() - start) / 1e9, tile, tile);
+    }
+}
@@ -0,0 +1,924 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+
+/*
+ * Command line benchmarks for the quadrant tree. Each command runs one measurement on the given images:
+ *
+ *   java TreeBenchmark build map.jpg uwo1.jpg
+ *   java TreeBenchmark prune map.jpg uwo1.jpg
+ *   java TreeBenchmark heap map.jpg uwo1.jpg
+ *   java TreeBenchmark lookup map.jpg uwo1.jpg
+ *   java TreeBenchmark parallel map.jpg uwo1.jpg
+ *   java TreeBenchmark open map.jpg uwo1.jpg
+ *   java TreeBenchmark progressive map.jpg uwo1.jpg
+ *   java TreeBenchmark traverse map.jpg uwo1.jpg
+ *   java TreeBenchmark match map.jpg animals.jpg
+ *   java TreeBenchmark colorindex map.jpg animals.jpg
+ *   java TreeBenchmark similarity map.jpg
+ *   java TreeBenchmark ingest map.jpg uwo1.jpg animals.jpg
+ *   java TreeBenchmark rect animals.jpg u.jpg 16384x16384
+ *   java TreeBenchmark render map.jpg uwo1.jpg
+ *   java TreeBenchmark edit map.jpg u.jpg
+ *   java TreeBenchmark frames u.jpg map.jpg
+ *   java TreeBenchmark dag u.jpg map.jpg
+ *   java TreeBenchmark budget u.jpg map.jpg
+ *   java TreeBenchmark quality u.jpg map.jpg
+ *
+ * The similarity command compares the vectorized batch with the scalar loop when VectorColorBatch is compiled
+ * and the program is run with --add-modules jdk.incubator.vector. The rect command also accepts a size such as
+ * 16384x16384 instead of an image, for which it builds a synthetic image of that size.
+ */
+public class TreeBenchmark {
+    private static final int RUNS = 5;
+
+    /**
+     * Compares the time to build a tree by rescanning the pixels of every node against the single-pass build.
+     * @param pixels The pixels of the image.
+     */
+    private static void build(int[][] pixels) {
+        long rescan = Long.MAX_VALUE;
+        long singlePass = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            new QuadrantTree(pixels, false);
+            rescan = Math.min(rescan, System.nanoTime() - start);
+            start = System.nanoTime();
+            new QuadrantTree(pixels, true);
+            singlePass = Math.min(singlePass, System.nanoTime() - start);
+        }
+        System.out.printf("  rescan      %8.1f ms%n", rescan / 1e6);
+        System.out.printf("  single pass %8.1f ms  (%.1fx)%n", singlePass / 1e6, rescan / (double) singlePass);
+    }
+
+    /**
+     * Reports the size of the tree compressed with several tolerances of both error metrics.
+     * @param pixels The pixels of the image.
+     */
+    private static void prune(int[][] pixels) {
+        for (QuadrantTree.ErrorMetric metric : QuadrantTree.ErrorMetric.values()) {
+            double[] tolerances = metric == QuadrantTree.ErrorMetric.VARIANCE ? new double[] {0, 16, 64, 256, 1024}
+                                                                              : new double[] {0, 4, 16, 32, 64};
+            for (double tolerance : tolerances) {
+                long start = System.nanoTime();
+                QuadrantTree tree = new QuadrantTree(pixels, metric, tolerance);
+                long time = System.nanoTime() - start;
+                System.out.printf("  %-13s %5.0f  %9d nodes %9d leaves  ratio %7.2f  %7.1f ms%n", metric, tolerance,
+                                  tree.getNodeCount(), tree.getLeafCount(), tree.getCompressionRatio(), time / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Compares the heap retained by a tree of QTreeNode objects with the heap retained by a tree stored in arrays.
+     * @param pixels The pixels of the image.
+     */
+    private static void heap(int[][] pixels) {
+        long base = usedHeap();
+        QuadrantTree objects = new QuadrantTree(pixels);
+        long objectBytes = usedHeap() - base;
+        int nodes = objects.getNodeCount();
+        objects = null;
+        base = usedHeap();
+        QuadrantTree stored = new QuadrantTree(NodeStore.build(pixels));
+        long storedBytes = usedHeap() - base;
+        System.out.printf("  objects %9d nodes %8.1f MB  (%.1f bytes/node)%n", nodes, objectBytes / 1e6,
+                          objectBytes / (double) nodes);
+        System.out.printf("  arrays  %9d nodes %8.1f MB  (%.1f bytes/node)%n", stored.getStore().getNodeCount(),
+                          storedBytes / 1e6, storedBytes / (double) stored.getStore().getNodeCount());
+    }
+
+    /**
+     * Compares random point lookups descending the tree with lookups through the Morton index,
+     * on the full tree and on a pruned tree.
+     * @param pixels The pixels of the image.
+     */
+    private static void lookup(int[][] pixels) {
+        int n = pixels.length;
+        int lookups = 2_000_000;
+        java.util.Random random = new java.util.Random(1);
+        int[] points = new int[2 * lookups];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(n);
+        }
+        QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 64)};
+        String[] names = {"full", "pruned"};
+        for (int t = 0; t < trees.length; t++) {
+            QuadrantTree tree = trees[t];
+            for (int level : new int[] {6, 11}) {
+                tree.setMortonIndex(false);
+                long descend = timeLookups(tree, level, points);
+                long start = System.nanoTime();
+                tree.setMortonIndex(true);
+                long indexBuild = System.nanoTime() - start;
+                long indexed = timeLookups(tree, level, points);
+                System.out.printf("  %-6s level %2d  descend %6.1f ns  morton %6.1f ns  (%.1fx, index built in %.0f ms)%n",
+                                  names[t], level, descend / (double) lookups, indexed / (double) lookups,
+                                  descend / (double) indexed, indexBuild / 1e6);
+            }
+        }
+    }
+
+    /**
+     * Reports the speedup of the parallel build over the sequential build for several numbers of threads.
+     * @param pixels The pixels of the image.
+     */
+    private static void parallel(int[][] pixels) {
+        long sequential = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            new QuadrantTree(pixels);
+            sequential = Math.min(sequential, System.nanoTime() - start);
+        }
+        System.out.printf("  sequential        %8.1f ms  (%d processors available)%n", sequential / 1e6,
+                          Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(threads);
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                new QuadrantTree(pixels, pool, 64);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            pool.shutdown();
+            System.out.printf("  %2d threads        %8.1f ms  (%.2fx)%n", threads, best / 1e6, sequential / (double) best);
+        }
+    }
+
+    /**
+     * Compares decoding an image and building its tree with opening the tree written to a file,
+     * up to the first screen Gui draws (getPixels at level 6) and one findNode.
+     * @param imageFile The image file.
+     * @throws IOException If a file cannot be read or written.
+     */
+    private static void open(String imageFile) throws IOException {
+        File file = File.createTempFile("benchmark", ".qtree");
+        file.deleteOnExit();
+        BufferedImage im = ImageIO.read(new File(imageFile));
+        TreeFile.write(new QuadrantTree(RasterIngest.load(im)), im.getType(), file);
+        long decode = Long.MAX_VALUE;
+        long mapped = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            usedHeap();     // Collect the trees of the previous run outside the timings
+            long start = System.nanoTime();
+            QuadrantTree tree = new QuadrantTree(RasterIngest.load(imageFile));
+            tree.getPixels(tree.getRoot(), 6);
+            tree.findNode(tree.getRoot(), 11, 1000, 1000);
+            decode = Math.min(decode, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            TreeFile treeFile = TreeFile.open(file.toPath());
+            treeFile.getTree().getPixels(treeFile.getRoot(), 6);
+            treeFile.getTree().findNode(treeFile.getRoot(), 11, 1000, 1000);
+            mapped = Math.min(mapped, System.nanoTime() - start);
+            treeFile.close();
+        }
+        System.out.printf("  decode + build  %8.1f ms%n", decode / 1e6);
+        System.out.printf("  open tree file  %8.1f ms  (%.1f MB on disk)%n", mapped / 1e6, file.length() / 1e6);
+    }
+
+    /**
+     * Reports how many bytes of a progressive stream, and how long decoding them takes, are needed before
+     * each level can be drawn, for the full tree and a pruned tree.
+     * @param pixels The pixels of the image.
+     * @throws IOException If the stream cannot be written.
+     */
+    private static void progressive(int[][] pixels) throws IOException {
+        QuadrantTree[] trees = {new QuadrantTree(pixels), new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 64)};
+        String[] names = {"full", "pruned"};
+        int chunk = 1 << 12;
+        for (int t = 0; t < trees.length; t++) {
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            ProgressiveEncoder.encode(trees[t], BufferedImage.TYPE_INT_RGB, out);
+            byte[] bytes = out.toByteArray();
+            ProgressiveDecoder decoder = new ProgressiveDecoder();
+            long start = System.nanoTime();
+            int levels = 0;
+            for (int i = 0; i < bytes.length; i += chunk) {
+                decoder.feed(bytes, i, Math.min(chunk, bytes.length - i));
+                for (; levels < decoder.levelsAvailable(); levels++) {
+                    int received = Math.min(i + chunk, bytes.length);
+                    System.out.printf("  %-6s level %2d after %10d bytes (%5.1f%%)  %7.1f ms%n", names[t], levels,
+                                      received, 100.0 * received / bytes.length, (System.nanoTime() - start) / 1e6);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the bytes allocated and the time taken by getPixels, findMatching and a visitor at several levels.
+     * @param pixels The pixels of the image.
+     */
+    private static void traverse(int[][] pixels) {
+        QuadrantTree tree = new QuadrantTree(pixels);
+        QTreeNode root = tree.getRoot();
+        int color = tree.findNode(root, 0, 0, 0).getColor();
+        for (int level : new int[] {6, 9, 11}) {
+            long[] getPixels = measureAllocation(() -> tree.getPixels(root, level));
+            long[] findMatching = measureAllocation(() -> tree.findMatching(root, color, level));
+            int[] sum = new int[1];
+            Consumer<QTreeNode> visitor = node -> sum[0] += node.getColor();
+            long[] visit = measureAllocation(() -> tree.visitPixels(root, level, visitor));
+            System.out.printf("  level %2d  getPixels %10d bytes %7.1f ms   findMatching %10d bytes %7.1f ms"
+                              + "   visitPixels %6d bytes %7.1f ms%n", level, getPixels[0], getPixels[1] / 1e6,
+                              findMatching[0], findMatching[1] / 1e6, visit[0], visit[1] / 1e6);
+        }
+    }
+
+    /**
+     * Runs a task several times on this thread.
+     * @return The bytes allocated by the last run and the best time of all runs, in nanoseconds.
+     */
+    private static long[] measureAllocation(Runnable task) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytes = 0;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+            bytes = threads.getThreadAllocatedBytes(thread) - allocated;
+        }
+        return new long[] {bytes, best};
+    }
+
+    /**
+     * Compares the number of nodes findMatching visits with and without skipping the quadrants whose color bounds
+     * cannot match, for the colors of random pixels of the image.
+     * @param pixels The pixels of the image.
+     */
+    private static void match(int[][] pixels) {
+        QuadrantTree tree = new QuadrantTree(pixels);
+        QTreeNode root = tree.getRoot();
+        int queries = 50;
+        java.util.Random random = new java.util.Random(1);
+        int[] colors = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            colors[i] = pixels[random.nextInt(pixels.length)][random.nextInt(pixels.length)];
+        }
+        Consumer<QTreeNode> ignore = node -> { };
+        for (int level : new int[] {6, 9, 11}) {
+            long all = 0;
+            long bounded = 0;
+            long allTime = Long.MAX_VALUE;
+            long boundedTime = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long[] visited = new long[2];
+                long start = System.nanoTime();
+                for (int color : colors) {
+                    NodeSpliterator.ColorFilter similar = QuadrantTree.similarTo(ColorSimilarity.DEFAULT, color);
+                    NodeSpliterator.visit(root, level, new NodeSpliterator.ColorFilter() {
+                        @Override
+                        public boolean test(int c) {
+                            return similar.test(c);
+                        }
+
+                        @Override
+                        public boolean mayPass(int minColor, int maxColor) {
+                            visited[0]++;
+                            return true;
+                        }
+                    }, ignore);
+                }
+                allTime = Math.min(allTime, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (int color : colors) {
+                    NodeSpliterator.ColorFilter similar = QuadrantTree.similarTo(ColorSimilarity.DEFAULT, color);
+                    NodeSpliterator.visit(root, level, new NodeSpliterator.ColorFilter() {
+                        @Override
+                        public boolean test(int c) {
+                            return similar.test(c);
+                        }
+
+                        @Override
+                        public boolean mayPass(int minColor, int maxColor) {
+                            visited[1]++;
+                            return similar.mayPass(minColor, maxColor);
+                        }
+                    }, ignore);
+                }
+                boundedTime = Math.min(boundedTime, System.nanoTime() - start);
+                all = visited[0];
+                bounded = visited[1];
+            }
+            System.out.printf("  level %2d  every node %11d visited %8.1f ms   bounds %10d visited %8.1f ms  (%.1f%%)%n",
+                              level, all / queries, allTime / 1e6 / queries, bounded / queries,
+                              boundedTime / 1e6 / queries, 100.0 * bounded / all);
+        }
+    }
+
+    /**
+     * Compares findMatching walking the level with findMatching through the color index, for the colors of
+     * random pixels of the image.
+     * @param pixels The pixels of the image.
+     */
+    private static void colorIndex(int[][] pixels) {
+        QuadrantTree tree = new QuadrantTree(pixels);
+        QTreeNode root = tree.getRoot();
+        int queries = 200;
+        java.util.Random random = new java.util.Random(1);
+        int[] colors = new int[queries];
+        for (int i = 0; i < queries; i++) {
+            colors[i] = pixels[random.nextInt(pixels.length)][random.nextInt(pixels.length)];
+        }
+        QuadrantTree walker = new QuadrantTree(root);   // The same nodes, without the index
+        tree.setColorIndex(true);
+        ColorIndex index = tree.getColorIndex();
+        for (int level : new int[] {6, 9, 11}) {
+            long start = System.nanoTime();
+            tree.findMatching(root, 0, level);
+            long indexBuild = System.nanoTime() - start;
+            long walk = Long.MAX_VALUE;
+            long indexed = Long.MAX_VALUE;
+            long matches = 0;
+            long inspected = 0;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                for (int color : colors) {
+                    walker.findMatching(root, color, level);
+                }
+                walk = Math.min(walk, System.nanoTime() - start);
+                long before = index.getInspected();
+                matches = 0;
+                start = System.nanoTime();
+                for (int color : colors) {
+                    matches += tree.findMatching(root, color, level).getCount();
+                }
+                indexed = Math.min(indexed, System.nanoTime() - start);
+                inspected = index.getInspected() - before;
+            }
+            System.out.printf("  level %2d  walk %8.3f ms   index %8.3f ms  (%.1fx)   %9d matches %9d inspected"
+                              + "   level indexed in %.0f ms%n", level, walk / 1e6 / queries, indexed / 1e6 / queries,
+                              walk / (double) indexed, matches / queries, inspected / queries, indexBuild / 1e6);
+        }
+    }
+
+    /**
+     * Reports how many colors per second each similarity measure compares against a query color, one at a time
+     * and in a batch, over the colors of every pixel of the image.
+     * @param pixels The pixels of the image.
+     */
+    private static void similarity(int[][] pixels) {
+        int n = pixels.length;
+        int[] colors = new int[n * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(pixels[i], 0, colors, i * n, n);
+        }
+        int[] positions = new int[colors.length];
+        java.util.Random random = new java.util.Random(1);
+        int[] queries = new int[10];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = colors[random.nextInt(colors.length)];
+        }
+        String[] names = {"box 15", "euclidean 25", "perceptual 40"};
+        ColorSimilarity[] measures = {ColorSimilarity.box(15), ColorSimilarity.euclidean(25), ColorSimilarity.perceptual(40)};
+        System.out.println("  batch implementation: " + ColorSimilarity.batchImplementation());
+        for (int m = 0; m < measures.length; m++) {
+            ColorSimilarity measure = measures[m];
+            long scalar = Long.MAX_VALUE;
+            long batch = Long.MAX_VALUE;
+            long found = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                for (int query : queries) {
+                    found += measure.scalarMatches(query, colors, 0, colors.length, positions);
+                }
+                scalar = Math.min(scalar, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (int query : queries) {
+                    found -= measure.matches(query, colors, 0, colors.length, positions);
+                }
+                batch = Math.min(batch, System.nanoTime() - start);
+            }
+            if (found != 0) {
+                System.out.println("  batch and scalar results differ");
+            }
+            double compared = (double) colors.length * queries.length;
+            System.out.printf("  %-14s scalar %7.1f M colors/s   batch %7.1f M colors/s  (%.1fx)%n", names[m],
+                              compared / scalar * 1e3, compared / batch * 1e3, scalar / (double) batch);
+        }
+    }
+
+    /**
+     * Compares copying a decoded image into the pixel array with one getRGB call per pixel, column by column as
+     * DrawImage used to, with copying it through RasterIngest.
+     * @param imageFile The image file.
+     * @throws IOException If the file cannot be read.
+     */
+    private static void ingest(String imageFile) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage im = ImageIO.read(new File(imageFile));
+        long decode = System.nanoTime() - start;
+        int size = RasterIngest.canvasSize(im.getWidth(), im.getHeight());
+        int width = im.getWidth();
+        int height = im.getHeight();
+        long perPixel = Long.MAX_VALUE;
+        long bulk = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            start = System.nanoTime();
+            int[][] pixels = new int[size][size];
+            for (int xm = 0; xm < size; ++xm)
+                for (int ym = 0; ym < size; ++ym)
+                    if (xm < width && ym < height)
+                        pixels[ym][xm] = im.getRGB(xm, ym);
+                    else pixels[ym][xm] = 0;
+            perPixel = Math.min(perPixel, System.nanoTime() - start);
+            start = System.nanoTime();
+            RasterIngest.pixels(im, size);
+            bulk = Math.min(bulk, System.nanoTime() - start);
+        }
+        System.out.printf("  type %d, decode %7.1f ms   getRGB per pixel %7.1f ms   bulk %6.1f ms  (%.1fx)%n",
+                          im.getType(), decode / 1e6, perPixel / 1e6, bulk / 1e6, perPixel / (double) bulk);
+    }
+
+    /**
+     * Compares the tree of an image padded to a square whose side is a power of two with the tree covering the
+     * image without padding, both kept in a NodeStore. A size given as WxH is a synthetic image of smooth
+     * gradients, of which only the pruned tree is built, since a full one would not fit in memory.
+     * @param image The image file, or the size of a synthetic image.
+     * @throws IOException If the file cannot be read.
+     */
+    private static void rect(String image) throws IOException {
+        int[][] pixels;
+        int width;
+        int height;
+        if (image.matches("\\d+x\\d+")) {
+            width = Integer.parseInt(image.substring(0, image.indexOf('x')));
+            height = Integer.parseInt(image.substring(image.indexOf('x') + 1));
+            pixels = new int[height][width];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    pixels[y][x] = 0xff000000 | (x / (width / 16 + 1) * 16) << 16 | (y / (height / 16 + 1) * 16) << 8;
+                }
+            }
+        } else {
+            BufferedImage im = ImageIO.read(new File(image));
+            pixels = RasterIngest.pixels(im);
+            width = im.getWidth();
+            height = im.getHeight();
+        }
+        int side = QuadrantTree.coverSize(width, height);
+        double tolerance = width * (long) height > 1L << 24 ? 25 : -1;
+        if (tolerance < 0) {
+            int[][] square = RasterIngest.pixels(toImage(pixels, width, height), side);
+            long start = System.nanoTime();
+            NodeStore padded = NodeStore.build(square);
+            long paddedTime = System.nanoTime() - start;
+            square = null;
+            System.out.printf("  padded %5dx%-5d %10d nodes %8.1f MB %8.1f ms%n", side, side, padded.getNodeCount(),
+                              padded.getByteSize() / 1e6, paddedTime / 1e6);
+        }
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        NodeStore exact = NodeStore.build(pixels, width, height, QuadrantTree.ErrorMetric.VARIANCE, tolerance);
+        long exactTime = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        System.out.printf("  exact  %5dx%-5d %10d nodes %8.1f MB %8.1f ms  (tolerance %s, heap +%.1f MB)%n", width,
+                          height, exact.getNodeCount(), exact.getByteSize() / 1e6, exactTime / 1e6,
+                          tolerance < 0 ? "none" : tolerance, (heapAfter - heapBefore) / 1e6);
+    }
+
+    /**
+     * Compares the time and the bytes allocated to draw the 512 x 512 canvas of the whole tree and paint it as
+     * DrawImage did, into a matrix of pixels copied into a new image on every paint, with CanvasRenderer, which
+     * fills the rows of one image and paints only the rectangle changed, here by marking the nodes of one color.
+     * @param pixels The pixels of the image.
+     */
+    private static void render(int[][] pixels) {
+        int canvasSize = 512;
+        int scale = pixels.length / canvasSize;
+        QuadrantTree tree = new QuadrantTree(pixels);
+        QTreeNode root = tree.getRoot();
+        int level = Integer.numberOfTrailingZeros(canvasSize);
+        ListNode<QTreeNode> nodes = tree.getPixels(root, level);
+        Duple marked = tree.findMatching(root, tree.findNode(root, level, pixels.length / 2, pixels.length / 2)
+                                                  .getColor(), level);
+        BufferedImage screen = new BufferedImage(canvasSize, canvasSize, BufferedImage.TYPE_INT_RGB);
+        java.awt.Graphics2D g = screen.createGraphics();
+
+        int[][] matrix = new int[canvasSize][canvasSize];
+        long[] matrixDraw = measureAllocation(() -> {
+            for (ListNode<QTreeNode> p = nodes; p != null; p = p.getNext()) {
+                QTreeNode node = p.getData();
+                int x = node.getx() / scale;
+                int y = node.gety() / scale;
+                int end = node.getSize() / scale;
+                for (int j = y; j < y + end; j++) {
+                    for (int i = x; i < x + end; i++) {
+                        matrix[j][i] = node.getColor();
+                    }
+                }
+            }
+        });
+        long[] matrixPaint = measureAllocation(() -> {
+            int[] pix = new int[canvasSize * canvasSize];
+            int i = 0;
+            for (int row = 0; row < canvasSize; row++) {
+                for (int column = 0; column < canvasSize; column++) {
+                    pix[i++] = matrix[row][column];
+                }
+            }
+            BufferedImage im = new BufferedImage(canvasSize, canvasSize, BufferedImage.TYPE_3BYTE_BGR);
+            im.setRGB(0, 0, canvasSize, canvasSize, pix, 0, canvasSize);
+            g.drawImage(im, 0, 0, null);
+        });
+
+        CanvasRenderer canvas = new CanvasRenderer(canvasSize, canvasSize);
+        long[] canvasDraw = measureAllocation(() -> {
+            for (ListNode<QTreeNode> p = nodes; p != null; p = p.getNext()) {
+                QTreeNode node = p.getData();
+                int x = node.getx() / scale;
+                int y = node.gety() / scale;
+                int end = node.getSize() / scale;
+                canvas.fill(x, y, x + end, y + end, node.getColor());
+            }
+        });
+        canvas.takeDirty();
+        long[] canvasPaint = measureAllocation(() -> g.drawImage(canvas.getImage(), 0, 0, null));
+        for (ListNode<QTreeNode> p = marked.getFront(); p != null; p = p.getNext()) {
+            QTreeNode node = p.getData();
+            int x = node.getx() / scale;
+            int y = node.gety() / scale;
+            int end = node.getSize() / scale;
+            canvas.fill(x, y, x + end, y + end, 0xff0000);
+        }
+        java.awt.Rectangle dirty = canvas.takeDirty();
+        long[] dirtyPaint = measureAllocation(() -> {
+            java.awt.Graphics clipped = g.create(dirty.x, dirty.y, dirty.width, dirty.height);
+            clipped.drawImage(canvas.getImage(), -dirty.x, -dirty.y, null);
+            clipped.dispose();
+        });
+        g.dispose();
+        System.out.printf("  matrix  draw %7.2f ms %9d bytes   paint %7.2f ms %9d bytes%n", matrixDraw[1] / 1e6,
+                          matrixDraw[0], matrixPaint[1] / 1e6, matrixPaint[0]);
+        System.out.printf("  canvas  draw %7.2f ms %9d bytes   paint %7.2f ms %9d bytes%n", canvasDraw[1] / 1e6,
+                          canvasDraw[0], canvasPaint[1] / 1e6, canvasPaint[0]);
+        System.out.printf("  %d marked nodes, dirty %dx%d   paint %7.2f ms %9d bytes%n", marked.getCount(),
+                          dirty.width, dirty.height, dirtyPaint[1] / 1e6, dirtyPaint[0]);
+    }
+
+    /**
+     * Compares the time to edit a tree in place, one pixel or one 32 x 32 block at a time, against the time to
+     * build it again from the edited pixels, for the full tree and a pruned one.
+     * @param pixels The pixels of the image.
+     */
+    private static void edit(int[][] pixels) {
+        java.util.Random random = new java.util.Random(1);
+        int edits = 1000;
+        int[] points = new int[2 * edits];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(pixels.length - 32);
+        }
+        for (QuadrantTree.ErrorMetric metric : new QuadrantTree.ErrorMetric[] {null, QuadrantTree.ErrorMetric.VARIANCE}) {
+            int[][] image = new int[pixels.length][];
+            for (int y = 0; y < pixels.length; y++) {
+                image[y] = pixels[y].clone();
+            }
+            long start = System.nanoTime();
+            QuadrantTree tree = metric == null ? new QuadrantTree(image) : new QuadrantTree(image, metric, 100);
+            long build = System.nanoTime() - start;
+            tree.setEditable(image);
+            start = System.nanoTime();
+            tree.setPixel(0, 0, image[0][0]);
+            long first = System.nanoTime() - start;
+            long pixel = Long.MAX_VALUE;
+            long block = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                for (int i = 0; i < points.length; i += 2) {
+                    tree.setPixel(points[i], points[i + 1], 0xff000000 | random.nextInt(1 << 24));
+                }
+                pixel = Math.min(pixel, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (int i = 0; i < points.length; i += 2) {
+                    tree.fillRect(points[i], points[i + 1], 32, 32, 0xff000000 | random.nextInt(1 << 24));
+                }
+                block = Math.min(block, System.nanoTime() - start);
+            }
+            System.out.printf("  %-8s build %8.1f ms   first edit %7.1f ms   pixel %7.2f us   32x32 block %7.2f us  (%d nodes)%n",
+                              metric == null ? "full" : "pruned", build / 1e6, first / 1e6, pixel / 1e3 / edits,
+                              block / 1e3 / edits, tree.getNodeCount());
+        }
+    }
+
+    /**
+     * Builds the trees of a 300 frame clip made from an image, in which a 32 x 32 block moves across the image,
+     * with a FrameSequence, and compares the time per frame, the heap held by the trees of all the frames and the
+     * size of the FrameDeltaEncoder stream with those of building and writing every frame on its own.
+     * @param pixels The pixels of the image.
+     */
+    private static void frames(int[][] pixels) throws IOException {
+        int count = 300;
+        int block = 32;
+        for (QuadrantTree.ErrorMetric metric : new QuadrantTree.ErrorMetric[] {null, QuadrantTree.ErrorMetric.VARIANCE}) {
+            int[][] frame = new int[pixels.length][];
+            for (int y = 0; y < pixels.length; y++) {
+                frame[y] = pixels[y].clone();
+            }
+            int size = pixels.length;
+            QuadrantTree single = metric == null ? new QuadrantTree(frame) : new QuadrantTree(frame, metric, 100);
+            long start = System.nanoTime();
+            single = metric == null ? new QuadrantTree(frame) : new QuadrantTree(frame, metric, 100);
+            long buildTime = System.nanoTime() - start;
+            java.io.ByteArrayOutputStream file = new java.io.ByteArrayOutputStream();
+            TreeFile.write(single, BufferedImage.TYPE_INT_RGB, file);
+            single = null;
+
+            long base = usedHeap();
+            FrameSequence sequence = new FrameSequence(size, size, metric, 100);
+            java.io.ByteArrayOutputStream deltas = new java.io.ByteArrayOutputStream();
+            FrameDeltaEncoder encoder = new FrameDeltaEncoder(deltas, size, size, BufferedImage.TYPE_INT_RGB);
+            QuadrantTree[] trees = new QuadrantTree[count];
+            long frameTime = 0;
+            long first = 0;
+            for (int f = 0; f < count; f++) {
+                if (f == 1) {
+                    first = usedHeap() - base;
+                }
+                int x = f * (size - block) / count;
+                int y = (size - block) / 2 + (int) ((size - block) / 4 * Math.sin(f / 20.0));
+                for (int row = y; row < y + block; row++) {
+                    java.util.Arrays.fill(frame[row], x, x + block, 0xff000000 | f * 0x010203);
+                }
+                start = System.nanoTime();
+                trees[f] = sequence.add(frame);
+                frameTime += System.nanoTime() - start;
+                encoder.write(trees[f]);
+            }
+            long held = usedHeap() - base;
+            System.out.printf("  %-6s frame %6.2f ms (build %7.2f ms)   heap %6.1f MB + %5.1f MB for %d more frames"
+                              + "   deltas %9d bytes (tree files %10d bytes)%n",
+                              metric == null ? "full" : "pruned", frameTime / 1e6 / count, buildTime / 1e6,
+                              first / 1e6, (held - first) / 1e6, count - 1, deltas.size(), (long) count * file.size());
+            if (trees[count - 1] == null) {
+                System.out.print("");
+            }
+        }
+    }
+
+    /**
+     * Compares the nodes and the heap of a tree of QTreeNode objects, of a tree stored in arrays and of a tree whose
+     * identical subtrees are stored once, full and pruned, and the time of getPixels and findNode on each.
+     * @param pixels The pixels of the image.
+     */
+    private static void dag(int[][] pixels) {
+        int n = pixels.length;
+        int lookups = 1_000_000;
+        java.util.Random random = new java.util.Random(1);
+        int[] points = new int[2 * lookups];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(n);
+        }
+        for (QuadrantTree.ErrorMetric metric : new QuadrantTree.ErrorMetric[] {null, QuadrantTree.ErrorMetric.VARIANCE}) {
+            String mode = metric == null ? "full" : "pruned";
+            long base = usedHeap();
+            long start = System.nanoTime();
+            QuadrantTree objects = metric == null ? new QuadrantTree(pixels) : new QuadrantTree(pixels, metric, 64);
+            long objectTime = System.nanoTime() - start;
+            long objectBytes = usedHeap() - base;
+            int nodes = objects.getNodeCount();
+            report(mode, "objects", objects, nodes, objectBytes, objectTime, points);
+            objects = null;
+            if (metric == null) {
+                base = usedHeap();
+                start = System.nanoTime();
+                QuadrantTree stored = new QuadrantTree(NodeStore.build(pixels));
+                long storedTime = System.nanoTime() - start;
+                report(mode, "arrays", stored, stored.getStore().getNodeCount(), usedHeap() - base, storedTime, points);
+                stored = null;
+            }
+            base = usedHeap();
+            start = System.nanoTime();
+            QuadrantTree shared = new QuadrantTree(DagStore.build(pixels, metric, 64));
+            long sharedTime = System.nanoTime() - start;
+            report(mode, "dag", shared, shared.getStoredNodeCount(), usedHeap() - base, sharedTime, points);
+        }
+    }
+
+    private static void report(String mode, String name, QuadrantTree tree, int nodes, long bytes, long buildTime,
+                               int[] points) {
+        QTreeNode root = tree.getRoot();
+        long[] getPixels = measureAllocation(() -> tree.getPixels(root, 9));
+        long findNode = timeLookups(tree, 11, points);
+        System.out.printf("  %-6s %-7s %9d nodes %8.1f MB  build %7.1f ms   getPixels(9) %7.1f ms   findNode %6.1f ns%n",
+                          mode, name, nodes, bytes / 1e6, buildTime / 1e6, getPixels[1] / 1e6,
+                          findNode / (double) (points.length / 2));
+    }
+
+    /**
+     * Compares the quality of trees pruned with a tolerance with the quality of trees split best first to the same
+     * number of nodes, and reports the nodes and the time needed to reach several quality targets.
+     * @param pixels The pixels of the image.
+     */
+    private static void budget(int[][] pixels) {
+        int n = pixels.length;
+        RateDistortionBuilder builder = new RateDistortionBuilder(pixels);
+        builder.buildToNodeCount(1);    // Builds the statistics of the quadrants outside the timings
+        for (double tolerance : new double[] {16, 64, 256, 1024}) {
+            long start = System.nanoTime();
+            QuadrantTree pruned = new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, tolerance);
+            long prunedTime = System.nanoTime() - start;
+            int nodes = pruned.getNodeCount();
+            double prunedPsnr = 10 * Math.log10(255.0 * 255.0 * 3 * n * n / leafError(pruned.getRoot(), pixels));
+            start = System.nanoTime();
+            builder.buildToNodeCount(nodes);
+            long budgetTime = System.nanoTime() - start;
+            System.out.printf("  %9d nodes   tolerance %5.0f %6.2f dB %7.1f ms   best first %6.2f dB %7.1f ms%n", nodes,
+                              tolerance, prunedPsnr, prunedTime / 1e6, builder.getPsnr(), budgetTime / 1e6);
+        }
+        for (double target : new double[] {25, 30, 35, 40}) {
+            long start = System.nanoTime();
+            QuadrantTree tree = builder.buildToPsnr(target);
+            long time = System.nanoTime() - start;
+            System.out.printf("  target %4.1f dB  %9d nodes  %6.2f dB  %7.1f ms  (curve of %d points)%n", target,
+                              tree.getNodeCount(), builder.getPsnr(), time / 1e6, builder.getCurveLength());
+        }
+    }
+
+    /**
+     * Reports the PSNR of every level of a full and a pruned tree and the SSIM of their deepest level, with the time
+     * to measure them: the errors of all the levels in one traversal against drawing each level with getPixels,
+     * and the SSIM on one thread against the common pool.
+     * @param pixels The pixels of the image.
+     */
+    private static void quality(int[][] pixels) {
+        QualityMetrics metrics = new QualityMetrics(pixels);
+        java.util.concurrent.ForkJoinPool single = new java.util.concurrent.ForkJoinPool(1);
+        for (QuadrantTree.ErrorMetric metric : new QuadrantTree.ErrorMetric[] {null, QuadrantTree.ErrorMetric.VARIANCE}) {
+            QuadrantTree tree = metric == null ? new QuadrantTree(pixels) : new QuadrantTree(pixels, metric, 256);
+            double[] psnr = null;
+            long traversal = Long.MAX_VALUE;
+            long perLevel = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                psnr = metrics.getPsnr(tree);
+                traversal = Math.min(traversal, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (int level = 0; level < psnr.length; level++) {
+                    double error = 0;
+                    for (ListNode<QTreeNode> node = tree.getPixels(tree.getRoot(), level); node != null;
+                         node = node.getNext()) {
+                        error += nodeError(node.getData(), pixels);
+                    }
+                    if (error < 0) {
+                        System.out.print("");
+                    }
+                }
+                perLevel = Math.min(perLevel, System.nanoTime() - start);
+            }
+            int deepest = psnr.length - 1;
+            long oneThread = Long.MAX_VALUE;
+            long pooled = Long.MAX_VALUE;
+            double ssim = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                ssim = metrics.getSsim(tree, deepest, single);
+                oneThread = Math.min(oneThread, System.nanoTime() - start);
+                start = System.nanoTime();
+                metrics.getSsim(tree, deepest);
+                pooled = Math.min(pooled, System.nanoTime() - start);
+            }
+            StringBuilder levels = new StringBuilder();
+            for (int level = 0; level < psnr.length; level++) {
+                levels.append(String.format(" %.1f", psnr[level]));
+            }
+            System.out.printf("  %-6s PSNR of levels 0 to %d%s dB%n", metric == null ? "full" : "pruned", deepest, levels);
+            System.out.printf("         all levels %7.1f ms (getPixels per level %8.1f ms)   SSIM %.4f  %7.1f ms"
+                              + " (1 thread %7.1f ms, %d processors)%n", traversal / 1e6, perLevel / 1e6, ssim,
+                              pooled / 1e6, oneThread / 1e6, Runtime.getRuntime().availableProcessors());
+        }
+        single.shutdown();
+    }
+
+    private static double leafError(QTreeNode node, int[][] pixels) {
+        if (node == null) {
+            return 0;
+        }
+        if (!node.isLeaf()) {
+            double error = 0;
+            for (int i = 0; i < 4; i++) {
+                error += leafError(node.getChild(i), pixels);
+            }
+            return error;
+        }
+        return nodeError(node, pixels);
+    }
+
+    private static double nodeError(QTreeNode node, int[][] pixels) {
+        double error = 0;
+        int color = node.getColor();
+        for (int y = node.gety(); y < node.gety() + node.getSize(); y++) {
+            for (int x = node.getx(); x < node.getx() + node.getSize(); x++) {
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int d = ((pixels[y][x] >> shift) & 0xff) - ((color >> shift) & 0xff);
+                    error += d * d;
+                }
+            }
+        }
+        return error;
+    }
+
+    private static BufferedImage toImage(int[][] pixels, int width, int height) {
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            im.setRGB(0, y, width, 1, pixels[y], 0, width);
+        }
+        return im;
+    }
+
+    private static long timeLookups(QuadrantTree tree, int level, int[] points) {
+        QTreeNode root = tree.getRoot();
+        long best = Long.MAX_VALUE;
+        int checksum = 0;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < points.length; i += 2) {
+                checksum += tree.findNode(root, level, points[i], points[i + 1]).getColor();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (checksum == 42) {
+            System.out.print("");
+        }
+        return best;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java TreeBenchmark build|prune|heap|lookup|parallel|open|progressive|traverse|match|colorindex|similarity|ingest|rect|render|edit|frames|dag|budget|quality <image>...");
+            return;
+        }
+        String command = args[0];
+        for (int i = 1; i < args.length; i++) {
+            if (command.equals("open")) {
+                System.out.println(args[i]);
+                open(args[i]);
+                continue;
+            }
+            if (command.equals("ingest")) {
+                System.out.println(args[i]);
+                ingest(args[i]);
+                continue;
+            }
+            if (command.equals("rect")) {
+                System.out.println(args[i]);
+                rect(args[i]);
+                continue;
+            }
+            int[][] pixels = RasterIngest.load(args[i]);
+            System.out.println(args[i] + " (" + pixels.length + "x" + pixels.length + ")");
+            if (command.equals("build")) {
+                build(pixels);
+            } else if (command.equals("prune")) {
+                prune(pixels);
+            } else if (command.equals("heap")) {
+                heap(pixels);
+            } else if (command.equals("lookup")) {
+                lookup(pixels);
+            } else if (command.equals("parallel")) {
+                parallel(pixels);
+            } else if (command.equals("progressive")) {
+                progressive(pixels);
+            } else if (command.equals("traverse")) {
+                traverse(pixels);
+            } else if (command.equals("match")) {
+                match(pixels);
+            } else if (command.equals("colorindex")) {
+                colorIndex(pixels);
+            } else if (command.equals("similarity")) {
+                similarity(pixels);
+            } else if (command.equals("render")) {
+                render(pixels);
+            } else if (command.equals("edit")) {
+                edit(pixels);
+            } else if (command.equals("frames")) {
+                frames(pixels);
+            } else if (command.equals("dag")) {
+                dag(pixels);
+            } else if (command.equals("budget")) {
+                budget(pixels);
+            } else if (command.equals("quality")) {
+                quality(pixels);
+            } else {
+                System.out.println("Unknown command " + command);
+                return;
+            }
+        }
+        if (TreeMetrics.isEnabled()) {
+            TreeMetrics.dump(System.out);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A class named TreeEvents that holds the JDK Flight Recorder events of the phases of loading, building, querying
+ * and drawing a tree. A phase creates its event, calls start before the work and finish after it:
+ *
+ *   TreeEvents.Build event = new TreeEvents.Build();
+ *   event.start();
+ *   ...
+ *   event.finish(root, "single pass", false);
+ *
+ * finish commits the event when a recording wants it (java -XX:StartFlightRecording ... or jcmd JFR.start) and
+ * records the duration and the sizes in TreeMetrics when the registry is enabled. When neither is on, start and
+ * finish only test two flags, and the events themselves are not kept. Queries are recorded by JFR only when they
+ * take at least 20 microseconds, so a recording of a program making millions of lookups stays small; the
+ * threshold can be lowered in the recording settings.
+ */
+public final class TreeEvents {
+    private TreeEvents() {
+    }
+
+    /**
+     * Reads the clock for TreeMetrics.
+     * @return The time in nanoseconds, or 0 when the registry is disabled.
+     */
+    static long clock() {
+        return TreeMetrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of a phase in TreeMetrics, if the clock was read when it started.
+     * @param metric The name of the histogram of the phase.
+     * @param startNanos What clock returned when the phase started.
+     */
+    static void record(String metric, long startNanos) {
+        if (startNanos != 0) {
+            TreeMetrics.histogram(metric).record(System.nanoTime() - startNanos);
+        }
+    }
+
+    @Category("Quadrant Tree")
+    @StackTrace(false)
+    @Name("qtree.Decode")
+    @Label("Image Decode")
+    @Description("An image file decoded by ImageIO")
+    public static final class Decode extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        private transient long startNanos;  // 0 when the registry is disabled
+
+        /**
+         * Marks the start of the phase.
+         */
+        public void start() {
+            begin();
+            startNanos = clock();
+        }
+
+        /**
+         * Ends the decoding of an image.
+         * @param theFile The file decoded.
+         * @param theWidth The width of the image, or 0 if it could not be decoded.
+         * @param theHeight The height of the image, or 0 if it could not be decoded.
+         */
+        public void finish(String theFile, int theWidth, int theHeight) {
+            if (startNanos != 0) {
+                TreeMetrics.counter("decode.pixels").add((long) theWidth * theHeight);
+            }
+            end();
+            record("decode", startNanos);
+            if (shouldCommit()) {
+                file = theFile;
+                width = theWidth;
+                height = theHeight;
+                commit();
+            }
+        }
+    }
+
+    @Category("Quadrant Tree")
+    @StackTrace(false)
+    @Name("qtree.Ingest")
+    @Label("Pixel Ingest")
+    @Description("The pixels of a decoded image copied into the array the tree is built from")
+    public static final class Ingest extends Event {
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Image Type")
+        int imageType;
+
+        private transient long startNanos;  // 0 when the registry is disabled
+
+        /**
+         * Marks the start of the phase.
+         */
+        public void start() {
+            begin();
+            startNanos = clock();
+        }
+
+        /**
+         * Ends the copy of the pixels of an image.
+         * @param theWidth The number of pixels copied from each row.
+         * @param theHeight The number of rows copied.
+         * @param theImageType The type of the BufferedImage.
+         */
+        public void finish(int theWidth, int theHeight, int theImageType) {
+            end();
+            record("ingest", startNanos);
+            if (shouldCommit()) {
+                width = theWidth;
+                height = theHeight;
+                imageType = theImageType;
+                commit();
+            }
+        }
+    }
+
+    @Category("Quadrant Tree")
+    @StackTrace(false)
+    @Name("qtree.Build")
+    @Label("Tree Build")
+    @Description("A tree built from the pixels of an image")
+    public static final class Build extends Event {
+        @Label("Builder")
+        String builder;
+
+        @Label("Pruned")
+        boolean pruned;
+
+        @Label("Nodes")
+        int nodes;
+
+        @Label("Depth")
+        int depth;
+
+        private transient long startNanos;  // 0 when the registry is disabled
+
+        /**
+         * Marks the start of the phase.
+         */
+        public void start() {
+            begin();
+            startNanos = clock();
+        }
+
+        /**
+         * Ends the build of a tree. The nodes are only counted if the build is recorded.
+         * @param root The root of the tree built.
+         * @param theBuilder The way the tree was built.
+         * @param isPruned True if quadrants were merged within a tolerance.
+         */
+        public void finish(QTreeNode root, String theBuilder, boolean isPruned) {
+            end();
+            record("build", startNanos);
+            if (!shouldCommit() && startNanos == 0) {
+                return;
+            }
+            int[] shape = new int[2];   // Nodes and depth
+            measure(root, 0, shape);
+            report(shape[0], shape[1], theBuilder, isPruned);
+        }
+
+        /**
+         * Ends the build of a tree that is not kept in memory, such as one written straight to a file.
+         * @param theNodes The number of nodes of the tree.
+         * @param theDepth The depth of the deepest node of the tree.
+         * @param theBuilder The way the tree was built.
+         * @param isPruned True if quadrants were merged within a tolerance.
+         */
+        public void finish(int theNodes, int theDepth, String theBuilder, boolean isPruned) {
+            end();
+            record("build", startNanos);
+            report(theNodes, theDepth, theBuilder, isPruned);
+        }
+
+        private void report(int theNodes, int theDepth, String theBuilder, boolean isPruned) {
+            if (startNanos != 0) {
+                TreeMetrics.counter("build.nodes").add(theNodes);
+            }
+            if (shouldCommit()) {
+                builder = theBuilder;
+                pruned = isPruned;
+                nodes = theNodes;
+                depth = theDepth;
+                commit();
+            }
+        }
+
+        private static void measure(QTreeNode node, int depth, int[] shape) {
+            if (node == null) {
+                return;
+            }
+            shape[0]++;
+            shape[1] = Math.max(shape[1], depth);
+            if (!node.isLeaf()) {
+                for (int i = 0; i < 4; i++) {
+                    measure(node.getChild(i), depth + 1, shape);
+                }
+            }
+        }
+    }
+
+    @Category("Quadrant Tree")
+    @StackTrace(false)
+    @Name("qtree.Query")
+    @Label("Tree Query")
+    @Description("A call to getPixels, findMatching or findNode")
+    @Threshold("20 us")
+    public static final class Query extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Level")
+        int level;
+
+        @Label("Results")
+        int results;
+
+        private transient long startNanos;  // 0 when the registry is disabled
+
+        /**
+         * Marks the start of the phase.
+         */
+        public void start() {
+            begin();
+            startNanos = clock();
+        }
+
+        /**
+         * Ends a query.
+         * @param theOperation getPixels, findMatching or findNode, which is also the name of its histogram.
+         * @param theLevel The level queried.
+         * @param theResults The number of nodes returned.
+         */
+        public void finish(String theOperation, int theLevel, int theResults) {
+            if (startNanos != 0) {
+                TreeMetrics.counter(theOperation + ".results").add(theResults);
+            }
+            end();
+            record(theOperation, startNanos);
+            if (shouldCommit()) {
+                operation = theOperation;
+                level = theLevel;
+                results = theResults;
+                commit();
+            }
+        }
+    }
+
+    @Category("Quadrant Tree")
+    @StackTrace(false)
+    @Name("qtree.Render")
+    @Label("Canvas Render")
+    @Description("The canvas drawn by DrawImage for a level of the tree")
+    public static final class Render extends Event {
+        @Label("Level")
+        int level;
+
+        @Label("From Cache")
+        boolean cached;
+
+        @Label("Changed Pixels")
+        @Description("The area of the rectangle of the canvas to repaint")
+        int changed;
+
+        private transient long startNanos;  // 0 when the registry is disabled
+
+        /**
+         * Marks the start of the phase.
+         */
+        public void start() {
+            begin();
+            startNanos = clock();
+        }
+
+        /**
+         * Ends the drawing of the canvas.
+         * @param theLevel The level drawn.
+         * @param isCached True if the canvas was copied from the RasterCache.
+         * @param theChanged The area of the rectangle of the canvas to repaint.
+         */
+        public void finish(int theLevel, boolean isCached, int theChanged) {
+            end();
+            record(isCached ? "render.cached" : "render", startNanos);
+            if (shouldCommit()) {
+                level = theLevel;
+                cached = isCached;
+                changed = theChanged;
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A class named TreeFile that stores a quadrant tree in a compact binary file and reads it back through a
+ * memory-mapped FileChannel. The file holds a header, then one structure bit per node in preorder (1 for an
+ * internal node, 0 for a leaf), padded to a multiple of 8 bytes, then the color of every node in preorder packed
+ * in 3 bytes. Positions and sizes are not stored: they follow from the image size and the way QuadrantTree splits
+ * a quadrant. The alpha channel is not stored either; colors are read back opaque.
+ *
+ * Opening a file only maps it. Nodes are MappedNode views created when they are reached, so getRoot, findNode
+ * and getPixels on the tree of an open file only touch the parts of the file they need.
+ */
+public class TreeFile {
+    private static final int MAGIC = 0x51545245;    // "QTRE"
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 20;
+    private static final int CACHED_SIZE = 64;      // Subtree sizes of quadrants at least this big are remembered
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int imageType;
+    private final int nodeCount;
+    private final int colorStart;                   // Offset of the colors in the file
+    private final Map<Integer, Integer> subtreeSizes = new ConcurrentHashMap<>();  // Filled by concurrent readers
+    private final QuadrantTree tree;
+
+    private TreeFile(FileChannel theChannel) throws IOException {
+        channel = theChannel;
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Tree files larger than 2GB are not supported");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (channel.size() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a quadrant tree file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported quadrant tree file version " + buffer.getInt(4));
+        }
+        size = buffer.getInt(8);
+        imageType = buffer.getInt(12);
+        nodeCount = buffer.getInt(16);
+        colorStart = HEADER_BYTES + structureBytes(nodeCount);
+        if (channel.size() < colorStart + 3L * nodeCount) {
+            throw new IOException("Truncated quadrant tree file");
+        }
+        tree = new QuadrantTree(nodeCount == 0 ? null : new MappedNode(this, 0, null, 0, 0, size));
+    }
+
+    /**
+     * Opens a tree file. The file stays mapped until close is called.
+     * @param path The file to open.
+     * @return The open file.
+     * @throws IOException If the file cannot be read or is not a tree file.
+     */
+    public static TreeFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new TreeFile(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a tree to a file.
+     * @param tree The tree to write. Every internal node must have four children.
+     * @param imageType The type of the BufferedImage the tree was built from.
+     * @param file The file to write.
+     * @throws IOException If the file cannot be written.
+     * @throws QTreeException If an internal node of the tree is missing a child.
+     */
+    public static void write(QuadrantTree tree, int imageType, File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            write(tree, imageType, out);
+        }
+    }
+
+    /**
+     * Writes a tree to a stream.
+     * @param tree The tree to write. Every internal node must have four children.
+     * @param imageType The type of the BufferedImage the tree was built from.
+     * @param stream The stream to write to.
+     * @throws IOException If the stream cannot be written.
+     * @throws QTreeException If an internal node of the tree is missing a child.
+     */
+    public static void write(QuadrantTree tree, int imageType, OutputStream stream) throws IOException {
+        QTreeNode root = tree.getRoot();
+        int count = tree.getNodeCount();
+        byte[] structure = new byte[structureBytes(count)];
+        byte[] colors = new byte[3 * count];
+        if (root != null) {
+            encode(root, structure, colors, new int[1]);
+        }
+        DataOutputStream out = new DataOutputStream(stream);
+        writeHeader(out, root == null ? 0 : root.getSize(), imageType, count);
+        out.write(structure);
+        out.write(colors);
+        out.flush();
+    }
+
+    /**
+     * Writes the header of a tree file; the structure bits and then the colors must follow it.
+     * @param out The stream to write to.
+     * @param size The size of the root of the tree.
+     * @param imageType The type of the BufferedImage the tree was built from.
+     * @param count The number of nodes of the tree.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void writeHeader(DataOutputStream out, int size, int imageType, int count) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size);
+        out.writeInt(imageType);
+        out.writeInt(count);
+    }
+
+    /**
+     * Stores the structure bit and the color of every node of the subtree in preorder.
+     * @param next The preorder index of the node, advanced past the subtree.
+     */
+    static void encode(QTreeNode node, byte[] structure, byte[] colors, int[] next) {
+        int index = next[0]++;
+        int color = node.getColor();
+        colors[3 * index] = (byte) (color >> 16);
+        colors[3 * index + 1] = (byte) (color >> 8);
+        colors[3 * index + 2] = (byte) color;
+        if (node.isLeaf()) {
+            return;
+        }
+        structure[index >> 3] |= (byte) (0x80 >>> (index & 7));
+        for (int i = 0; i < 4; i++) {
+            QTreeNode child = node.getChild(i);
+            if (child == null) {
+                throw new QTreeException("Tree files need every internal node to have four children");
+            }
+            encode(child, structure, colors, next);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the structure bits of a tree, padded so they can be read as longs.
+     */
+    static int structureBytes(int count) {
+        return ((count + 63) >>> 6) << 3;
+    }
+
+    /**
+     * Returns the tree stored in the file.
+     * @return The tree stored in the file.
+     */
+    public QuadrantTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the root of the tree stored in the file.
+     * @return The root of the tree, or null if the tree is empty.
+     */
+    public QTreeNode getRoot() {
+        return tree.getRoot();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getImageType() {
+        return imageType;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Closes the file. The mapping is released once it is garbage collected; the nodes of the tree
+     * must not be used after the file is closed.
+     * @throws IOException If the file cannot be closed.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    boolean isInternal(int index) {
+        return (buffer.get(HEADER_BYTES + (index >> 3)) & (0x80 >>> (index & 7))) != 0;
+    }
+
+    int color(int index) {
+        int offset = colorStart + 3 * index;
+        return 0xff000000 | (buffer.get(offset) & 0xff) << 16 | (buffer.get(offset + 1) & 0xff) << 8
+               | (buffer.get(offset + 2) & 0xff);
+    }
+
+    /**
+     * Returns the number of nodes in the subtree whose root has the specified preorder index.
+     * The structure bits are scanned a long at a time while the end of the subtree is far enough away.
+     * @param index The preorder index of the root of the subtree.
+     * @param quadrantSize The size of the quadrant of the root of the subtree.
+     * @return The number of nodes in the subtree.
+     */
+    int subtreeSize(int index, int quadrantSize) {
+        if (quadrantSize >= CACHED_SIZE) {
+            Integer cached = subtreeSizes.get(index);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long open = 1;      // Nodes of the subtree not yet reached
+        int position = index;
+        while (open > 0) {
+            if (open > 64 && (position & 63) == 0) {
+                // Each internal node opens four nodes and closes itself, each leaf closes itself
+                long word = buffer.getLong(HEADER_BYTES + (position >> 3));
+                open += 4L * Long.bitCount(word) - 64;
+                position += 64;
+            } else {
+                open += isInternal(position) ? 3 : -1;
+                position++;
+            }
+        }
+        int count = position - index;
+        if (quadrantSize >= CACHED_SIZE) {
+            subtreeSizes.put(index, count);
+        }
+        return count;
+    }
+
+    /**
+     * Converts an image into a tree file:
+     *
+     *   java TreeFile uwo1.jpg uwo1.qtree
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java TreeFile <image> <tree file>");
+            return;
+        }
+        BufferedImage im = RasterIngest.read(new File(args[0]));
+        QuadrantTree tree = new QuadrantTree(RasterIngest.load(im));
+        write(tree, im.getType(), new File(args[1]));
+        System.out.println("Wrote " + tree.getNodeCount() + " nodes to " + args[1]);
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A class named TreeMetrics that is a registry of counters and latency histograms for the phases of loading,
+ * building, querying and drawing a tree. The phases record into it through TreeEvents while it is enabled, which
+ * it is when the program is started with -Dqtree.metrics=true or after setEnabled(true). While it is disabled the
+ * phases do not even read the clock. The registry can be printed with dump, as BatchCompressor, TreeBenchmark and
+ * Gui do when it is enabled, or read by name.
+ */
+public final class TreeMetrics {
+    private static volatile boolean enabled = Boolean.getBoolean("qtree.metrics");
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private TreeMetrics() {
+    }
+
+    /**
+     * A count that many threads may add to at once.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * A histogram of durations in nanoseconds. A duration falls in the bucket of its highest bit, so a
+     * percentile is known to within a factor of two, and recording is a few atomic additions.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Adds a duration to the histogram.
+         * @param nanos The duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the mean of the durations.
+         * @return The mean in nanoseconds, or 0 if nothing was recorded.
+         */
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / (double) n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Returns an upper bound of a percentile of the durations: the end of the bucket it falls in.
+         * @param percentile The percentile, from 0 to 100.
+         * @return The duration in nanoseconds, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long n = count.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int b = 0; b < 64; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return Math.min((2L << b) - 1, getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+
+    /**
+     * Returns true if the phases record into the registry.
+     * @return True if the registry is enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops recording. What was recorded is kept.
+     * @param isEnabled True to record the phases, false to stop.
+     */
+    public static void setEnabled(boolean isEnabled) {
+        enabled = isEnabled;
+    }
+
+    /**
+     * Returns a counter, creating it the first time it is asked for.
+     * @param name The name of the counter.
+     * @return The counter.
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * Returns a histogram, creating it the first time it is asked for.
+     * @param name The name of the histogram.
+     * @return The histogram.
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Drops every counter and histogram.
+     */
+    public static void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /**
+     * Prints every histogram, with its count and its mean, 50th, 99th percentile and maximum in milliseconds,
+     * then every counter, in order of name.
+     * @param out The stream to print to.
+     */
+    public static void dump(PrintStream out) {
+        out.println("  phase                  count    mean ms     p50 ms     p99 ms     max ms");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram h = entry.getValue();
+            out.printf("  %-18s %9d %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(), h.getCount(), h.getMean() / 1e6,
+                       h.getPercentile(50) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6);
+        }
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            out.printf("  %-18s %9d%n", entry.getKey(), entry.getValue().get());
+        }
+    }
+}
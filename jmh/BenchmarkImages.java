@@ -0,0 +1,59 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A class named BenchmarkImages that loads the images the JMH benchmarks run on. A name ending in an image suffix
+ * is one of the sample images, looked up in the directory given by the system property images (the working
+ * directory by default). The names gradient-N and noise-N are synthetic N x N images: a smooth gradient, which
+ * merges into few large leaves when pruned, and random colors, which never do.
+ */
+public class BenchmarkImages {
+    private static final long SEED = 42;
+
+    /**
+     * Loads the pixels of an image.
+     * @param name The file name of a sample image, or gradient-N or noise-N.
+     * @return The pixels, padded to a square as RasterIngest.load pads them.
+     * @throws IOException If the image cannot be read.
+     */
+    public static int[][] load(String name) throws IOException {
+        if (name.startsWith("gradient-")) {
+            int size = Integer.parseInt(name.substring("gradient-".length()));
+            int[][] pixels = new int[size][size];
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    pixels[y][x] = 0xff000000 | (x * 256 / size) << 16 | (y * 256 / size) << 8 | 0x80;
+                }
+            }
+            return pixels;
+        }
+        if (name.startsWith("noise-")) {
+            int size = Integer.parseInt(name.substring("noise-".length()));
+            Random random = new Random(SEED);
+            int[][] pixels = new int[size][size];
+            for (int[] row : pixels) {
+                for (int x = 0; x < size; x++) {
+                    row[x] = 0xff000000 | random.nextInt(1 << 24);
+                }
+            }
+            return pixels;
+        }
+        return RasterIngest.load(new File(System.getProperty("images", "."), name).getPath());
+    }
+
+    /**
+     * Returns random points of an image, as x and y pairs, the same for every run.
+     * @param size The size of the image.
+     * @param count The number of points.
+     * @return The coordinates, x then y for each point.
+     */
+    public static int[] points(int size, int count) {
+        Random random = new Random(SEED);
+        int[] points = new int[2 * count];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random.nextInt(size);
+        }
+        return points;
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * A class named Workloads that prepares the operations the JMH benchmarks measure. JMH does not accept benchmarks
+ * in the default package, and a class in a package cannot name the classes of the default package, so the
+ * benchmarks in package benchmarks load this class by name, as ColorSimilarity loads VectorColorBatch, and only
+ * see each operation as a Supplier. Loading the image and building the tree happen when the workload is created,
+ * outside the measurement; get runs the operation once and returns its result for the benchmark to consume.
+ */
+public class Workloads {
+    private static final int POINTS = 1024;     // Lookups per findNode operation
+    private static final int CANVAS_SIZE = 512;
+    private static String loadedImage;          // The image of the workloads created last, whose pixels
+    private static int[][] loadedPixels;        // and full tree are shared by the next workloads on it
+    private static QuadrantTree loadedTree;
+
+    /**
+     * Returns an operation on an image.
+     * @param operation build, buildPruned, getPixels, findMatching, findNode or rasterize.
+     * @param image The image, as BenchmarkImages.load names it.
+     * @param level The level of the tree the operation works at; build and buildPruned ignore it.
+     * @return The operation.
+     * @throws IOException If the image cannot be read.
+     */
+    public static synchronized Supplier<Object> create(String operation, String image, int level)
+            throws IOException {
+        if (!image.equals(loadedImage)) {
+            loadedImage = null;
+            loadedTree = null;
+            loadedPixels = BenchmarkImages.load(image);
+            loadedImage = image;
+        }
+        int[][] pixels = loadedPixels;
+        switch (operation) {
+            case "build":
+                return () -> new QuadrantTree(pixels);
+            case "buildPruned":
+                return () -> new QuadrantTree(pixels, QuadrantTree.ErrorMetric.VARIANCE, 100);
+            default:
+                break;
+        }
+        if (loadedTree == null) {
+            loadedTree = new QuadrantTree(pixels);
+        }
+        QuadrantTree tree = loadedTree;
+        QTreeNode root = tree.getRoot();
+        switch (operation) {
+            case "getPixels":
+                return () -> tree.getPixels(root, level);
+            case "findMatching":
+                // The color of the middle of the image, so every image is queried with a color it contains
+                int color = tree.findNode(root, level, pixels.length / 2, pixels.length / 2).getColor();
+                return () -> tree.findMatching(root, color, level);
+            case "findNode":
+                int[] points = BenchmarkImages.points(pixels.length, POINTS);
+                return () -> {
+                    int checksum = 0;
+                    for (int i = 0; i < points.length; i += 2) {
+                        checksum += tree.findNode(root, level, points[i], points[i + 1]).getColor();
+                    }
+                    return checksum;
+                };
+            case "rasterize":
+                return rasterize(tree, pixels.length, level);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * Returns the drawing of the nodes of a level on the 512 x 512 canvas, scaled down as Gui.storePixel scales
+     * the whole of an image larger than the canvas.
+     */
+    private static Supplier<Object> rasterize(QuadrantTree tree, int size, int level) {
+        CanvasRenderer canvas = new CanvasRenderer(CANVAS_SIZE, CANVAS_SIZE);
+        int scale = Math.max(1, size / CANVAS_SIZE);
+        ListNode<QTreeNode> nodes = tree.getPixels(tree.getRoot(), level);
+        return () -> {
+            for (ListNode<QTreeNode> p = nodes; p != null; p = p.getNext()) {
+                QTreeNode node = p.getData();
+                int x = node.getx() / scale;
+                int y = node.gety() / scale;
+                int side = node.getSize() / scale;
+                canvas.fill(x, y, x + side, y + side, node.getColor());
+            }
+            return canvas.takeDirty();
+        };
+    }
+}
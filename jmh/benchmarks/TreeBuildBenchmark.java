@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of a QuadrantTree from the pixels of an image, keeping every pixel and pruned with
+ * a variance tolerance of 100.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class TreeBuildBenchmark {
+    @Param({"animals.jpg", "map.jpg", "uwo1.jpg", "gradient-1024", "noise-1024"})
+    public String image;
+
+    private Supplier<Object> build;
+    private Supplier<Object> buildPruned;
+
+    @Setup
+    public void setUp() throws Exception {
+        build = Workload.create("build", image, 0);
+        buildPruned = Workload.create("buildPruned", image, 0);
+    }
+
+    @Benchmark
+    public Object build() {
+        return build.get();
+    }
+
+    @Benchmark
+    public Object buildPruned() {
+        return buildPruned.get();
+    }
+}
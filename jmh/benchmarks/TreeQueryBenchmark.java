@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the queries of a full tree at a level: getPixels, findMatching with the color of the middle of the
+ * image, findNode at random points, and drawing the nodes of the level on the canvas as Gui.storePixel does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class TreeQueryBenchmark {
+    @Param({"animals.jpg", "map.jpg", "uwo1.jpg", "gradient-1024", "noise-1024"})
+    public String image;
+
+    @Param({"3", "6", "9"})
+    public int level;
+
+    private Supplier<Object> getPixels;
+    private Supplier<Object> findMatching;
+    private Supplier<Object> findNode;
+    private Supplier<Object> rasterize;
+
+    @Setup
+    public void setUp() throws Exception {
+        getPixels = Workload.create("getPixels", image, level);
+        findMatching = Workload.create("findMatching", image, level);
+        findNode = Workload.create("findNode", image, level);
+        rasterize = Workload.create("rasterize", image, level);
+    }
+
+    @Benchmark
+    public Object getPixels() {
+        return getPixels.get();
+    }
+
+    @Benchmark
+    public Object findMatching() {
+        return findMatching.get();
+    }
+
+    /**
+     * One lookup; each invocation looks up 1024 random points.
+     */
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public Object findNode() {
+        return findNode.get();
+    }
+
+    @Benchmark
+    public Object rasterize() {
+        return rasterize.get();
+    }
+}
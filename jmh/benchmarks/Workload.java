@@ -0,0 +1,38 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.function.Supplier;
+
+/**
+ * Creates the operations of the default package class Workloads, which the benchmarks cannot name.
+ */
+final class Workload {
+    private Workload() {
+    }
+
+    /**
+     * Returns an operation of Workloads.
+     * @param operation The operation, as Workloads.create names it.
+     * @param image The image.
+     * @param level The level of the tree.
+     * @return The operation.
+     * @throws Exception If the image cannot be read.
+     */
+    @SuppressWarnings("unchecked")
+    static Supplier<Object> create(String operation, String image, int level) throws Exception {
+        try {
+            return (Supplier<Object>) Class.forName("Workloads").getMethod("create", String.class, String.class,
+                                                                          int.class).invoke(null, operation, image,
+                                                                                            level);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A class named VectorColorBatch that compares one color against an array of colors with the JDK Vector API,
+ * a whole vector of colors per instruction. ColorSimilarity loads it by name when it is on the class path, so
+ * the rest of the program compiles and runs without the incubator module. Compile and run it with:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp out -d out vector/VectorColorBatch.java
+ *   java --add-modules jdk.incubator.vector -cp out TreeBenchmark similarity map.jpg
+ */
+public class VectorColorBatch implements ColorSimilarity.Batch {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public int box(int color, int tolerance, int[] colors, int from, int to, int[] positions) {
+        IntVector red = IntVector.broadcast(SPECIES, (color >> 16) & 0xff);
+        IntVector green = IntVector.broadcast(SPECIES, (color >> 8) & 0xff);
+        IntVector blue = IntVector.broadcast(SPECIES, color & 0xff);
+        int count = 0;
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, colors, i);
+            VectorMask<Integer> similar =
+                v.lanewise(VectorOperators.LSHR, 16).and(0xff).sub(red).abs().lt(tolerance)
+                 .and(v.lanewise(VectorOperators.LSHR, 8).and(0xff).sub(green).abs().lt(tolerance))
+                 .and(v.and(0xff).sub(blue).abs().lt(tolerance));
+            count = store(similar, i, positions, count);
+        }
+        for (; i < to; i++) {
+            if (Math.abs(((colors[i] >> 16) & 0xff) - ((color >> 16) & 0xff)) < tolerance
+                && Math.abs(((colors[i] >> 8) & 0xff) - ((color >> 8) & 0xff)) < tolerance
+                && Math.abs((colors[i] & 0xff) - (color & 0xff)) < tolerance) {
+                positions[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int euclidean(int color, int squaredDistance, int[] colors, int from, int to, int[] positions) {
+        IntVector red = IntVector.broadcast(SPECIES, (color >> 16) & 0xff);
+        IntVector green = IntVector.broadcast(SPECIES, (color >> 8) & 0xff);
+        IntVector blue = IntVector.broadcast(SPECIES, color & 0xff);
+        int count = 0;
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, colors, i);
+            IntVector dr = v.lanewise(VectorOperators.LSHR, 16).and(0xff).sub(red);
+            IntVector dg = v.lanewise(VectorOperators.LSHR, 8).and(0xff).sub(green);
+            IntVector db = v.and(0xff).sub(blue);
+            IntVector distance = dr.mul(dr).add(dg.mul(dg)).add(db.mul(db));
+            count = store(distance.compare(VectorOperators.LE, squaredDistance), i, positions, count);
+        }
+        for (; i < to; i++) {
+            int dr = ((colors[i] >> 16) & 0xff) - ((color >> 16) & 0xff);
+            int dg = ((colors[i] >> 8) & 0xff) - ((color >> 8) & 0xff);
+            int db = (colors[i] & 0xff) - (color & 0xff);
+            if (dr * dr + dg * dg + db * db <= squaredDistance) {
+                positions[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int perceptual(int color, int scaledDistance, int[] colors, int from, int to, int[] positions) {
+        int queryRed = (color >> 16) & 0xff;
+        IntVector red = IntVector.broadcast(SPECIES, queryRed);
+        IntVector green = IntVector.broadcast(SPECIES, (color >> 8) & 0xff);
+        IntVector blue = IntVector.broadcast(SPECIES, color & 0xff);
+        int count = 0;
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            IntVector v = IntVector.fromArray(SPECIES, colors, i);
+            IntVector r = v.lanewise(VectorOperators.LSHR, 16).and(0xff);
+            IntVector redMean = r.add(red).lanewise(VectorOperators.ASHR, 1);
+            IntVector dr = r.sub(red);
+            IntVector dg = v.lanewise(VectorOperators.LSHR, 8).and(0xff).sub(green);
+            IntVector db = v.and(0xff).sub(blue);
+            IntVector distance = redMean.add(512).mul(dr.mul(dr))
+                                 .add(dg.mul(dg).lanewise(VectorOperators.LSHL, 10))
+                                 .add(redMean.neg().add(767).mul(db.mul(db)));
+            count = store(distance.compare(VectorOperators.LE, scaledDistance), i, positions, count);
+        }
+        for (; i < to; i++) {
+            int r = (colors[i] >> 16) & 0xff;
+            int redMean = (r + queryRed) >> 1;
+            int dr = r - queryRed;
+            int dg = ((colors[i] >> 8) & 0xff) - ((color >> 8) & 0xff);
+            int db = (colors[i] & 0xff) - (color & 0xff);
+            if ((512 + redMean) * dr * dr + 1024 * dg * dg + (767 - redMean) * db * db <= scaledDistance) {
+                positions[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Appends the positions of the set lanes of a mask to the positions found so far.
+     * @param mask The lanes whose colors are similar.
+     * @param offset The position of the first lane.
+     * @return The number of positions found.
+     */
+    private static int store(VectorMask<Integer> mask, int offset, int[] positions, int count) {
+        long bits = mask.toLong();
+        while (bits != 0) {
+            positions[count++] = offset + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+        }
+        return count;
+    }
+}